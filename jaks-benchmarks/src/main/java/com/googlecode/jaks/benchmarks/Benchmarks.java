@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Runs the JMH benchmarks in this module, writing the results as JSON to 
+ * {@value #DEFAULT_RESULT_FILE} unless told otherwise, so that runs can be compared between 
+ * builds. Every JMH option is accepted, for example:</p>
+ * 
+ * <pre>
+ * java -jar jaks-benchmarks/target/benchmarks.jar Spawn -rff before.json
+ * java -jar jaks-benchmarks/target/benchmarks.jar -p threads=1,8 ConcurrentSpawn
+ * java -jar jaks-benchmarks/target/benchmarks.jar -jvmArgsAppend -Djdk.lang.Process.launchMechanism=VFORK Spawn</pre>
+ * @author Jason Smith
+ */
+public final class Benchmarks
+{
+    /** Where results go when no <tt>-rff</tt> is given. */
+    public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+    
+    private Benchmarks()
+    {
+    }
+    
+    /**
+     * Run JMH.
+     * @param args JMH options.
+     * @throws Exception See {@link Exception}.
+     */
+    public static void main(final String[] args) throws Exception
+    {
+        final List<String> options = new ArrayList<String>(Arrays.asList(args));
+        if(!options.contains("-rf"))
+        {
+            options.add("-rf");
+            options.add("json");
+        }
+        if(!options.contains("-rff"))
+        {
+            options.add("-rff");
+            options.add(DEFAULT_RESULT_FILE);
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+    }
+}
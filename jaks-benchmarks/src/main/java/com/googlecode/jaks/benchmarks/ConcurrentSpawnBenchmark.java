@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.jaks.common.io.SquashedOutputStream;
+import com.googlecode.jaks.system.Subprocess;
+import com.googlecode.jaks.system.SubprocessResult;
+
+/**
+ * How spawning <tt>/bin/true</tt> scales with concurrency. Each operation runs one process per 
+ * thread, either from that many blocking threads ({@link #threads(Spawns)}) or started together 
+ * without blocking any ({@link #async(Spawns)}). The <tt>spawns</tt> counter gives processes per
+ * second.
+ * @author Jason Smith
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentSpawnBenchmark
+{
+    /**
+     * Counts the processes run.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Spawns
+    {
+        /** Processes run in this iteration. */
+        public long spawns;
+        
+        /**
+         * Start each iteration from zero.
+         */
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            spawns = 0;
+        }
+    }
+    
+    /** How many processes run at once. */
+    @Param({"1", "2", "4", "8", "16"})
+    public int threads;
+    
+    private Subprocess command;
+    
+    private ExecutorService pool;
+    
+    private List<Callable<Integer>> tasks;
+    
+    /**
+     * Create the command and the threads.
+     * @throws IOException See {@link IOException}.
+     */
+    @Setup
+    public void setUp() throws IOException
+    {
+        command = new Subprocess("/bin/true");
+        pool = Executors.newFixedThreadPool(threads);
+        tasks = new ArrayList<Callable<Integer>>();
+        for(int i = 0; i < threads; i++)
+        {
+            tasks.add(command::execute);
+        }
+    }
+    
+    /**
+     * Stop the threads.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        pool.shutdownNow();
+    }
+    
+    /**
+     * Run one process on each thread, and wait for all of them.
+     * @param counter Counts the processes.
+     * @return The sum of the exit codes.
+     * @throws Exception See {@link Exception}.
+     */
+    @Benchmark
+    public int threads(final Spawns counter) throws Exception
+    {
+        int sum = 0;
+        for(final Future<Integer> exitCode : pool.invokeAll(tasks))
+        {
+            sum += exitCode.get();
+        }
+        counter.spawns += threads;
+        return sum;
+    }
+    
+    /**
+     * Start as many processes as there are threads, without blocking, and wait for all of them.
+     * @param counter Counts the processes.
+     * @return The sum of the exit codes.
+     * @throws Exception See {@link Exception}.
+     */
+    @Benchmark
+    public int async(final Spawns counter) throws Exception
+    {
+        final List<CompletableFuture<SubprocessResult>> started = new ArrayList<CompletableFuture<SubprocessResult>>(threads);
+        for(int i = 0; i < threads; i++)
+        {
+            started.add(command.start(null, new SquashedOutputStream(), new SquashedOutputStream()));
+        }
+        int sum = 0;
+        for(final CompletableFuture<SubprocessResult> result : started)
+        {
+            sum += result.get().exitCode;
+        }
+        counter.spawns += threads;
+        return sum;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.jaks.system.Subprocess;
+
+/**
+ * <p>Spawn-to-exit latency of <tt>/bin/true</tt>, with the output discarded by the operating 
+ * system ({@link #execute()}) and with stdout and stderr pumped by workers ({@link #call()}).</p>
+ * 
+ * <p>The launch mechanism and the heap size of the JVM both matter here; compare them with 
+ * <tt>-jvmArgsAppend</tt>, as in <tt>-jvmArgsAppend "-Xmx3g -Djdk.lang.Process.launchMechanism=VFORK"</tt>.</p>
+ * @author Jason Smith
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpawnBenchmark
+{
+    private Subprocess command;
+    
+    /**
+     * Create the command.
+     * @throws IOException See {@link IOException}.
+     */
+    @Setup
+    public void setUp() throws IOException
+    {
+        command = new Subprocess("/bin/true");
+    }
+    
+    /**
+     * Run with stdout and stderr redirected to nothing; no worker threads are involved.
+     * @return The exit code.
+     * @throws Exception See {@link Exception}.
+     */
+    @Benchmark
+    public int execute() throws Exception
+    {
+        return command.execute();
+    }
+    
+    /**
+     * Run with stdout captured and stderr checked, as most callers do.
+     * @return Stdout.
+     * @throws Exception See {@link Exception}.
+     */
+    @Benchmark
+    public byte[] call() throws Exception
+    {
+        return command.call();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.jaks.common.io.SquashedOutputStream;
+import com.googlecode.jaks.system.Subprocess;
+
+/**
+ * How fast data from the JVM reaches stdin of <tt>cat</tt>, whose stdout is discarded by the 
+ * operating system, so that only the stdin worker moves bytes. The <tt>bytes</tt> counter gives
+ * the rate in bytes per second.
+ * @author Jason Smith
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StdinThroughputBenchmark
+{
+    /** The amount of data, in bytes. */
+    @Param({"67108864"})
+    public int size;
+    
+    private byte[] data;
+    
+    private Subprocess cat;
+    
+    /**
+     * Create the data.
+     * @throws IOException See {@link IOException}.
+     */
+    @Setup
+    public void setUp() throws IOException
+    {
+        data = new byte[size];
+        new Random(0).nextBytes(data);
+        cat = new Subprocess("cat");
+    }
+    
+    /**
+     * Pump the data into stdin.
+     * @param counter Counts the bytes.
+     * @return The exit code.
+     * @throws Exception See {@link Exception}.
+     */
+    @Benchmark
+    public int pump(final ByteCounter counter) throws Exception
+    {
+        final int exitCode = cat.execute(new ByteArrayInputStream(data), new SquashedOutputStream());
+        counter.bytes += data.length;
+        return exitCode;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.jaks.system.Subprocess;
+
+/**
+ * How fast stdout of <tt>cat</tt> reaches the JVM, pumped into an {@link OutputStream} by a worker
+ * ({@link #pump(ByteCounter)}) or pulled by the caller ({@link #pull(ByteCounter)}). The 
+ * <tt>bytes</tt> counter gives the rate in bytes per second.
+ * @author Jason Smith
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StdoutThroughputBenchmark
+{
+    /**
+     * Counts what is written to it, and keeps nothing.
+     */
+    private static final class CountingOutputStream extends OutputStream
+    {
+        long count = 0;
+        
+        @Override
+        public void write(final int b)
+        {
+            count++;
+        }
+        
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+        {
+            count += len;
+        }
+    }
+    
+    /** The size of the file, in bytes. */
+    @Param({"67108864"})
+    public long size;
+    
+    private File file;
+    
+    private Subprocess cat;
+    
+    private final byte[] buffer = new byte[64 * 1024];
+    
+    /**
+     * Write a file of random bytes.
+     * @throws IOException See {@link IOException}.
+     */
+    @Setup
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile("jaks-bench", ".bin");
+        final byte[] chunk = new byte[1024 * 1024];
+        new Random(0).nextBytes(chunk);
+        try(final OutputStream out = Files.newOutputStream(file.toPath()))
+        {
+            for(long left = size; left > 0; left -= chunk.length)
+            {
+                out.write(chunk, 0, (int)Math.min(left, chunk.length));
+            }
+        }
+        cat = new Subprocess("cat", file.getPath());
+    }
+    
+    /**
+     * Delete the file.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        file.delete();
+    }
+    
+    /**
+     * Have a worker pump stdout into a stream.
+     * @param counter Counts the bytes.
+     * @return The number of bytes read.
+     * @throws Exception See {@link Exception}.
+     */
+    @Benchmark
+    public long pump(final ByteCounter counter) throws Exception
+    {
+        final CountingOutputStream out = new CountingOutputStream();
+        cat.call(out);
+        counter.bytes += out.count;
+        return out.count;
+    }
+    
+    /**
+     * Read stdout from the pipe on the calling thread.
+     * @param counter Counts the bytes.
+     * @return The number of bytes read.
+     * @throws Exception See {@link Exception}.
+     */
+    @Benchmark
+    public long pull(final ByteCounter counter) throws Exception
+    {
+        long count = 0;
+        try(final InputStream in = cat.open())
+        {
+            for(int len; (len = in.read(buffer)) != -1;)
+            {
+                count += len;
+            }
+        }
+        counter.bytes += count;
+        return count;
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Sends the same data to multiple target output streams, like {@link MultiOutputStream}, 
+ * but each added sink is written on its own thread from its own bounded queue, so a slow sink 
+ * holds up neither the others nor the writer. A primary stream, if given, is still written 
+ * directly on the caller's thread. To checksum a file while it is written at full speed:</p>
+ * 
+ * <pre>
+ * final DigestOutputStream digest = new DigestOutputStream("SHA-256");
+ * try(final OutputStream out = new AsyncMultiOutputStream(new FileOutputStream(file)).addSink(digest))
+ * {
+ *     StreamUtil.transfer(source, out);
+ * }
+ * digest.getDigestString();</pre>
+ * 
+ * <p>Writes to the sinks are gathered into buffers from the {@linkplain BufferPool#DEFAULT 
+ * shared pool}; a full buffer is queued once and shared by every sink, and goes back to the pool
+ * when the last sink is done with it. Data reaches the sinks when a buffer fills, on 
+ * {@link #flush()}, which is passed on without waiting, and on {@link #close()}, which waits for 
+ * every sink to finish and closes it.</p>
+ * 
+ * <p>Each sink has its own {@link Backpressure} and {@link ErrorPolicy}. Sink threads come from 
+ * the executor given to the constructor, one task per sink for the life of the stream; on 
+ * Java 21, {@code Executors.newVirtualThreadPerTaskExecutor()} is a good choice. The queues
+ * use {@link java.util.concurrent.locks.ReentrantLock}, so waiting never pins a virtual 
+ * thread. Only one thread may write to this stream at a time.</p>
+ * @author Jason Smith
+ */
+public class AsyncMultiOutputStream extends OutputStream
+{
+	/** The number of buffers a sink may fall behind by default. */
+	public static final int DEFAULT_CAPACITY = 16;
+	
+	/**
+	 * What the writer does when a sink's queue is full.
+	 */
+	public enum Backpressure
+	{
+		/** Wait for the sink to catch up; the sink sees every byte. */
+		BLOCK,
+		
+		/** Skip the sink for this buffer, and count the bytes it missed. */
+		DROP
+	}
+	
+	/**
+	 * What happens when a sink throws.
+	 */
+	public enum ErrorPolicy
+	{
+		/** Rethrow the error, wrapped in an {@link IOException}, from the next write, flush or close. */
+		FAIL,
+		
+		/** Stop writing to the sink and carry on; the error is kept for {@link AsyncMultiOutputStream#getErrors()}. */
+		DETACH
+	}
+	
+	/**
+	 * A buffer of data, shared by the sinks it was queued to.
+	 */
+	private static final class Chunk
+	{
+		final byte[] bytes;
+		
+		int length = 0;
+		
+		/** Holders of the buffer: the sinks it is queued to, and the writer until it lets go. */
+		final AtomicInteger refs = new AtomicInteger(1);
+		
+		Chunk(final byte[] bytes)
+		{
+			this.bytes = bytes;
+		}
+		
+		void release()
+		{
+			if(bytes != null && refs.decrementAndGet() == 0)
+			{
+				BufferPool.DEFAULT.release(bytes);
+			}
+		}
+	}
+	
+	/** Queued to ask a sink to flush. */
+	private static final Chunk FLUSH = new Chunk(null);
+	
+	/** Queued to tell a sink there is no more data. */
+	private static final Chunk END = new Chunk(null);
+	
+	/**
+	 * A sink with its queue, running on its own thread.
+	 */
+	private static final class Sink implements Runnable
+	{
+		final OutputStream out;
+		
+		final BlockingQueue<Chunk> queue;
+		
+		final Backpressure backpressure;
+		
+		final ErrorPolicy errorPolicy;
+		
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+		
+		volatile Throwable error = null;
+		
+		/** Set once the sink has stopped taking from its queue, so that nothing more is queued to it. */
+		volatile boolean stopped = false;
+		
+		Sink(final OutputStream out, final int capacity, final Backpressure backpressure, final ErrorPolicy errorPolicy)
+		{
+			this.out = out;
+			this.queue = new ArrayBlockingQueue<Chunk>(capacity);
+			this.backpressure = backpressure;
+			this.errorPolicy = errorPolicy;
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				for(;;)
+				{
+					final Chunk chunk = queue.take();
+					if(chunk == END)
+					{
+						break;
+					}
+					try
+					{
+						//After an error, keep draining so that the writer never waits on this sink.
+						if(error == null)
+						{
+							if(chunk == FLUSH)
+							{
+								out.flush();
+							}
+							else
+							{
+								out.write(chunk.bytes, 0, chunk.length);
+							}
+						}
+					}
+					catch(final Throwable e)
+					{
+						//Errors too; the sink is failed or detached by its policy, like any other failure.
+						if(error == null)
+						{
+							error = e;
+						}
+					}
+					finally
+					{
+						chunk.release();
+					}
+				}
+				out.close();
+			}
+			catch(final InterruptedException e)
+			{
+				abandon(e);
+				Thread.currentThread().interrupt();
+			}
+			catch(final Throwable e)
+			{
+				abandon(e);
+			}
+			finally
+			{
+				done.complete(null);
+			}
+		}
+		
+		/**
+		 * Stop draining for good: record the failure, and empty the queue so that a writer 
+		 * blocked on it wakes up. The writer queues nothing more once it sees the failure.
+		 * @param e The failure.
+		 */
+		void abandon(final Throwable e)
+		{
+			if(error == null)
+			{
+				error = e;
+			}
+			stopped = true;
+			for(Chunk chunk = queue.poll(); chunk != null; chunk = queue.poll())
+			{
+				chunk.release();
+			}
+		}
+	}
+	
+	private final OutputStream primary;
+	
+	private final Executor executor;
+	
+	private final List<Sink> sinks = new ArrayList<Sink>();
+	
+	/** The buffer being filled for the sinks, or {@code null}. */
+	private Chunk pending = null;
+	
+	private final AtomicLong dropped = new AtomicLong();
+	
+	private boolean closed = false;
+	
+	/**
+	 * Constructor. Each sink runs on a new daemon thread.
+	 * @param primary Written directly on the caller's thread, or {@code null} for none.
+	 */
+	public AsyncMultiOutputStream(final OutputStream primary)
+	{
+		this(primary, task -> 
+		{
+			final Thread thread = new Thread(task, "jaks-tee");
+			thread.setDaemon(true);
+			thread.start();
+		});
+	}
+	
+	/**
+	 * Constructor.
+	 * @param primary Written directly on the caller's thread, or {@code null} for none.
+	 * @param executor Runs one long-lived task per sink.
+	 */
+	public AsyncMultiOutputStream(final OutputStream primary, final Executor executor)
+	{
+		this.primary = primary;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Add a sink that blocks the writer when it falls {@value #DEFAULT_CAPACITY} buffers behind, 
+	 * and fails the stream if it throws.
+	 * @param out The sink.
+	 * @return This instance.
+	 */
+	public AsyncMultiOutputStream addSink(final OutputStream out)
+	{
+		return addSink(out, DEFAULT_CAPACITY, Backpressure.BLOCK, ErrorPolicy.FAIL);
+	}
+	
+	/**
+	 * Add a sink. Sinks must be added before anything is written.
+	 * @param out The sink; it is closed with this stream.
+	 * @param capacity How many buffers the sink may fall behind by.
+	 * @param backpressure What the writer does when the sink is that far behind.
+	 * @param errorPolicy What happens if the sink throws.
+	 * @return This instance.
+	 */
+	public synchronized AsyncMultiOutputStream addSink(final OutputStream out, final int capacity, 
+			final Backpressure backpressure, final ErrorPolicy errorPolicy)
+	{
+		if(pending != null || closed)
+		{
+			throw new IllegalStateException("Sinks must be added before writing.");
+		}
+		final Sink sink = new Sink(out, capacity, backpressure, errorPolicy);
+		sinks.add(sink);
+		executor.execute(sink);
+		return this;
+	}
+	
+	/**
+	 * The number of bytes that sinks with {@link Backpressure#DROP} missed, summed over the sinks.
+	 * @return The dropped byte count.
+	 */
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+	
+	/**
+	 * The errors thrown by sinks so far.
+	 * @return The errors, in the order the sinks were added.
+	 */
+	public synchronized List<Throwable> getErrors()
+	{
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		for(final Sink sink : sinks)
+		{
+			if(sink.error != null)
+			{
+				errors.add(sink.error);
+			}
+		}
+		return errors;
+	}
+	
+	@Override
+	public synchronized void write(final int b) throws IOException
+	{
+		checkOpen();
+		if(primary != null)
+		{
+			primary.write(b);
+		}
+		if(sinks.isEmpty())
+		{
+			return;
+		}
+		if(pending == null)
+		{
+			pending = new Chunk(BufferPool.DEFAULT.acquireBytes());
+		}
+		pending.bytes[pending.length++] = (byte)b;
+		if(pending.length == pending.bytes.length)
+		{
+			dispatch();
+		}
+	}
+	
+	@Override
+	public synchronized void write(final byte[] b, int off, int len) throws IOException
+	{
+		checkOpen();
+		if(primary != null)
+		{
+			primary.write(b, off, len);
+		}
+		if(sinks.isEmpty())
+		{
+			return;
+		}
+		while(len > 0)
+		{
+			if(pending == null)
+			{
+				pending = new Chunk(BufferPool.DEFAULT.acquireBytes());
+			}
+			final int n = Math.min(len, pending.bytes.length - pending.length);
+			System.arraycopy(b, off, pending.bytes, pending.length, n);
+			pending.length += n;
+			off += n;
+			len -= n;
+			if(pending.length == pending.bytes.length)
+			{
+				dispatch();
+			}
+		}
+	}
+	
+	/**
+	 * Pass on what has been written, and ask every sink to flush, without waiting for them.
+	 * @throws IOException The primary stream failed, or a sink with {@link ErrorPolicy#FAIL} did.
+	 */
+	@Override
+	public synchronized void flush() throws IOException
+	{
+		checkOpen();
+		if(primary != null)
+		{
+			primary.flush();
+		}
+		dispatch();
+		for(final Sink sink : sinks)
+		{
+			if(sink.error == null && !sink.queue.offer(FLUSH) && sink.backpressure == Backpressure.BLOCK)
+			{
+				put(sink, FLUSH);
+			}
+		}
+	}
+	
+	/**
+	 * Close the primary stream, pass on the rest of the data, and wait for every sink to finish
+	 * writing and close.
+	 * @throws IOException The primary stream failed, or a sink with {@link ErrorPolicy#FAIL} did.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if(closed)
+		{
+			return;
+		}
+		closed = true;
+		try
+		{
+			if(primary != null)
+			{
+				primary.close();
+			}
+		}
+		finally
+		{
+			dispatch();
+			for(final Sink sink : sinks)
+			{
+				if(!sink.stopped)
+				{
+					put(sink, END);
+				}
+			}
+			for(final Sink sink : sinks)
+			{
+				try
+				{
+					sink.done.get();
+				}
+				catch(final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for a sink.");
+				}
+				catch(final ExecutionException e)
+				{
+					//The task never completes exceptionally.
+				}
+			}
+		}
+		checkErrors();
+	}
+	
+	/**
+	 * Queue the pending buffer to every healthy sink.
+	 * @throws IOException The writer was interrupted while waiting for a sink.
+	 */
+	private void dispatch() throws IOException
+	{
+		final Chunk chunk = pending;
+		if(chunk == null)
+		{
+			return;
+		}
+		pending = null;
+		try
+		{
+			for(final Sink sink : sinks)
+			{
+				if(sink.error != null)
+				{
+					continue;
+				}
+				chunk.refs.incrementAndGet();
+				if(sink.backpressure == Backpressure.BLOCK)
+				{
+					put(sink, chunk);
+				}
+				else if(!sink.queue.offer(chunk))
+				{
+					chunk.refs.decrementAndGet();
+					dropped.addAndGet(chunk.length);
+				}
+			}
+		}
+		finally
+		{
+			chunk.release();
+		}
+	}
+	
+	/**
+	 * Queue a buffer to a sink, waiting for room.
+	 * @param sink The sink.
+	 * @param chunk The buffer or marker.
+	 * @throws InterruptedIOException The writer was interrupted.
+	 */
+	private static void put(final Sink sink, final Chunk chunk) throws InterruptedIOException
+	{
+		try
+		{
+			sink.queue.put(chunk);
+		}
+		catch(final InterruptedException e)
+		{
+			if(chunk.bytes != null)
+			{
+				chunk.refs.decrementAndGet();
+			}
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a sink.");
+		}
+	}
+	
+	/**
+	 * Fail if the stream is closed, or a sink has failed.
+	 * @throws IOException See {@link IOException}.
+	 */
+	private void checkOpen() throws IOException
+	{
+		if(closed)
+		{
+			throw new IOException("Stream closed.");
+		}
+		checkErrors();
+	}
+	
+	/**
+	 * Rethrow the first error of a sink with {@link ErrorPolicy#FAIL}.
+	 * @throws IOException See {@link IOException}.
+	 */
+	private void checkErrors() throws IOException
+	{
+		for(final Sink sink : sinks)
+		{
+			if(sink.error != null && sink.errorPolicy == ErrorPolicy.FAIL)
+			{
+				throw new IOException("A sink failed.", sink.error);
+			}
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A pool of same-sized I/O buffers, so that code which copies data many times a second reuses
+ * them instead of allocating new ones each time. There are three kinds: {@code byte[]}, 
+ * {@code char[]} and direct {@link ByteBuffer}s, each pooled separately.</p>
+ * 
+ * <p>Acquire a buffer, use it, and release it in a {@code finally} block. A buffer that is not 
+ * released is simply collected; the pool never hands one out twice. At most {@code maxRetained}
+ * buffers of each kind are kept; when the pool is full, a released buffer is dropped, and when it
+ * is empty, a new one is allocated. So retention is bounded, and nothing waits.</p>
+ * 
+ * <p>The pool is lock-free: it holds its buffers in slots that are claimed and filled with 
+ * atomic operations, so it neither blocks nor pins a virtual thread, and does not allocate on 
+ * its own account. Buffers are not tied to threads, so millions of short-lived threads don't 
+ * multiply what is retained.</p>
+ * @author Jason Smith
+ */
+public final class BufferPool
+{
+	/** The size of the buffers in the {@linkplain #DEFAULT default pool}; matches the default Linux pipe capacity. */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	
+	/** The shared pool used by {@link StreamUtil} and the process facilitators. */
+	public static final BufferPool DEFAULT = new BufferPool(DEFAULT_BUFFER_SIZE, 
+		Math.max(16, 4 * Runtime.getRuntime().availableProcessors()));
+	
+	private final int bufferSize;
+	
+	private final AtomicReferenceArray<byte[]> bytes;
+	
+	private final AtomicReferenceArray<char[]> chars;
+	
+	private final AtomicReferenceArray<ByteBuffer> direct;
+	
+	private final LongAdder allocated = new LongAdder();
+	
+	private final LongAdder reused = new LongAdder();
+	
+	private final LongAdder dropped = new LongAdder();
+	
+	/**
+	 * Constructor.
+	 * @param bufferSize The length of every buffer, in elements.
+	 * @param maxRetained The most buffers of each kind kept for reuse.
+	 */
+	public BufferPool(final int bufferSize, final int maxRetained)
+	{
+		if(bufferSize < 1 || maxRetained < 1)
+		{
+			throw new IllegalArgumentException("Buffer size and retention must be positive.");
+		}
+		this.bufferSize = bufferSize;
+		this.bytes = new AtomicReferenceArray<byte[]>(maxRetained);
+		this.chars = new AtomicReferenceArray<char[]>(maxRetained);
+		this.direct = new AtomicReferenceArray<ByteBuffer>(maxRetained);
+	}
+	
+	/**
+	 * The length of every buffer in this pool.
+	 * @return The buffer size, in elements.
+	 */
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+	
+	/**
+	 * Get a byte buffer; its content is undefined.
+	 * @return A buffer of {@link #getBufferSize()} bytes.
+	 */
+	public byte[] acquireBytes()
+	{
+		final byte[] buffer = take(bytes);
+		return buffer!=null?buffer:new byte[bufferSize];
+	}
+	
+	/**
+	 * Get a character buffer; its content is undefined.
+	 * @return A buffer of {@link #getBufferSize()} characters.
+	 */
+	public char[] acquireChars()
+	{
+		final char[] buffer = take(chars);
+		return buffer!=null?buffer:new char[bufferSize];
+	}
+	
+	/**
+	 * Get a direct buffer, cleared; its content is undefined.
+	 * @return A direct buffer with a capacity of {@link #getBufferSize()} bytes.
+	 */
+	public ByteBuffer acquireDirect()
+	{
+		final ByteBuffer buffer = take(direct);
+		if(buffer != null)
+		{
+			buffer.clear();
+			return buffer;
+		}
+		return ByteBuffer.allocateDirect(bufferSize);
+	}
+	
+	/**
+	 * Return a byte buffer. The caller must not use it afterwards.
+	 * @param buffer A buffer from {@link #acquireBytes()}, or {@code null}.
+	 */
+	public void release(final byte[] buffer)
+	{
+		if(buffer != null && buffer.length == bufferSize)
+		{
+			give(bytes, buffer);
+		}
+	}
+	
+	/**
+	 * Return a character buffer. The caller must not use it afterwards.
+	 * @param buffer A buffer from {@link #acquireChars()}, or {@code null}.
+	 */
+	public void release(final char[] buffer)
+	{
+		if(buffer != null && buffer.length == bufferSize)
+		{
+			give(chars, buffer);
+		}
+	}
+	
+	/**
+	 * Return a direct buffer. The caller must not use it afterwards.
+	 * @param buffer A buffer from {@link #acquireDirect()}, or {@code null}.
+	 */
+	public void release(final ByteBuffer buffer)
+	{
+		if(buffer != null && buffer.isDirect() && buffer.capacity() == bufferSize)
+		{
+			give(direct, buffer);
+		}
+	}
+	
+	/**
+	 * The number of buffers allocated because the pool was empty.
+	 * @return The allocation count.
+	 */
+	public long getAllocatedCount()
+	{
+		return allocated.sum();
+	}
+	
+	/**
+	 * The number of buffers handed out again instead of allocated; the allocations avoided.
+	 * @return The reuse count.
+	 */
+	public long getReusedCount()
+	{
+		return reused.sum();
+	}
+	
+	/**
+	 * The number of released buffers dropped because the pool was full.
+	 * @return The drop count.
+	 */
+	public long getDroppedCount()
+	{
+		return dropped.sum();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[size=" + bufferSize + " allocated=" + getAllocatedCount() 
+			+ " reused=" + getReusedCount() + " dropped=" + getDroppedCount() + "]";
+	}
+	
+	/**
+	 * Claim a buffer from the slots, starting at a random slot so that threads spread out.
+	 * @param <T> The kind of buffer.
+	 * @param slots The slots.
+	 * @return A buffer, or {@code null} if there is none.
+	 */
+	private <T> T take(final AtomicReferenceArray<T> slots)
+	{
+		final int length = slots.length();
+		final int start = ThreadLocalRandom.current().nextInt(length);
+		for(int i = 0; i < length; i++)
+		{
+			final int slot = (start + i) % length;
+			if(slots.get(slot) != null)
+			{
+				final T buffer = slots.getAndSet(slot, null);
+				if(buffer != null)
+				{
+					reused.increment();
+					return buffer;
+				}
+			}
+		}
+		allocated.increment();
+		return null;
+	}
+	
+	/**
+	 * Put a buffer in an empty slot, or drop it.
+	 * @param <T> The kind of buffer.
+	 * @param slots The slots.
+	 * @param buffer The buffer.
+	 */
+	private <T> void give(final AtomicReferenceArray<T> slots, final T buffer)
+	{
+		final int length = slots.length();
+		final int start = ThreadLocalRandom.current().nextInt(length);
+		for(int i = 0; i < length; i++)
+		{
+			final int slot = (start + i) % length;
+			if(slots.get(slot) == null && slots.compareAndSet(slot, null, buffer))
+			{
+				return;
+			}
+		}
+		dropped.increment();
+	}
+}
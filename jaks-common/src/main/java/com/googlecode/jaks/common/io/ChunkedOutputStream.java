@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>An in-memory {@link OutputStream}, like {@link java.io.ByteArrayOutputStream}, that grows by 
+ * adding chunks instead of doubling and copying one array. The bytes are copied once, when they 
+ * are assembled by {@link #toByteArray()}, and not at all if they fit in the first chunk exactly:
+ * size that chunk with a good guess and {@link #toByteArray()} returns it as it is. 
+ * {@link #toByteBuffer()} avoids the copy whenever there is only one chunk.</p>
+ * 
+ * <p>Each chunk after the first is as large as all the data before it, up to {@value #MAX_CHUNK}
+ * bytes, so the chunk count grows slowly and at most that much is left unused at the end. This 
+ * class is not thread-safe.</p>
+ * @author Jason Smith
+ */
+public class ChunkedOutputStream extends OutputStream
+{
+	/** The size of the first chunk when there is no better guess. */
+	public static final int DEFAULT_CHUNK = 8 * 1024;
+	
+	/** 
+	 * The largest chunk added after the first. Kept well under half of the smallest G1 region, 
+	 * so that chunks are ordinary young objects rather than humongous ones.
+	 */
+	public static final int MAX_CHUNK = 256 * 1024;
+	
+	/** The largest array the JVM will reliably allocate. */
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+	
+	/** Full chunks, before {@link #current}. */
+	private final List<byte[]> full = new ArrayList<byte[]>();
+	
+	private byte[] current;
+	
+	/** Bytes used in {@link #current}. */
+	private int pos = 0;
+	
+	/** Bytes in {@link #full}. */
+	private long fullSize = 0;
+	
+	/**
+	 * Constructor, with a first chunk of {@value #DEFAULT_CHUNK} bytes.
+	 */
+	public ChunkedOutputStream()
+	{
+		this(DEFAULT_CHUNK);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param sizeHint The expected size of the data, which becomes the size of the first chunk. 
+	 *        Zero or less for the default.
+	 */
+	public ChunkedOutputStream(final long sizeHint)
+	{
+		current = new byte[sizeHint<=0?DEFAULT_CHUNK:(int)Math.min(sizeHint, MAX_ARRAY)];
+	}
+	
+	@Override
+	public void write(final int b)
+	{
+		if(pos == current.length)
+		{
+			nextChunk();
+		}
+		current[pos++] = (byte)b;
+	}
+	
+	@Override
+	public void write(final byte[] b, int off, int len)
+	{
+		while(len > 0)
+		{
+			if(pos == current.length)
+			{
+				nextChunk();
+			}
+			final int n = Math.min(len, current.length - pos);
+			System.arraycopy(b, off, current, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Read a stream to its end straight into the chunks, with no buffer in between. The stream 
+	 * is not closed. When the data fills the current chunk exactly, no further chunk is added.
+	 * @param in The source.
+	 * @return The number of bytes read.
+	 * @throws IOException See {@link IOException}.
+	 */
+	public long readFrom(final InputStream in) throws IOException
+	{
+		long count = 0;
+		for(;;)
+		{
+			if(pos == current.length)
+			{
+				//Check for the end before committing to another chunk.
+				final int b = in.read();
+				if(b == -1)
+				{
+					return count;
+				}
+				write(b);
+				count++;
+			}
+			final int len = in.read(current, pos, current.length - pos);
+			if(len == -1)
+			{
+				return count;
+			}
+			pos += len;
+			count += len;
+		}
+	}
+	
+	/**
+	 * The number of bytes written.
+	 * @return The size of the data.
+	 */
+	public long size()
+	{
+		return fullSize + pos;
+	}
+	
+	/**
+	 * Forget the data, keeping the first chunk for reuse.
+	 */
+	public void reset()
+	{
+		if(!full.isEmpty())
+		{
+			current = full.get(0);
+			full.clear();
+		}
+		fullSize = 0;
+		pos = 0;
+	}
+	
+	/**
+	 * The data as one array. If it fills the only chunk exactly, that chunk is returned without 
+	 * a copy; changes to the array then show in later calls, and writes after {@link #reset()} 
+	 * overwrite it.
+	 * @return The data.
+	 */
+	public byte[] toByteArray()
+	{
+		if(full.isEmpty() && pos == current.length)
+		{
+			return current;
+		}
+		final long size = size();
+		if(size > MAX_ARRAY)
+		{
+			throw new OutOfMemoryError("Too large for an array: " + size + " bytes.");
+		}
+		final byte[] bytes = new byte[(int)size];
+		int at = 0;
+		for(final byte[] chunk : full)
+		{
+			System.arraycopy(chunk, 0, bytes, at, chunk.length);
+			at += chunk.length;
+		}
+		System.arraycopy(current, 0, bytes, at, pos);
+		return bytes;
+	}
+	
+	/**
+	 * The data as a buffer, positioned at zero. If there is only one chunk, the buffer is a view 
+	 * of it, and no bytes are copied.
+	 * @return The data.
+	 */
+	public ByteBuffer toByteBuffer()
+	{
+		return full.isEmpty()?ByteBuffer.wrap(current, 0, pos).slice():ByteBuffer.wrap(toByteArray());
+	}
+	
+	/**
+	 * Write the data to another stream, chunk by chunk, without assembling it.
+	 * @param out The target.
+	 * @throws IOException See {@link IOException}.
+	 */
+	public void writeTo(final OutputStream out) throws IOException
+	{
+		for(final byte[] chunk : full)
+		{
+			out.write(chunk);
+		}
+		out.write(current, 0, pos);
+	}
+	
+	/**
+	 * Decode the data.
+	 * @param charset The character set.
+	 * @return The text.
+	 */
+	public String toString(final Charset charset)
+	{
+		if(full.isEmpty())
+		{
+			return new String(current, 0, pos, charset);
+		}
+		return new String(toByteArray(), charset);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return toString(Charset.defaultCharset());
+	}
+	
+	/**
+	 * Retire the full current chunk and start a new one, as large as the data so far, within limits.
+	 */
+	private void nextChunk()
+	{
+		full.add(current);
+		fullSize += current.length;
+		current = new byte[(int)Math.max(DEFAULT_CHUNK, Math.min(fullSize, MAX_CHUNK))];
+		pos = 0;
+	}
+}
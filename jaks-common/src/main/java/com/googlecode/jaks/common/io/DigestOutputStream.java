@@ -34,6 +34,9 @@ public class DigestOutputStream extends OutputStream
 {
 	public final static String MD5 = "MD5";
 	public final static String SHA1 = "SHA-1";
+	public final static String SHA256 = "SHA-256";
+	
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 	
 	private final MessageDigest digest;
 
@@ -73,17 +76,23 @@ public class DigestOutputStream extends OutputStream
 	 */
 	public String getDigestString()
 	{
-		StringBuilder s = new StringBuilder();
-		for(final byte b : getDigest())
+		return toHex(getDigest());
+	}
+	
+	/**
+	 * Encode bytes as lower-case hexadecimal, straight into the characters of the string.
+	 * @param bytes The bytes.
+	 * @return The hexadecimal string, two characters per byte.
+	 */
+	static String toHex(final byte[] bytes)
+	{
+		final char[] chars = new char[bytes.length * 2];
+		for(int i=0; i<bytes.length; ++i)
 		{
-			int i = (int)b & 0xff;
-			if(i <= 0xf)
-			{
-				s.append("0");
-			}
-			s.append(Integer.toHexString(i));
+			chars[2*i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			chars[2*i + 1] = HEX_DIGITS[bytes[i] & 0xf];
 		}
-		return s.toString();
+		return new String(chars);
 	}
 	
 	@Override
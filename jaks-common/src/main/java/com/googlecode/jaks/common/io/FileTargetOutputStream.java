@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+/**
+ * A {@link FileOutputStream} that remembers which file it writes to, and whether it appends.
+ * Consumers that can write to a file by name, such as a child process whose output is redirected
+ * by the operating system, recognize this class and skip copying the data through the stream.
+ * @author Jason Smith
+ */
+public class FileTargetOutputStream extends FileOutputStream
+{
+	private final File file;
+	
+	private final boolean append;
+	
+	/**
+	 * Constructor. The file is truncated.
+	 * @param file The target file.
+	 * @throws FileNotFoundException See {@link FileOutputStream#FileOutputStream(File)}.
+	 */
+	public FileTargetOutputStream(final File file) throws FileNotFoundException
+	{
+		this(file, false);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param file The target file.
+	 * @param append {@code true} to append to the file; {@code false} to truncate it.
+	 * @throws FileNotFoundException See {@link FileOutputStream#FileOutputStream(File, boolean)}.
+	 */
+	public FileTargetOutputStream(final File file, final boolean append) throws FileNotFoundException
+	{
+		super(file, append);
+		this.file = file;
+		this.append = append;
+	}
+	
+	/**
+	 * The target file.
+	 * @return The target file.
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+	
+	/**
+	 * Whether the stream was opened to append to the file.
+	 * @return {@code true} if the stream appends.
+	 */
+	public boolean isAppend()
+	{
+		return append;
+	}
+}
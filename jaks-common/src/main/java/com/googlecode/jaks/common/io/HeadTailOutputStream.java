@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * <p>{@link OutputStream} that keeps only the first and the last few bytes written to it, in 
+ * fixed-size buffers, and counts the rest. Memory use does not grow with the amount of data, which makes
+ * it suitable for capturing the chatter of a long-running tool just in case it's needed for an error
+ * message.</p>
+ * 
+ * <p>Nothing is decoded until {@link #toString(Charset)} is called, and nothing is allocated until
+ * something is written: the head grows with the data up to its limit, and the tail is allocated
+ * when the head is full. A capture that usually stays empty, like the stderr of a quiet tool, 
+ * costs next to nothing.</p>
+ * @author Jason Smith
+ */
+public class HeadTailOutputStream extends OutputStream
+{
+	private static final byte[] EMPTY = new byte[0];
+	
+	/** The smallest head allocated. */
+	private static final int MIN_HEAD = 256;
+	
+	private final int headLimit;
+	
+	private final int tailLimit;
+	
+	/** The first bytes written; grows up to {@link #headLimit}. */
+	private byte[] head = EMPTY;
+	
+	/** The last bytes written, as a ring of {@link #tailLimit} bytes once allocated. */
+	private byte[] tail = EMPTY;
+	
+	/** Bytes held in {@link #head}. */
+	private int headCount = 0;
+	
+	/** Bytes held in {@link #tail}. */
+	private int tailCount = 0;
+	
+	/** Where the next byte goes in {@link #tail}. */
+	private int tailPos = 0;
+	
+	/** Total bytes written. */
+	private long count = 0;
+	
+	/**
+	 * Constructor.
+	 * @param headLimit How many of the first bytes to keep.
+	 * @param tailLimit How many of the last bytes to keep.
+	 */
+	public HeadTailOutputStream(final int headLimit, final int tailLimit)
+	{
+		if(headLimit < 0 || tailLimit < 0)
+		{
+			throw new IllegalArgumentException("Limits must not be negative.");
+		}
+		this.headLimit = headLimit;
+		this.tailLimit = tailLimit;
+	}
+	
+	@Override
+	public synchronized void write(final int b)
+	{
+		count++;
+		if(headCount < headLimit)
+		{
+			growHead(headCount + 1);
+			head[headCount++] = (byte)b;
+		}
+		else if(tailLimit > 0)
+		{
+			allocateTail();
+			tail[tailPos] = (byte)b;
+			tailPos = (tailPos + 1) % tailLimit;
+			tailCount = Math.min(tailCount + 1, tailLimit);
+		}
+	}
+	
+	@Override
+	public synchronized void write(final byte[] b, int off, int len)
+	{
+		count += len;
+		
+		final int h = Math.min(len, headLimit - headCount);
+		if(h > 0)
+		{
+			growHead(headCount + h);
+			System.arraycopy(b, off, head, headCount, h);
+			headCount += h;
+			off += h;
+			len -= h;
+		}
+		
+		if(len == 0 || tailLimit == 0)
+		{
+			return;
+		}
+		allocateTail();
+		if(len >= tailLimit)
+		{
+			System.arraycopy(b, off + len - tailLimit, tail, 0, tailLimit);
+			tailPos = 0;
+			tailCount = tailLimit;
+		}
+		else
+		{
+			final int first = Math.min(len, tailLimit - tailPos);
+			System.arraycopy(b, off, tail, tailPos, first);
+			System.arraycopy(b, off + first, tail, 0, len - first);
+			tailPos = (tailPos + len) % tailLimit;
+			tailCount = Math.min(tailCount + len, tailLimit);
+		}
+	}
+	
+	@Override
+	public void write(final byte[] b)
+	{
+		write(b, 0, b.length);
+	}
+	
+	/**
+	 * The total number of bytes written, including those that were not kept.
+	 * @return The total number of bytes written.
+	 */
+	public synchronized long getCount()
+	{
+		return count;
+	}
+	
+	/**
+	 * The number of bytes that were written but not kept.
+	 * @return The number of bytes dropped between the head and the tail.
+	 */
+	public synchronized long getOmitted()
+	{
+		return count - headCount - tailCount;
+	}
+	
+	/**
+	 * The bytes that were kept: the head followed by the tail.
+	 * @return The kept bytes.
+	 */
+	public synchronized byte[] toByteArray()
+	{
+		final byte[] bytes = new byte[headCount + tailCount];
+		System.arraycopy(head, 0, bytes, 0, headCount);
+		final int start = (tailPos - tailCount + tailLimit) % Math.max(tailLimit, 1);
+		final int first = Math.min(tailCount, tailLimit - start);
+		System.arraycopy(tail, start, bytes, headCount, first);
+		System.arraycopy(tail, 0, bytes, headCount + first, tailCount - first);
+		return bytes;
+	}
+	
+	/**
+	 * Decode the bytes that were kept. If anything was dropped, a marker saying how much
+	 * is placed between the head and the tail. Malformed input is replaced, not reported.
+	 * @param charset The character set.
+	 * @return The decoded text.
+	 */
+	public synchronized String toString(final Charset charset)
+	{
+		final long omitted = getOmitted();
+		if(omitted == 0)
+		{
+			return new String(toByteArray(), charset);
+		}
+		final byte[] bytes = toByteArray();
+		return new String(bytes, 0, headCount, charset) 
+			+ (headCount > 0 ? "\n" : "") + "[... " + omitted + " bytes omitted ...]\n" 
+			+ new String(bytes, headCount, tailCount, charset);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return toString(Charset.defaultCharset());
+	}
+	
+	/**
+	 * Make room in the head, at least doubling it, within the limit.
+	 * @param needed The bytes the head must hold.
+	 */
+	private void growHead(final int needed)
+	{
+		if(needed > head.length)
+		{
+			head = Arrays.copyOf(head, (int)Math.min(headLimit, Math.max(needed, Math.max(MIN_HEAD, 2L * head.length))));
+		}
+	}
+	
+	/**
+	 * Allocate the tail, once the head is full.
+	 */
+	private void allocateTail()
+	{
+		if(tail.length == 0)
+		{
+			tail = new byte[tailLimit];
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.function.Consumer;
+
+/**
+ * <p>Decodes the bytes written to it and passes each delimited record, without its delimiter,
+ * to a consumer. Decoding is incremental, with one {@link CharsetDecoder} and fixed buffers 
+ * reused for the life of the stream, so memory use depends on the longest record rather than 
+ * on the amount of data. Malformed input is replaced, not rejected.</p>
+ * 
+ * <p>The {@link CharSequence} given to the consumer is reused for the next record; copy it 
+ * (for example with {@code toString()}) to keep it. When the delimiter is a newline, a 
+ * carriage return in front of it is dropped as well. The last record is passed on 
+ * {@link #close()} even if it has no delimiter.</p>
+ * @author Jason Smith
+ */
+public class LineOutputStream extends OutputStream
+{
+	private static final int BUFFER_SIZE = 8192;
+	
+	/** Records longer than this don't keep their buffer space afterwards. */
+	private static final int MAX_RETAINED = 64 * 1024;
+	
+	private final Consumer<? super CharSequence> consumer;
+	
+	private final char delimiter;
+	
+	private final CharsetDecoder decoder;
+	
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	
+	private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+	
+	private final StringBuilder record = new StringBuilder();
+	
+	private final byte[] single = new byte[1];
+	
+	private boolean closed = false;
+	
+	/**
+	 * Constructor for UTF-8 lines.
+	 * @param consumer Receives each line.
+	 */
+	public LineOutputStream(final Consumer<? super CharSequence> consumer)
+	{
+		this(Charset.forName(StreamUtil.UTF8), '\n', consumer);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param charset The encoding of the data.
+	 * @param delimiter The character that ends each record, such as <tt>'\n'</tt>, or <tt>'\0'</tt>
+	 * for the output of <tt>find -print0</tt>.
+	 * @param consumer Receives each record.
+	 */
+	public LineOutputStream(final Charset charset, final char delimiter, final Consumer<? super CharSequence> consumer)
+	{
+		this.consumer = consumer;
+		this.delimiter = delimiter;
+		this.decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+	
+	@Override
+	public void write(final int b) throws IOException 
+	{
+		single[0] = (byte)b;
+		write(single, 0, 1);
+	}
+	
+	@Override
+	public void write(final byte[] b) throws IOException 
+	{
+		write(b, 0, b.length);
+	}
+	
+	@Override
+	public void write(final byte[] b, int off, int len) throws IOException 
+	{
+		if(closed)
+		{
+			throw new IOException("Stream closed.");
+		}
+		while(len > 0)
+		{
+			final int n = Math.min(len, bytes.remaining());
+			bytes.put(b, off, n);
+			off += n;
+			len -= n;
+			decode(false);
+		}
+	}
+	
+	/**
+	 * Passes on the last record, if it has any characters.
+	 */
+	@Override
+	public void close() throws IOException 
+	{
+		if(closed)
+		{
+			return;
+		}
+		closed = true;
+		decode(true);
+		while(decoder.flush(chars).isOverflow())
+		{
+			scan();
+		}
+		scan();
+		if(record.length() > 0)
+		{
+			emit();
+		}
+	}
+	
+	/**
+	 * Decode whatever is in the byte buffer, keeping an incomplete trailing character for later.
+	 * @param endOfInput No more bytes will follow.
+	 */
+	private void decode(final boolean endOfInput)
+	{
+		bytes.flip();
+		CoderResult result;
+		do
+		{
+			result = decoder.decode(bytes, chars, endOfInput);
+			scan();
+		}
+		while(result.isOverflow());
+		bytes.compact();
+	}
+	
+	/**
+	 * Split the decoded characters into records.
+	 */
+	private void scan()
+	{
+		chars.flip();
+		final char[] array = chars.array();
+		final int limit = chars.limit();
+		int start = chars.position();
+		for(int i = start; i < limit; ++i)
+		{
+			if(array[i] == delimiter)
+			{
+				record.append(array, start, i - start);
+				emit();
+				start = i + 1;
+			}
+		}
+		record.append(array, start, limit - start);
+		chars.clear();
+	}
+	
+	/**
+	 * Pass the current record to the consumer, and start the next.
+	 */
+	private void emit()
+	{
+		final int length = record.length();
+		if(delimiter == '\n' && length > 0 && record.charAt(length - 1) == '\r')
+		{
+			record.setLength(length - 1);
+		}
+		consumer.accept(record);
+		record.setLength(0);
+		if(record.capacity() > MAX_RETAINED)
+		{
+			record.trimToSize();
+		}
+	}
+}
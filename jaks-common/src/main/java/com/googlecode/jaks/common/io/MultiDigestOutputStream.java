@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+import com.googlecode.jaks.common.SquashedException;
+
+/**
+ * <p>An output stream whose result is several message digests of the data written to it, 
+ * computed in one pass. This is {@link DigestOutputStream} for more than one algorithm, for 
+ * writing, say, MD5, SHA-1 and SHA-256 sidecars without reading the data three times.</p>
+ * 
+ * <p>Writes of at least {@value #PARALLEL_THRESHOLD} bytes are hashed by all the algorithms at 
+ * once, one per core, on the {@linkplain ForkJoinPool#commonPool() common pool}; the writing 
+ * thread takes the first algorithm itself, and returns when every algorithm is done with the 
+ * buffer. Smaller writes, and every write on a single core, are hashed in turn.</p>
+ * 
+ * <p>For a file that is already on disk, {@link #digest(Path, String...)} hashes a memory
+ * mapping of it and skips the stream altogether.</p>
+ * @see MessageDigest
+ * @see StreamUtil#transfer(java.io.InputStream, OutputStream)
+ * @author Jason Smith
+ */
+public class MultiDigestOutputStream extends OutputStream
+{
+	/** The smallest write that is hashed in parallel; below it, handing off costs more than it saves. */
+	public static final int PARALLEL_THRESHOLD = 64 * 1024;
+	
+	/** The most of a file mapped at once by {@link #digest(Path, String...)}. */
+	private static final long MAP_WINDOW = 64L * 1024 * 1024;
+	
+	private static final boolean MULTICORE = Runtime.getRuntime().availableProcessors() > 1;
+	
+	private final List<String> algorithms;
+	
+	private final MessageDigest[] digests;
+	
+	/** Whether large updates are shared out between threads. */
+	private final boolean parallel;
+	
+	private Map<String,byte[]> result = null;
+	
+	/**
+	 * Constructor.
+	 * @param algorithms The algorithms, such as <tt>MD5</tt>, <tt>SHA-1</tt> and <tt>SHA-256</tt>.
+	 *             Refer to the documentation for {@link MessageDigest} for more information.
+	 * @throws NoSuchAlgorithmException See {@link NoSuchAlgorithmException}.
+	 */
+	public MultiDigestOutputStream(final String... algorithms) throws NoSuchAlgorithmException
+	{
+		this(MULTICORE, algorithms);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param parallel Whether to hash large writes in parallel, even on a single core.
+	 * @param algorithms The algorithms.
+	 * @throws NoSuchAlgorithmException See {@link NoSuchAlgorithmException}.
+	 */
+	MultiDigestOutputStream(final boolean parallel, final String... algorithms) throws NoSuchAlgorithmException
+	{
+		if(algorithms.length == 0)
+		{
+			throw new IllegalArgumentException("At least one algorithm is required.");
+		}
+		final List<String> names = new ArrayList<String>();
+		for(final String algorithm : algorithms)
+		{
+			if(!names.contains(algorithm))
+			{
+				names.add(algorithm);
+			}
+		}
+		this.algorithms = Collections.unmodifiableList(names);
+		this.digests = newDigests(names);
+		this.parallel = parallel;
+	}
+	
+	/**
+	 * The algorithms, in the order given, without duplicates.
+	 * @return The algorithm names.
+	 */
+	public List<String> getAlgorithms()
+	{
+		return algorithms;
+	}
+	
+	/**
+	 * Return every digest, closing the stream if necessary.
+	 * @return The digests, keyed by algorithm, in the order given.
+	 */
+	public Map<String,byte[]> getDigests()
+	{
+		try
+		{
+			close();
+		}
+		catch(final IOException e)
+		{
+			return SquashedException.raise(e);
+		}
+		return result;
+	}
+	
+	/**
+	 * Return one digest, closing the stream if necessary.
+	 * @param algorithm The algorithm; one of those given to the constructor.
+	 * @return The digest.
+	 */
+	public byte[] getDigest(final String algorithm)
+	{
+		final byte[] digest = getDigests().get(algorithm);
+		if(digest == null)
+		{
+			throw new IllegalArgumentException("Not computed: " + algorithm);
+		}
+		return digest.clone();
+	}
+	
+	/**
+	 * Return one digest as a hexadecimal-encoded string, closing the stream if necessary.
+	 * @param algorithm The algorithm; one of those given to the constructor.
+	 * @return The digest as a hexadecimal-encoded string.
+	 */
+	public String getDigestString(final String algorithm)
+	{
+		return DigestOutputStream.toHex(getDigest(algorithm));
+	}
+	
+	@Override
+	public void write(final int b) throws IOException
+	{
+		checkOpen();
+		for(final MessageDigest digest : digests)
+		{
+			digest.update((byte)b);
+		}
+	}
+	
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException
+	{
+		checkOpen();
+		update(digests, parallel && len >= PARALLEL_THRESHOLD, digest -> digest.update(b, off, len));
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		if(result == null)
+		{
+			super.close();
+			final Map<String,byte[]> results = new LinkedHashMap<String,byte[]>();
+			for(int i=0; i<digests.length; ++i)
+			{
+				results.put(algorithms.get(i), digests[i].digest());
+			}
+			result = Collections.unmodifiableMap(results);
+		}
+	}
+	
+	/**
+	 * Compute digests of a file in one pass over a memory mapping of it, a window at a time. With
+	 * more than one algorithm and more than one core, the algorithms run in parallel on each window.
+	 * @param file The file.
+	 * @param algorithms The algorithms.
+	 * @return The digests, keyed by algorithm, in the order given.
+	 * @throws NoSuchAlgorithmException See {@link NoSuchAlgorithmException}.
+	 * @throws IOException See {@link IOException}.
+	 */
+	public static Map<String,byte[]> digest(final Path file, final String... algorithms) throws NoSuchAlgorithmException, IOException
+	{
+		return digest(file, MULTICORE, algorithms);
+	}
+	
+	/**
+	 * Compute digests of a file over a memory mapping of it.
+	 * @param file The file.
+	 * @param parallel Whether to run the algorithms in parallel, even on a single core.
+	 * @param algorithms The algorithms.
+	 * @return The digests, keyed by algorithm, in the order given.
+	 * @throws NoSuchAlgorithmException See {@link NoSuchAlgorithmException}.
+	 * @throws IOException See {@link IOException}.
+	 * @see #digest(Path, String...)
+	 */
+	static Map<String,byte[]> digest(final Path file, final boolean parallel, final String... algorithms) throws NoSuchAlgorithmException, IOException
+	{
+		final MultiDigestOutputStream target = new MultiDigestOutputStream(parallel, algorithms);
+		final MessageDigest[] digests = target.digests;
+		try(final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			final long size = channel.size();
+			for(long position=0; position<size; position+=MAP_WINDOW)
+			{
+				final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+				update(digests, parallel, digest -> digest.update(window.duplicate()));
+			}
+		}
+		target.close();
+		return target.result;
+	}
+	
+	/**
+	 * Fail if the stream is closed.
+	 * @throws IOException The stream is closed.
+	 */
+	private void checkOpen() throws IOException
+	{
+		if(result != null)
+		{
+			throw new IOException("Stream closed.");
+		}
+	}
+	
+	/**
+	 * Create a digest per algorithm.
+	 * @param algorithms The algorithms.
+	 * @return The digests.
+	 * @throws NoSuchAlgorithmException See {@link NoSuchAlgorithmException}.
+	 */
+	private static MessageDigest[] newDigests(final List<String> algorithms) throws NoSuchAlgorithmException
+	{
+		final MessageDigest[] digests = new MessageDigest[algorithms.size()];
+		for(int i=0; i<digests.length; ++i)
+		{
+			digests[i] = MessageDigest.getInstance(algorithms.get(i));
+		}
+		return digests;
+	}
+	
+	/**
+	 * Apply the same update to every digest. In parallel, the calling thread updates the first
+	 * digest, and the update is complete when this returns.
+	 * @param digests The digests.
+	 * @param parallel Whether to share the update out.
+	 * @param update The update.
+	 */
+	private static void update(final MessageDigest[] digests, final boolean parallel, final Consumer<MessageDigest> update)
+	{
+		if(parallel && digests.length > 1)
+		{
+			final CompletableFuture<?>[] others = new CompletableFuture<?>[digests.length - 1];
+			for(int i=1; i<digests.length; ++i)
+			{
+				final MessageDigest digest = digests[i];
+				others[i - 1] = CompletableFuture.runAsync(() -> update.accept(digest), ForkJoinPool.commonPool());
+			}
+			update.accept(digests[0]);
+			//The caller may reuse the data as soon as we return.
+			CompletableFuture.allOf(others).join();
+		}
+		else
+		{
+			for(final MessageDigest digest : digests)
+			{
+				update.accept(digest);
+			}
+		}
+	}
+}
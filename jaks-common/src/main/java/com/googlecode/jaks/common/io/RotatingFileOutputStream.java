@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>{@link OutputStream} that appends to a log file and rolls it over when it reaches a size 
+ * limit: <tt>name</tt> becomes <tt>name.1</tt>, <tt>name.1</tt> becomes <tt>name.2</tt>, and so on,
+ * and the oldest file is deleted. Disk use is bounded by the limit times the number of files.</p>
+ * 
+ * <p>Each call to {@link #write(byte[], int, int)} lands in a single file, so a writer that passes 
+ * whole records never sees one split across a rollover. Nothing is buffered.</p>
+ * 
+ * <p>A writer whose records only make sense after some preamble, such as a time origin, sets it 
+ * with {@link #setHeader(byte[])}, and every file started by a rollover begins with it.</p>
+ * @author Jason Smith
+ */
+public class RotatingFileOutputStream extends OutputStream
+{
+	private final File file;
+	
+	private final long maxBytes;
+	
+	private final int keep;
+	
+	private FileOutputStream out;
+	
+	/** Bytes in the current file. */
+	private long size;
+	
+	/** Written at the start of every new file. */
+	private byte[] header = new byte[0];
+	
+	/**
+	 * Constructor. An existing file is appended to.
+	 * @param file The current log file.
+	 * @param maxBytes The size at which the file is rolled over.
+	 * @param keep How many rolled-over files to keep; zero to truncate the file instead.
+	 * @throws IOException The file could not be opened.
+	 */
+	public RotatingFileOutputStream(final File file, final long maxBytes, final int keep) throws IOException
+	{
+		if(maxBytes < 1 || keep < 0)
+		{
+			throw new IllegalArgumentException("Need a positive size limit and a non-negative file count.");
+		}
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.keep = keep;
+		this.out = new FileOutputStream(file, true);
+		this.size = file.length();
+	}
+	
+	/**
+	 * The current log file.
+	 * @return The file being written.
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+	
+	/**
+	 * A rolled-over log file.
+	 * @param generation 1 for the newest rolled-over file, up to the number kept; 0 for the current file.
+	 * @return The file, which may not exist.
+	 */
+	public File getFile(final int generation)
+	{
+		return generation==0?file:new File(file.getPath() + "." + generation);
+	}
+	
+	/**
+	 * Set the bytes written at the start of each file started by a rollover, or by truncation. 
+	 * They count towards the size limit. The current file is left as it is.
+	 * @param header The header; empty for none, which is the default.
+	 */
+	public synchronized void setHeader(final byte[] header)
+	{
+		this.header = header.clone();
+	}
+	
+	@Override
+	public synchronized void write(final int b) throws IOException
+	{
+		write(new byte[] {(byte)b}, 0, 1);
+	}
+	
+	@Override
+	public synchronized void write(final byte[] b, final int off, final int len) throws IOException
+	{
+		if(size > 0 && size + len > maxBytes)
+		{
+			rotate();
+		}
+		out.write(b, off, len);
+		size += len;
+	}
+	
+	/**
+	 * Roll the log over and start an empty file.
+	 * @throws IOException A file could not be renamed, deleted or opened.
+	 */
+	private void rotate() throws IOException
+	{
+		out.close();
+		if(keep > 0)
+		{
+			final File oldest = getFile(keep);
+			if(oldest.exists() && !oldest.delete())
+			{
+				throw new IOException("Could not delete " + oldest);
+			}
+			for(int i = keep - 1; i >= 0; i--)
+			{
+				final File from = getFile(i);
+				if(from.exists() && !from.renameTo(getFile(i + 1)))
+				{
+					throw new IOException("Could not rename " + from);
+				}
+			}
+		}
+		out = new FileOutputStream(file, false);
+		size = 0;
+		if(header.length > 0)
+		{
+			out.write(header);
+			size = header.length;
+		}
+	}
+	
+	@Override
+	public synchronized void flush() throws IOException
+	{
+		out.flush();
+	}
+	
+	@Override
+	public synchronized void close() throws IOException
+	{
+		out.close();
+	}
+}
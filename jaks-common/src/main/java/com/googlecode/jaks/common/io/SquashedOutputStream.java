@@ -29,4 +29,14 @@ public class SquashedOutputStream extends OutputStream
 	public void write(final int b) throws IOException 
 	{
 	}
+	
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException 
+	{
+	}
+	
+	@Override
+	public void write(final byte[] b) throws IOException 
+	{
+	}
 }
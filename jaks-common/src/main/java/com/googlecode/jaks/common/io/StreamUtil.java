@@ -16,12 +16,9 @@
  */
 package com.googlecode.jaks.common.io;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -29,6 +26,8 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 
 /**
@@ -37,8 +36,6 @@ import java.nio.charset.Charset;
  */
 public final class StreamUtil 
 {
-	private static final int BUFFER_SIZE = 4096;
-	
 	/** Literally 'UTF-8'; for use with methods that take a char-set encoding value. */
 	public static final String UTF8 = "UTF-8";
 	/** Literally 'US-ASCII'; for use with methods that take a char-set encoding value. */
@@ -55,8 +52,8 @@ public final class StreamUtil
 	
 	/**
 	 * Transfer all the characters from the {@code source} to the {@code target}, calling the {@code close()}
-	 * method for both on exit. Source is wrapped in a {@link BufferedReader};
-	 * target is wrapped in a {@link BufferedWriter}.
+	 * method for both on exit. The characters are copied through a buffer from the 
+	 * {@linkplain BufferPool#DEFAULT shared pool}; neither end is wrapped.
 	 * @param source The source character stream.
 	 * @param target The target character stream.
 	 * @throws IOException See {@link IOException}.
@@ -65,13 +62,13 @@ public final class StreamUtil
 	 */
 	public static void transfer(final Reader source, final Writer target) throws IOException
 	{
+		final char[] cbuf = BufferPool.DEFAULT.acquireChars();
 		try
 		(
-			Reader in = new BufferedReader(source, BUFFER_SIZE);
-			Writer out = new BufferedWriter(target, BUFFER_SIZE);
+			final Reader in = source;
+			final Writer out = target;
 		)
 		{
-			final char[] cbuf = new char[BUFFER_SIZE];
 			for(;;)
 			{
 				final int len = in.read(cbuf);
@@ -82,12 +79,22 @@ public final class StreamUtil
 				out.write(cbuf, 0, len);
 			}
 		}
+		finally
+		{
+			BufferPool.DEFAULT.release(cbuf);
+		}
 	}
 	
 	/**
 	 * Transfer all the bytes from the {@code source} to the {@code target}, calling the {@code close()}
-	 * method for both on exit. Source is wrapped in a {@link BufferedInputStream};
-	 * target is wrapped in a {@link BufferedOutputStream}.
+	 * method for both on exit. From a {@link FileInputStream} to a {@link FileOutputStream}, the
+	 * bytes the source file reports holding are moved by 
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which the 
+	 * operating system may carry out without copying them through the JVM at all; anything past
+	 * that, from a file that grew or one that reports no size, such as a FIFO or a file under 
+	 * <tt>/proc</tt>, is copied until end of file. From a {@link ByteArrayInputStream}, the bytes 
+	 * are written in one call. Otherwise they are copied through a single buffer from the 
+	 * {@linkplain BufferPool#DEFAULT shared pool}; neither end is wrapped.
 	 * @param source The source byte stream.
 	 * @param target The target byte stream.
 	 * @throws IOException See {@link IOException}.
@@ -98,21 +105,62 @@ public final class StreamUtil
 	{
 		try
 		(
-			final InputStream in = new BufferedInputStream(source, BUFFER_SIZE);
-			final OutputStream out = new BufferedOutputStream(target, BUFFER_SIZE);
+			final InputStream in = source;
+			final OutputStream out = target;
 		)
 		{
-			final byte[] buf = new byte[BUFFER_SIZE];
-			for(;;)
+			if(in instanceof ByteArrayInputStream)
 			{
-				final int len = in.read(buf);
-				if(len == -1)
+				in.transferTo(out);
+				return;
+			}
+			if(in instanceof FileInputStream && out instanceof FileOutputStream)
+			{
+				//The streams share their positions with the channels, so the copy below carries on from here.
+				transfer(((FileInputStream)in).getChannel(), ((FileOutputStream)out).getChannel());
+			}
+			final byte[] buf = BufferPool.DEFAULT.acquireBytes();
+			try
+			{
+				for(;;)
 				{
-					break;
+					final int len = in.read(buf);
+					if(len == -1)
+					{
+						break;
+					}
+					out.write(buf, 0, len);
 				}
-				out.write(buf, 0, len);
 			}
+			finally
+			{
+				BufferPool.DEFAULT.release(buf);
+			}
+		}
+	}
+	
+	/**
+	 * Move the part of a file before its reported size to another, leaving both positioned after
+	 * the bytes moved. A file that reports no size, such as a FIFO or a file under <tt>/proc</tt>,
+	 * is left alone, and a file that grows is moved up to its size when this started.
+	 * @param source The source file, read from its current position.
+	 * @param target The target file, written at its current position.
+	 * @throws IOException See {@link IOException}.
+	 */
+	private static void transfer(final FileChannel source, final FileChannel target) throws IOException
+	{
+		long position = source.position();
+		final long end = source.size();
+		while(position < end)
+		{
+			final long count = source.transferTo(position, end - position, target);
+			if(count <= 0)
+			{
+				break;
+			}
+			position += count;
 		}
+		source.position(position);
 	}
 	
 	/**
@@ -154,17 +202,79 @@ public final class StreamUtil
 	}
 	
 	/**
-	 * Read all the bytes from an {@link InputStream} into an array of bytes.
+	 * Read all the bytes from an {@link InputStream} into an array of bytes, closing it.
 	 * @param source The source input stream.
 	 * @return The byte array.
 	 * @throws IOException See {@link IOException}.
+	 * @see #readBytes(InputStream, long)
 	 */
 	public static byte[] readBytes(final InputStream source) throws IOException
 	{
-		try(final ByteArrayOutputStream target = new ByteArrayOutputStream())
+		return readBytes(source, -1);
+	}
+	
+	/**
+	 * Read all the bytes from an {@link InputStream} into an array of bytes, closing it. The 
+	 * bytes are read straight into an array of the expected size, and when the guess is right,
+	 * that array is returned as it is. Otherwise they overflow into further chunks, which are 
+	 * assembled once at the end.
+	 * @param source The source input stream.
+	 * @param sizeHint The expected size, or -1 to take the rest of the file for a 
+	 *        {@link FileInputStream}, or else what is {@linkplain InputStream#available() available}.
+	 * @return The byte array.
+	 * @throws IOException See {@link IOException}.
+	 * @see ChunkedOutputStream
+	 */
+	public static byte[] readBytes(final InputStream source, final long sizeHint) throws IOException
+	{
+		return read(source, sizeHint).toByteArray();
+	}
+	
+	/**
+	 * Read all the bytes from an {@link InputStream} into a buffer, closing it. This is 
+	 * {@link #readBytes(InputStream, long)} without the final copy: if the data fits the first 
+	 * chunk, the buffer is a view of it, even when the guess was too large.
+	 * @param source The source input stream.
+	 * @param sizeHint The expected size, or -1 to estimate it; see {@link #readBytes(InputStream, long)}.
+	 * @return The data, positioned at zero.
+	 * @throws IOException See {@link IOException}.
+	 */
+	public static ByteBuffer readByteBuffer(final InputStream source, final long sizeHint) throws IOException
+	{
+		return read(source, sizeHint).toByteBuffer();
+	}
+	
+	/**
+	 * Read a stream into chunks, closing it.
+	 * @param source The source input stream.
+	 * @param sizeHint The expected size, or -1 to estimate it.
+	 * @return The data.
+	 * @throws IOException See {@link IOException}.
+	 */
+	private static ChunkedOutputStream read(final InputStream source, final long sizeHint) throws IOException
+	{
+		try(final InputStream in = source)
+		{
+			final ChunkedOutputStream target = new ChunkedOutputStream(sizeHint>=0?sizeHint:estimateSize(in));
+			target.readFrom(in);
+			return target;
+		}
+	}
+	
+	/**
+	 * Guess how many bytes are left in a stream.
+	 * @param source The stream.
+	 * @return The rest of the file for a {@link FileInputStream}, or else the bytes available 
+	 *         without blocking, which may be zero.
+	 * @throws IOException See {@link IOException}.
+	 */
+	private static long estimateSize(final InputStream source) throws IOException
+	{
+		if(source instanceof FileInputStream)
 		{
-			transfer(source, target);
-			return target.toByteArray();
+			final FileChannel channel = ((FileInputStream)source).getChannel();
+			return Math.max(0, channel.size() - channel.position());
 		}
+		return source.available();
 	}
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Aggregates an {@link OutputStream}, serializing every call so that several threads can
+ * write to it at once. Each call to {@link #write(byte[], int, int)} reaches the wrapped 
+ * stream in one piece.
+ * @author Jason Smith
+ */
+public class SynchronizedOutputStream extends OutputStream
+{
+	private final OutputStream out;
+	
+	/**
+	 * Constructor.
+	 * @param out The {@link OutputStream} to wrap.
+	 */
+	public SynchronizedOutputStream(final OutputStream out)
+	{
+		this.out = out;
+	}
+	
+	@Override
+	public synchronized void write(final int b) throws IOException 
+	{
+		out.write(b);
+	}
+
+	@Override
+	public synchronized void close() throws IOException 
+	{
+		out.close();
+	}
+
+	@Override
+	public synchronized void flush() throws IOException 
+	{
+		out.flush();
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException 
+	{
+		out.write(b, off, len);
+	}
+
+	@Override
+	public synchronized void write(byte[] b) throws IOException 
+	{
+		out.write(b);
+	}
+}
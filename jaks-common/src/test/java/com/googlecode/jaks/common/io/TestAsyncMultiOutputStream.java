@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.googlecode.jaks.common.io.AsyncMultiOutputStream.Backpressure;
+import com.googlecode.jaks.common.io.AsyncMultiOutputStream.ErrorPolicy;
+
+/**
+ * Tests for {@link AsyncMultiOutputStream}.
+ * @author Jason Smith
+ */
+public class TestAsyncMultiOutputStream extends Assert
+{
+	/**
+	 * Verify that the primary stream and every sink see the same bytes, across many buffers.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testFanOut() throws Exception
+	{
+		final byte[] data = new byte[1000000];
+		new Random(42).nextBytes(data);
+		final ByteArrayOutputStream primary = new ByteArrayOutputStream();
+		final ByteArrayOutputStream first = new ByteArrayOutputStream();
+		final ByteArrayOutputStream second = new ByteArrayOutputStream();
+		try(final AsyncMultiOutputStream out = new AsyncMultiOutputStream(primary).addSink(first).addSink(second))
+		{
+			out.write(data[0]);
+			for(int i=1; i<data.length; i+=7919)
+			{
+				out.write(data, i, Math.min(7919, data.length - i));
+			}
+		}
+		assertArrayEquals("Primary differs.", data, primary.toByteArray());
+		assertArrayEquals("First sink differs.", data, first.toByteArray());
+		assertArrayEquals("Second sink differs.", data, second.toByteArray());
+	}
+	
+	/**
+	 * Verify that a stalled sink with {@link Backpressure#DROP} does not hold up the writer, and 
+	 * that what it missed is counted.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testDrop() throws Exception
+	{
+		final CountDownLatch stall = new CountDownLatch(1);
+		final OutputStream slow = new OutputStream()
+		{
+			@Override
+			public void write(final int b) throws IOException
+			{
+			}
+			
+			@Override
+			public void write(final byte[] b, final int off, final int len) throws IOException
+			{
+				try
+				{
+					stall.await();
+				}
+				catch(final InterruptedException e)
+				{
+					throw new IOException(e);
+				}
+			}
+		};
+		final ByteArrayOutputStream fast = new ByteArrayOutputStream();
+		final byte[] data = new byte[10000000];
+		final AsyncMultiOutputStream out = new AsyncMultiOutputStream(null)
+				.addSink(fast)
+				.addSink(slow, 1, Backpressure.DROP, ErrorPolicy.FAIL);
+		out.write(data);
+		out.flush();
+		assertTrue("Nothing was dropped.", out.getDroppedCount() > 0);
+		stall.countDown();
+		out.close();
+		assertEquals("Fast sink missed data.", data.length, fast.size());
+	}
+	
+	/**
+	 * Verify that a failing sink fails the stream, unless it is to be detached.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testErrors() throws Exception
+	{
+		final OutputStream broken = new OutputStream()
+		{
+			@Override
+			public void write(final int b) throws IOException
+			{
+				throw new IOException("broken");
+			}
+		};
+		final ByteArrayOutputStream good = new ByteArrayOutputStream();
+		try(final AsyncMultiOutputStream out = new AsyncMultiOutputStream(good).addSink(broken, 4, Backpressure.BLOCK, ErrorPolicy.DETACH))
+		{
+			out.write(new byte[1000000]);
+			out.flush();
+		}
+		assertEquals("Primary missed data.", 1000000, good.size());
+		
+		final AsyncMultiOutputStream out = new AsyncMultiOutputStream(null).addSink(broken);
+		out.write(new byte[1000000]);
+		try
+		{
+			out.close();
+			fail("Expected the sink's failure.");
+		}
+		catch(final IOException e)
+		{
+			assertEquals("Unexpected cause.", "broken", e.getCause().getMessage());
+		}
+		assertEquals("Unexpected errors.", 1, out.getErrors().size());
+	}
+	
+	/**
+	 * Verify that a sink throwing an {@link Error} is failed or detached like any other, and 
+	 * never leaves a blocked writer waiting.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test(timeout=30000)
+	public void testSinkError() throws Exception
+	{
+		final OutputStream asserting = new OutputStream()
+		{
+			@Override
+			public void write(final int b) throws IOException
+			{
+				throw new AssertionError("asserting");
+			}
+		};
+		final byte[] data = new byte[10000000];
+		
+		final AsyncMultiOutputStream failing = new AsyncMultiOutputStream(null).addSink(asserting, 1, Backpressure.BLOCK, ErrorPolicy.FAIL);
+		try
+		{
+			for(int i=0; i<10; ++i)
+			{
+				failing.write(data);
+			}
+			failing.close();
+			fail("Expected the sink's failure.");
+		}
+		catch(final IOException e)
+		{
+			assertTrue("Unexpected cause: " + e.getCause(), e.getCause() instanceof AssertionError);
+		}
+		
+		final ByteArrayOutputStream good = new ByteArrayOutputStream();
+		try(final AsyncMultiOutputStream detaching = new AsyncMultiOutputStream(null)
+				.addSink(asserting, 1, Backpressure.BLOCK, ErrorPolicy.DETACH)
+				.addSink(good))
+		{
+			detaching.write(data);
+			detaching.write(data);
+		}
+		assertEquals("Healthy sink missed data.", 2 * data.length, good.size());
+	}
+}
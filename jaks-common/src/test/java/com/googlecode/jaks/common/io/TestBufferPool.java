@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link BufferPool}.
+ * @author Jason Smith
+ */
+public class TestBufferPool extends Assert
+{
+	/**
+	 * Verify that released buffers are handed out again, and that an empty pool allocates.
+	 */
+	@Test
+	public void testReuse()
+	{
+		final BufferPool pool = new BufferPool(100, 4);
+		final byte[] first = pool.acquireBytes();
+		assertEquals("Unexpected size.", 100, first.length);
+		assertEquals("Expected an allocation.", 1, pool.getAllocatedCount());
+		assertEquals("Expected no reuse.", 0, pool.getReusedCount());
+		
+		pool.release(first);
+		assertSame("Expected the released buffer.", first, pool.acquireBytes());
+		assertEquals("Expected no further allocation.", 1, pool.getAllocatedCount());
+		assertEquals("Expected a reuse.", 1, pool.getReusedCount());
+		
+		assertNotSame("Expected a new buffer while the first is out.", first, pool.acquireBytes());
+		assertEquals("Expected a second allocation.", 2, pool.getAllocatedCount());
+		
+		pool.release((byte[])null);
+		assertEquals("Expected null to be ignored.", 0, pool.getDroppedCount());
+	}
+	
+	/**
+	 * Verify that at most the retention limit is kept, and the rest are dropped.
+	 */
+	@Test
+	public void testRetention()
+	{
+		final BufferPool pool = new BufferPool(100, 3);
+		final List<char[]> out = new ArrayList<char[]>();
+		for(int i = 0; i < 5; i++)
+		{
+			out.add(pool.acquireChars());
+		}
+		for(final char[] buffer : out)
+		{
+			pool.release(buffer);
+		}
+		assertEquals("Expected the surplus to be dropped.", 2, pool.getDroppedCount());
+		
+		final Set<char[]> again = Collections.newSetFromMap(new ConcurrentHashMap<char[], Boolean>());
+		for(int i = 0; i < 5; i++)
+		{
+			again.add(pool.acquireChars());
+		}
+		assertEquals("Expected only the retained buffers back.", 3, pool.getReusedCount());
+		assertEquals("Unexpected allocation count.", 7, pool.getAllocatedCount());
+		assertEquals("Expected distinct buffers.", 5, again.size());
+	}
+	
+	/**
+	 * Verify that buffers of the wrong size or kind are not taken in, and that the kinds are 
+	 * pooled separately.
+	 */
+	@Test
+	public void testWrongBuffers()
+	{
+		final BufferPool pool = new BufferPool(100, 4);
+		pool.release(new byte[99]);
+		pool.release(new char[101]);
+		pool.release(ByteBuffer.allocate(100));
+		pool.release(ByteBuffer.allocateDirect(50));
+		assertEquals("Unexpected byte buffer size.", 100, pool.acquireBytes().length);
+		assertEquals("Unexpected char buffer size.", 100, pool.acquireChars().length);
+		final ByteBuffer direct = pool.acquireDirect();
+		assertTrue("Expected a direct buffer.", direct.isDirect());
+		assertEquals("Unexpected capacity.", 100, direct.capacity());
+		assertEquals("Expected nothing to be reused.", 0, pool.getReusedCount());
+		
+		direct.position(10).limit(20);
+		pool.release(direct);
+		pool.release(new byte[100]);
+		final ByteBuffer again = pool.acquireDirect();
+		assertSame("Expected the released direct buffer.", direct, again);
+		assertEquals("Expected a cleared buffer.", 0, again.position());
+		assertEquals("Expected a cleared buffer.", 100, again.limit());
+		assertEquals("Expected the heap buffer to stay in its own pool.", 1, pool.getReusedCount());
+	}
+	
+	/**
+	 * Verify that many threads acquiring and releasing at once are never handed a buffer that
+	 * another holds.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test(timeout=60000)
+	public void testConcurrent() throws Exception
+	{
+		final BufferPool pool = new BufferPool(16, 4);
+		final Set<byte[]> held = Collections.newSetFromMap(new ConcurrentHashMap<byte[], Boolean>());
+		final int threads = 8;
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			final List<Future<?>> results = new ArrayList<Future<?>>();
+			for(int t = 0; t < threads; t++)
+			{
+				final byte mark = (byte)t;
+				results.add(executor.submit(() -> 
+				{
+					ready.countDown();
+					ready.await();
+					for(int i = 0; i < 20000; i++)
+					{
+						final byte[] buffer = pool.acquireBytes();
+						assertTrue("Buffer handed out twice.", held.add(buffer));
+						buffer[0] = mark;
+						Thread.yield();
+						assertEquals("Buffer changed while held.", mark, buffer[0]);
+						held.remove(buffer);
+						pool.release(buffer);
+					}
+					return null;
+				}));
+			}
+			for(final Future<?> result : results)
+			{
+				result.get();
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		assertEquals("Unexpected acquire count.", threads * 20000L, pool.getAllocatedCount() + pool.getReusedCount());
+		assertTrue("Expected most buffers to be reused.", pool.getReusedCount() > pool.getAllocatedCount());
+	}
+}
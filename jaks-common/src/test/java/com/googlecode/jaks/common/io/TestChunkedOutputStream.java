@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ChunkedOutputStream}.
+ * @author Jason Smith
+ */
+public class TestChunkedOutputStream extends Assert
+{
+	/**
+	 * Verify that data filling the first chunk exactly is returned without a copy.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testExactHint() throws Exception
+	{
+		final byte[] data = random(1000);
+		final ChunkedOutputStream out = new ChunkedOutputStream(data.length);
+		out.write(data, 0, 400);
+		out.write(data, 400, 600);
+		
+		final byte[] bytes = out.toByteArray();
+		assertArrayEquals("Unexpected data.", data, bytes);
+		assertSame("Expected the chunk itself.", bytes, out.toByteArray());
+	}
+	
+	/**
+	 * Verify that data larger than the first chunk overflows into further chunks, in order, 
+	 * including writes larger than {@link ChunkedOutputStream#MAX_CHUNK}.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testSmallHint() throws Exception
+	{
+		final byte[] data = random(3 * ChunkedOutputStream.MAX_CHUNK + 17);
+		final ChunkedOutputStream out = new ChunkedOutputStream(10);
+		out.write(data[0]);
+		out.write(data, 1, 20);
+		out.write(data, 21, data.length - 21);
+		
+		assertEquals("Unexpected size.", data.length, out.size());
+		assertArrayEquals("Unexpected array.", data, out.toByteArray());
+		assertEquals("Unexpected buffer.", ByteBuffer.wrap(data), out.toByteBuffer());
+		
+		final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		out.writeTo(copy);
+		assertArrayEquals("Unexpected copy.", data, copy.toByteArray());
+	}
+	
+	/**
+	 * Verify that a first chunk larger than the data is trimmed in the array, but not copied for 
+	 * the buffer, which is a view of the chunk.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testLargeHint() throws Exception
+	{
+		final byte[] data = random(100);
+		final ChunkedOutputStream out = new ChunkedOutputStream(1000);
+		out.write(data);
+		
+		assertArrayEquals("Unexpected array.", data, out.toByteArray());
+		
+		final ByteBuffer buffer = out.toByteBuffer();
+		assertEquals("Expected a buffer at zero.", 0, buffer.position());
+		assertEquals("Unexpected buffer.", ByteBuffer.wrap(data), buffer);
+		assertEquals("Expected a view of the whole chunk.", 1000, buffer.array().length);
+		buffer.put(0, (byte)(data[0] + 1));
+		assertEquals("Expected the buffer to share the chunk.", (byte)(data[0] + 1), out.toByteArray()[0]);
+		assertEquals("Expected the view to end at the data.", 100, buffer.limit());
+	}
+	
+	/**
+	 * Verify that {@link ChunkedOutputStream#readFrom(InputStream)} fills the first chunk exactly
+	 * without starting another, and carries on across chunks from a stream that returns little 
+	 * at a time.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testReadFrom() throws Exception
+	{
+		final byte[] data = random(ChunkedOutputStream.DEFAULT_CHUNK);
+		ChunkedOutputStream out = new ChunkedOutputStream(data.length);
+		assertEquals("Unexpected count.", data.length, out.readFrom(new ByteArrayInputStream(data)));
+		final byte[] bytes = out.toByteArray();
+		assertArrayEquals("Unexpected data.", data, bytes);
+		assertSame("Expected no chunk past the boundary.", bytes, out.toByteArray());
+		
+		final byte[] more = random(5 * ChunkedOutputStream.DEFAULT_CHUNK + 1);
+		out = new ChunkedOutputStream(ChunkedOutputStream.DEFAULT_CHUNK);
+		assertEquals("Unexpected count.", more.length, out.readFrom(trickle(more, 1000)));
+		assertArrayEquals("Unexpected data.", more, out.toByteArray());
+		
+		out = new ChunkedOutputStream(1);
+		assertEquals("Unexpected count.", 2, out.readFrom(new ByteArrayInputStream(new byte[] {1, 2})));
+		assertArrayEquals("Unexpected data.", new byte[] {1, 2}, out.toByteArray());
+	}
+	
+	/**
+	 * Verify that a reset forgets the data and reuses the first chunk.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testReset() throws Exception
+	{
+		final ChunkedOutputStream out = new ChunkedOutputStream(4);
+		out.write(random(100));
+		out.reset();
+		assertEquals("Expected no data.", 0, out.size());
+		assertEquals("Expected no data.", 0, out.toByteArray().length);
+		
+		final Charset utf8 = Charset.forName(StreamUtil.UTF8);
+		out.write("abcd".getBytes(utf8));
+		assertEquals("Unexpected text.", "abcd", out.toString(utf8));
+		final byte[] bytes = out.toByteArray();
+		assertSame("Expected the first chunk to be reused.", bytes, out.toByteArray());
+	}
+	
+	/**
+	 * Random bytes.
+	 * @param size The number of bytes.
+	 * @return The bytes.
+	 */
+	private static byte[] random(final int size)
+	{
+		final byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * A stream that returns at most a few bytes from each read.
+	 * @param data The data.
+	 * @param most The most bytes from one read.
+	 * @return The stream.
+	 */
+	private static InputStream trickle(final byte[] data, final int most)
+	{
+		return new ByteArrayInputStream(data)
+			{
+				@Override
+				public synchronized int read(final byte[] b, final int off, final int len)
+				{
+					return super.read(b, off, Math.min(len, most));
+				}
+			};
+	}
+}
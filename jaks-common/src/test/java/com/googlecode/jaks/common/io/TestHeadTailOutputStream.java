@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link HeadTailOutputStream}.
+ * @author Jason Smith
+ */
+public class TestHeadTailOutputStream extends Assert
+{
+	/**
+	 * Verify that the head and tail are kept exactly, as the buffers grow and wrap, for writes of 
+	 * every size.
+	 */
+	@Test
+	public void testHeadAndTail()
+	{
+		final Random random = new Random(3);
+		for(final int[] limits : new int[][] {{0, 0}, {0, 100}, {100, 0}, {1000, 300}, {100000, 5000}})
+		{
+			final HeadTailOutputStream out = new HeadTailOutputStream(limits[0], limits[1]);
+			final ByteArrayOutputStream all = new ByteArrayOutputStream();
+			assertEquals("Expected nothing kept.", 0, out.toByteArray().length);
+			for(int i = 0; i < 200; i++)
+			{
+				final byte[] b = new byte[random.nextInt(i % 10 == 0 ? 3000 : 50)];
+				random.nextBytes(b);
+				if(b.length == 1)
+				{
+					out.write(b[0]);
+				}
+				else
+				{
+					out.write(b);
+				}
+				all.write(b, 0, b.length);
+				
+				final byte[] data = all.toByteArray();
+				final int head = Math.min(data.length, limits[0]);
+				final int tail = Math.min(data.length - head, limits[1]);
+				final byte[] expected = new byte[head + tail];
+				System.arraycopy(data, 0, expected, 0, head);
+				System.arraycopy(data, data.length - tail, expected, head, tail);
+				assertArrayEquals("Unexpected bytes for limits " + Arrays.toString(limits) + ".", expected, out.toByteArray());
+				assertEquals("Unexpected count.", data.length, out.getCount());
+				assertEquals("Unexpected omitted count.", data.length - head - tail, out.getOmitted());
+			}
+		}
+	}
+	
+	/**
+	 * Verify that the text marks where bytes were omitted.
+	 */
+	@Test
+	public void testToString()
+	{
+		final Charset ascii = Charset.forName(StreamUtil.US_ASCII);
+		final HeadTailOutputStream out = new HeadTailOutputStream(5, 5);
+		out.write("hello".getBytes(ascii));
+		assertEquals("Unexpected text.", "hello", out.toString(ascii));
+		out.write("-cruel-world".getBytes(ascii));
+		assertEquals("Unexpected text.", "hello\n[... 7 bytes omitted ...]\nworld", out.toString(ascii));
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MultiDigestOutputStream}.
+ * @author Jason Smith
+ */
+public class TestMultiDigestOutputStream extends Assert
+{
+	/**
+	 * Verify that the stream, the memory-mapped file path and {@link DigestOutputStream} agree, 
+	 * for writes both above and below the parallel threshold.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testDigests() throws Exception
+	{
+		final byte[] data = new byte[3 * MultiDigestOutputStream.PARALLEL_THRESHOLD + 17];
+		new Random(7).nextBytes(data);
+		final String[] algorithms = {DigestOutputStream.MD5, DigestOutputStream.SHA1, DigestOutputStream.SHA256};
+		
+		final MultiDigestOutputStream multi = new MultiDigestOutputStream(algorithms);
+		multi.write(data[0]);
+		multi.write(data, 1, 100);
+		multi.write(data, 101, data.length - 101);
+		
+		final File file = File.createTempFile("digest", ".bin");
+		try
+		{
+			Files.write(file.toPath(), data);
+			final Map<String,byte[]> mapped = MultiDigestOutputStream.digest(file.toPath(), algorithms);
+			for(final String algorithm : algorithms)
+			{
+				final DigestOutputStream single = new DigestOutputStream(algorithm);
+				single.write(data);
+				assertEquals("Stream differs for " + algorithm + ".", single.getDigestString(), multi.getDigestString(algorithm));
+				assertArrayEquals("Mapped file differs for " + algorithm + ".", single.getDigest(), mapped.get(algorithm));
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+		
+		final DigestOutputStream empty = new DigestOutputStream(DigestOutputStream.MD5);
+		assertEquals("Unexpected hex.", "d41d8cd98f00b204e9800998ecf8427e", empty.getDigestString());
+	}
+	
+	/**
+	 * Verify that the parallel path, forced on even on a single core, gives the same digests as 
+	 * the serial path, and that writing after close fails like any other closed stream.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testParallel() throws Exception
+	{
+		final byte[] data = new byte[5 * MultiDigestOutputStream.PARALLEL_THRESHOLD + 3];
+		new Random(11).nextBytes(data);
+		final String[] algorithms = {DigestOutputStream.MD5, DigestOutputStream.SHA1, DigestOutputStream.SHA256, "SHA-512"};
+		
+		final MultiDigestOutputStream parallel = new MultiDigestOutputStream(true, algorithms);
+		final MultiDigestOutputStream serial = new MultiDigestOutputStream(false, algorithms);
+		for(int off=0; off<data.length; off+=2*MultiDigestOutputStream.PARALLEL_THRESHOLD)
+		{
+			final int len = Math.min(2*MultiDigestOutputStream.PARALLEL_THRESHOLD, data.length - off);
+			parallel.write(data, off, len);
+			serial.write(data, off, len);
+		}
+		
+		final File file = File.createTempFile("digest", ".bin");
+		try
+		{
+			Files.write(file.toPath(), data);
+			final Map<String,byte[]> mapped = MultiDigestOutputStream.digest(file.toPath(), true, algorithms);
+			for(final String algorithm : algorithms)
+			{
+				assertArrayEquals("Parallel stream differs for " + algorithm + ".", serial.getDigest(algorithm), parallel.getDigest(algorithm));
+				assertArrayEquals("Parallel mapping differs for " + algorithm + ".", serial.getDigest(algorithm), mapped.get(algorithm));
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+		
+		try
+		{
+			parallel.write(data);
+			fail("Expected an IOException.");
+		}
+		catch(final IOException e)
+		{
+			assertEquals("Unexpected message.", "Stream closed.", e.getMessage());
+		}
+	}
+}
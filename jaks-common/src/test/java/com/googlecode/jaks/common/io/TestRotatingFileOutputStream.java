@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RotatingFileOutputStream}.
+ * @author Jason Smith
+ */
+public class TestRotatingFileOutputStream extends Assert
+{
+	/**
+	 * Verify that files roll over at the size limit, newest first, that only {@code keep} of them
+	 * are kept, and that a write is never split across two files.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testKeep() throws Exception
+	{
+		final File file = File.createTempFile("rotating", ".log");
+		try(final RotatingFileOutputStream out = new RotatingFileOutputStream(file, 10, 2))
+		{
+			for(final String record : new String[] {"aaaa", "bbbb", "cccc", "dddd", "eeeeeeeeeeeeeeee", "ffff", "gggg"})
+			{
+				out.write(record.getBytes(StreamUtil.US_ASCII));
+			}
+			out.flush();
+			assertEquals("Unexpected current file.", "ffffgggg", read(out.getFile()));
+			assertEquals("Expected an oversized write to stay whole.", "eeeeeeeeeeeeeeee", read(out.getFile(1)));
+			assertEquals("Unexpected oldest file.", "ccccdddd", read(out.getFile(2)));
+			assertFalse("Expected no more than two rolled-over files.", out.getFile(3).exists());
+		}
+		finally
+		{
+			delete(file, 3);
+		}
+	}
+	
+	/**
+	 * Verify that with nothing to keep the file is truncated at the limit, and that an existing
+	 * file is appended to.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testTruncate() throws Exception
+	{
+		final File file = File.createTempFile("rotating", ".log");
+		try
+		{
+			Files.write(file.toPath(), "zz".getBytes(StreamUtil.US_ASCII));
+			try(final RotatingFileOutputStream out = new RotatingFileOutputStream(file, 10, 0))
+			{
+				out.write("aaaa".getBytes(StreamUtil.US_ASCII));
+				assertEquals("Expected the existing file to be appended to.", "zzaaaa", read(file));
+				out.write("bbbb".getBytes(StreamUtil.US_ASCII));
+				out.write("cccc".getBytes(StreamUtil.US_ASCII));
+				out.write('d');
+				assertEquals("Unexpected file.", "ccccd", read(file));
+				assertFalse("Expected no rolled-over file.", out.getFile(1).exists());
+			}
+		}
+		finally
+		{
+			delete(file, 1);
+		}
+	}
+	
+	/**
+	 * Verify that every file started by a rollover or a truncation begins with the header, which
+	 * counts towards the limit.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testHeader() throws Exception
+	{
+		final File file = File.createTempFile("rotating", ".log");
+		try
+		{
+			try(final RotatingFileOutputStream out = new RotatingFileOutputStream(file, 10, 1))
+			{
+				out.setHeader("#\n".getBytes(StreamUtil.US_ASCII));
+				for(final String record : new String[] {"aaaa", "bbbb", "cccc", "dddd", "eeee"})
+				{
+					out.write(record.getBytes(StreamUtil.US_ASCII));
+				}
+				assertEquals("Unexpected current file.", "#\neeee", read(out.getFile()));
+				assertEquals("Unexpected older file.", "#\nccccdddd", read(out.getFile(1)));
+			}
+			try(final RotatingFileOutputStream out = new RotatingFileOutputStream(file, 10, 0))
+			{
+				out.setHeader("#\n".getBytes(StreamUtil.US_ASCII));
+				out.write("ffff".getBytes(StreamUtil.US_ASCII));
+				assertEquals("Expected the header only after truncation.", "#\neeeeffff", read(file));
+				out.write("gggg".getBytes(StreamUtil.US_ASCII));
+				assertEquals("Unexpected truncated file.", "#\ngggg", read(file));
+			}
+		}
+		finally
+		{
+			delete(file, 1);
+		}
+	}
+	
+	/**
+	 * Read a file as ASCII.
+	 * @param file The file.
+	 * @return The content.
+	 * @throws Exception See {@link Exception}.
+	 */
+	private static String read(final File file) throws Exception
+	{
+		return new String(Files.readAllBytes(file.toPath()), StreamUtil.US_ASCII);
+	}
+	
+	/**
+	 * Delete a log file and its rolled-over files.
+	 * @param file The current file.
+	 * @param keep The most rolled-over files.
+	 */
+	private static void delete(final File file, final int keep)
+	{
+		for(int i = 0; i <= keep; i++)
+		{
+			new File(i==0?file.getPath():file.getPath() + "." + i).delete();
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.common.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.lang.SystemUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link StreamUtil}.
+ * @author Jason Smith
+ */
+public class TestStreamUtil extends Assert
+{
+	/**
+	 * Verify that a file-to-file transfer copies a source that reports a size of zero, and
+	 * carries on from where the source stream was left.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testTransferFromUnsizedFile() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS) return;
+		
+		final File source = new File("/proc/self/cmdline");
+		assertEquals("Expected /proc to report no size.", 0, source.length());
+		final byte[] expected = StreamUtil.readBytes(new FileInputStream(source));
+		assertTrue("Expected /proc content.", expected.length > 0);
+		
+		final File target = File.createTempFile("transfer", ".bin");
+		try
+		{
+			final FileInputStream in = new FileInputStream(source);
+			in.read();
+			final FileOutputStream out = new FileOutputStream(target);
+			out.write(expected[0]);
+			StreamUtil.transfer(in, out);
+			assertArrayEquals("Copy differs.", expected, Files.readAllBytes(target.toPath()));
+		}
+		finally
+		{
+			target.delete();
+		}
+	}
+	
+	/**
+	 * Verify that a regular file is copied to another by the channel transfer from wherever the 
+	 * source stream was left, after what the target already holds, and that both streams are 
+	 * closed.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testTransferFile() throws Exception
+	{
+		final byte[] data = new byte[3 * BufferPool.DEFAULT_BUFFER_SIZE + 123];
+		new Random(4).nextBytes(data);
+		final File source = File.createTempFile("transfer", ".bin");
+		final File target = File.createTempFile("transfer", ".bin");
+		try
+		{
+			Files.write(source.toPath(), data);
+			final int skip = BufferPool.DEFAULT_BUFFER_SIZE + 7;
+			final FileInputStream in = new FileInputStream(source);
+			assertEquals("Unexpected skip.", skip, in.skip(skip));
+			final FileOutputStream out = new FileOutputStream(target);
+			out.write(data, 0, 5);
+			StreamUtil.transfer(in, out);
+			
+			final byte[] expected = new byte[5 + data.length - skip];
+			System.arraycopy(data, 0, expected, 0, 5);
+			System.arraycopy(data, skip, expected, 5, data.length - skip);
+			assertArrayEquals("Copy differs.", expected, Files.readAllBytes(target.toPath()));
+			assertFalse("Expected the source to be closed.", in.getChannel().isOpen());
+			assertFalse("Expected the target to be closed.", out.getChannel().isOpen());
+		}
+		finally
+		{
+			source.delete();
+			target.delete();
+		}
+	}
+	
+	/**
+	 * Verify that a {@link ByteArrayInputStream} is written from where it was left, in one call.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testTransferByteArray() throws Exception
+	{
+		final byte[] data = new byte[2 * BufferPool.DEFAULT_BUFFER_SIZE + 1];
+		new Random(5).nextBytes(data);
+		final ByteArrayInputStream in = new ByteArrayInputStream(data);
+		assertEquals("Unexpected skip.", 10, in.skip(10));
+		final int[] writes = new int[1];
+		final ByteArrayOutputStream out = 
+			new ByteArrayOutputStream()
+			{
+				@Override
+				public synchronized void write(final byte[] b, final int off, final int len)
+				{
+					writes[0]++;
+					super.write(b, off, len);
+				}
+			};
+		StreamUtil.transfer(in, out);
+		assertArrayEquals("Copy differs.", Arrays.copyOfRange(data, 10, data.length), out.toByteArray());
+		assertEquals("Expected a single write.", 1, writes[0]);
+	}
+	
+	/**
+	 * Verify that {@link StreamUtil#readBytes(InputStream, long)} reads everything whatever the 
+	 * hint, and returns the array it read into when the hint is exact.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testReadBytes() throws Exception
+	{
+		final byte[] data = new byte[50000];
+		new Random(1).nextBytes(data);
+		
+		for(final long hint : new long[] {-1, 0, 1, 100, data.length - 1, data.length, data.length + 1, 10 * data.length})
+		{
+			assertArrayEquals("Unexpected data for hint " + hint + ".", data, StreamUtil.readBytes(trickle(data), hint));
+		}
+		assertArrayEquals("Unexpected data.", data, StreamUtil.readBytes(new ByteArrayInputStream(data)));
+		
+		final File file = File.createTempFile("read", ".bin");
+		try
+		{
+			Files.write(file.toPath(), data);
+			final FileInputStream in = new FileInputStream(file);
+			in.skip(10);
+			assertArrayEquals("Unexpected rest of file.", Arrays.copyOfRange(data, 10, data.length), StreamUtil.readBytes(in));
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Verify that {@link StreamUtil#readByteBuffer(InputStream, long)} reads everything whatever 
+	 * the hint, and returns a view of the array it read into, unless the data overflowed it.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testReadByteBuffer() throws Exception
+	{
+		final byte[] data = new byte[50000];
+		new Random(2).nextBytes(data);
+		
+		ByteBuffer buffer = StreamUtil.readByteBuffer(trickle(data), 2 * data.length);
+		assertEquals("Unexpected data.", ByteBuffer.wrap(data), buffer);
+		assertEquals("Expected a view of the first chunk.", 2 * data.length, buffer.array().length);
+		
+		buffer = StreamUtil.readByteBuffer(trickle(data), data.length);
+		assertEquals("Unexpected data.", ByteBuffer.wrap(data), buffer);
+		assertEquals("Expected the first chunk.", data.length, buffer.array().length);
+		
+		buffer = StreamUtil.readByteBuffer(trickle(data), 100);
+		assertEquals("Unexpected data.", ByteBuffer.wrap(data), buffer);
+		assertEquals("Expected one assembled array.", data.length, buffer.array().length);
+	}
+	
+	/**
+	 * A stream that returns at most a thousand bytes from each read, and reports none available.
+	 * @param data The data.
+	 * @return The stream.
+	 */
+	private static InputStream trickle(final byte[] data)
+	{
+		return new ByteArrayInputStream(data)
+			{
+				@Override
+				public synchronized int read(final byte[] b, final int off, final int len)
+				{
+					return super.read(b, off, Math.min(len, 1000));
+				}
+				
+				@Override
+				public synchronized int available()
+				{
+					return 0;
+				}
+			};
+	}
+}
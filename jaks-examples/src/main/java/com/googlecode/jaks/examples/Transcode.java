@@ -10,6 +10,7 @@ import java.util.List;
 
 import com.googlecode.jaks.cli.AbstractJaksCommand;
 import com.googlecode.jaks.cli.JaksNonOption;
+import com.googlecode.jaks.common.io.SquashedOutputStream;
 import com.googlecode.jaks.system.Subprocess;
 
 /**
@@ -45,7 +46,7 @@ public class Transcode extends AbstractJaksCommand
 					"-vpre", "slow",
 					"-y",
 					new File(vid.getParentFile(), getBaseName(vid.getName()) + ".mp4").getPath()
-				).call();
+				).call(new SquashedOutputStream());
 		}
 	}
 }
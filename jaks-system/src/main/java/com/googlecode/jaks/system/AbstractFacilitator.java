@@ -18,58 +18,137 @@ package com.googlecode.jaks.system;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
- * Base thread worker.
+ * Base stream worker. A facilitator is a task rather than a thread; it is started on 
+ * an {@link Executor} (normally {@link FacilitatorPool}) so that pump threads are reused
+ * from one process to the next.
  * @author Jason Smith
  */
-class AbstractFacilitator extends Thread
+abstract class AbstractFacilitator implements Runnable
 {
-    /** Number used to identify the worker thread. */
-    private static long workerCount = 0;
-
     /** The input stream. */
     protected final InputStream in;
     
     /** The output stream. */
     protected final OutputStream out;
     
+    /** Bytes delivered to the output so far. Written only by the worker. */
+    protected volatile long transferred = 0;
+    
     /** Placeholder for exceptions that occur during processing. */
-    public Throwable error = null;
+    public volatile Throwable error = null;
+    
+    /** Completed when the worker finishes, whether or not it succeeded. */
+    private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+    
+    /** The thread currently running this worker, or {@code null}. Guarded by {@code this}. */
+    private Thread runner = null;
+    
+    /** Set once {@link #interrupt()} has been called. Guarded by {@code this}. */
+    private boolean interrupted = false;
     
     /**
      * Constructor.
-     * @param baseThreadName The base name of the thread.
      * @param in Data source.
      * @param out Data target.
      */
-    protected AbstractFacilitator(String baseThreadName, InputStream in, OutputStream out)
+    protected AbstractFacilitator(final InputStream in, final OutputStream out)
     {
         this.in = in;
         this.out = out;
-        
-        setName(baseThreadName + "-" + getNextCount());
     }
     
     /**
-     * Returns any exception that occurred, or {@code null}.
-     * @return Any exception that occurred.
+     * Pump the data. Called exactly once, on the executor thread.
+     * @throws Exception Any exception is recorded in {@link #error}.
      */
-    public Throwable getError()
+    protected abstract void pump() throws Exception;
+    
+    /**
+     * Start the worker.
+     * @param executor The executor that runs the worker.
+     */
+    public void start(final Executor executor)
     {
-        return error;
+        executor.execute(this);
+    }
+    
+    /*
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public final void run()
+    {
+        synchronized(this)
+        {
+            runner = Thread.currentThread();
+            if(interrupted)
+            {
+                runner.interrupt();
+            }
+        }
+        try
+        {
+            pump();
+        }
+        catch(final Throwable t)
+        {
+            error = t;
+        }
+        finally
+        {
+            synchronized(this)
+            {
+                runner = null;
+                /*
+                 * The thread goes back to the pool; don't let our interrupt leak into the next task.
+                 */
+                Thread.interrupted();
+            }
+            completion.complete(null);
+        }
     }
     
     /**
-     * Gets the next number.
-     * @return The next number.
+     * Interrupt the worker. If it has not started yet, it is interrupted as soon as it does.
      */
-    private long getNextCount()
+    public synchronized void interrupt()
     {
-        synchronized(AbstractFacilitator.class)
+        interrupted = true;
+        if(runner != null)
         {
-            return workerCount++;
+            runner.interrupt();
         }
     }
+    
+    /**
+     * Returns a future that completes when the worker finishes. It never completes
+     * exceptionally; check {@link #getError()}.
+     * @return The completion of the worker.
+     */
+    public CompletableFuture<Void> getCompletion()
+    {
+        return completion;
+    }
+    
+    /**
+     * Returns the number of bytes delivered to the output so far.
+     * @return The byte count.
+     */
+    public long getTransferred()
+    {
+        return transferred;
+    }
+    
+    /**
+     * Returns any exception that occurred, or {@code null}.
+     * @return Any exception that occurred.
+     */
+    public Throwable getError()
+    {
+        return error;
+    }
 }
-
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import com.googlecode.jaks.common.io.HeadTailOutputStream;
+import com.googlecode.jaks.common.io.StreamUtil;
+import com.googlecode.jaks.system.Subprocess.AbstractShutdownHandler;
+
+/**
+ * <p>A long-lived child process that answers requests on stdin with responses on stdout, 
+ * such as <tt>git cat-file --batch</tt> or <tt>exiftool -stay_open True -@ -</tt>. One process 
+ * serves any number of exchanges, so the spawn cost is paid once instead of per query.</p>
+ * 
+ * <p>The command, working folder and environment come from a {@link Subprocess}, and so do 
+ * the timeout, which applies to each exchange, and the kill grace period. How requests and 
+ * responses are delimited is up to a {@link Framing}. The process is started on first use and 
+ * started again on the next exchange if it has exited; an exchange that fails stops it.</p>
+ * 
+ * <p>Exchanges are serialized. Use a {@link CoprocessPool} to run several at once.</p>
+ * @author Jason Smith
+ */
+public class Coprocess implements Closeable
+{
+    /**
+     * How requests and responses are delimited on the pipes of a {@link Coprocess}.
+     */
+    public interface Framing
+    {
+        /**
+         * Write one request. The stream is flushed afterwards.
+         * @param stdin Stdin of the process.
+         * @param request The request.
+         * @throws IOException See {@link IOException}.
+         */
+        void writeRequest(OutputStream stdin, byte[] request) throws IOException;
+        
+        /**
+         * Read one complete response.
+         * @param stdout Stdout of the process; buffered.
+         * @return The response.
+         * @throws EOFException The process closed stdout before the response was complete.
+         * @throws IOException See {@link IOException}.
+         */
+        byte[] readResponse(InputStream stdout) throws IOException;
+    }
+    
+    /**
+     * Requests and responses are each terminated by a fixed byte sequence.
+     */
+    private static final class TerminatedFraming implements Framing
+    {
+        private final byte[] requestSuffix;
+        private final byte[] responseTerminator;
+        
+        TerminatedFraming(final byte[] requestSuffix, final byte[] responseTerminator)
+        {
+            if(responseTerminator.length == 0)
+            {
+                throw new IllegalArgumentException("The response terminator must not be empty.");
+            }
+            this.requestSuffix = requestSuffix;
+            this.responseTerminator = responseTerminator;
+        }
+        
+        @Override
+        public void writeRequest(final OutputStream stdin, final byte[] request) throws IOException
+        {
+            stdin.write(request);
+            stdin.write(requestSuffix);
+        }
+        
+        @Override
+        public byte[] readResponse(final InputStream stdout) throws IOException
+        {
+            final int length = responseTerminator.length;
+            final byte last = responseTerminator[length - 1];
+            byte[] response = new byte[256];
+            int size = 0;
+            while(true)
+            {
+                final int b = stdout.read();
+                if(b == -1)
+                {
+                    throw new EOFException("The process closed stdout in the middle of a response.");
+                }
+                if(size == response.length)
+                {
+                    response = Arrays.copyOf(response, size * 2);
+                }
+                response[size++] = (byte)b;
+                if((byte)b == last && size >= length 
+                        && Arrays.equals(response, size - length, size, responseTerminator, 0, length))
+                {
+                    return Arrays.copyOf(response, size - length);
+                }
+            }
+        }
+    }
+    
+    /** How long {@link #close()} waits for the process to exit once stdin is closed. */
+    private static final long CLOSE_WAIT_MILLIS = 1000;
+    
+    private final Subprocess command;
+    
+    private final Framing framing;
+    
+    /** The running process, or {@code null}. The fields below are guarded by {@code this}. */
+    private Process process = null;
+    
+    private OutputStream stdin;
+    
+    private InputStream stdout;
+    
+    private HeadTailOutputStream stderr;
+    
+    private AbstractFacilitator stderrWorker;
+    
+    private AbstractShutdownHandler hook;
+    
+    private long starts = 0;
+    
+    private boolean closed = false;
+    
+    /**
+     * Constructor. No process is started until {@link #start()} or the first exchange.
+     * @param command The command, working folder, environment and settings.
+     * @param framing How requests and responses are delimited.
+     */
+    public Coprocess(final Subprocess command, final Framing framing)
+    {
+        this.command = command;
+        this.framing = framing;
+    }
+    
+    /**
+     * One UTF-8 line per request and per response.
+     * @return The framing.
+     */
+    public static Framing lines()
+    {
+        return terminatedBy("\n", "\n");
+    }
+    
+    /**
+     * Requests are followed by a fixed suffix, and responses end with a fixed terminator, both 
+     * UTF-8. For <tt>exiftool -stay_open</tt> these are <tt>"\n-execute\n"</tt> and <tt>"{ready}\n"</tt>.
+     * @param requestSuffix Written after each request.
+     * @param responseTerminator Marks the end of each response; it is not included in the response.
+     * @return The framing.
+     */
+    public static Framing terminatedBy(final String requestSuffix, final String responseTerminator)
+    {
+        final Charset utf8 = Charset.forName(StreamUtil.UTF8);
+        return new TerminatedFraming(requestSuffix.getBytes(utf8), responseTerminator.getBytes(utf8));
+    }
+    
+    /**
+     * Start the process if it is not running.
+     * @throws IOException The process could not be started.
+     */
+    public synchronized void start() throws IOException
+    {
+        if(closed)
+        {
+            throw new IOException("Coprocess closed.");
+        }
+        if(process != null && process.isAlive())
+        {
+            return;
+        }
+        stop();
+        final Process started = command.newProcessBuilder().start();
+        hook = command.addShutdownHandler(started);
+        stderr = command.newStderrCapture();
+        stderrWorker = new StdOutFacilitator(started.getErrorStream(), stderr);
+        stderrWorker.start(command.getFacilitatorExecutor());
+        stdin = started.getOutputStream();
+        stdout = started.getInputStream();
+        process = started;
+        ++starts;
+    }
+    
+    /**
+     * Send a request and wait for the response. If the process is not running, it is started
+     * first. If the exchange fails in any way, including an unchecked exception from the 
+     * {@link Framing}, or exceeds the timeout of the {@link Subprocess}, the process is stopped, 
+     * since its pipes may be out of step, and the next exchange starts a new one.
+     * @param request The request, without framing.
+     * @return The response, without framing.
+     * @throws IOException The process could not be started, or failed during the exchange. 
+     * The message includes the end of its stderr.
+     */
+    public synchronized byte[] exchange(final byte[] request) throws IOException
+    {
+        start();
+        final Process current = process;
+        final long timeout = command.getTimeoutNanos();
+        //Whichever of the response and the deadline gets here first decides the exchange.
+        final AtomicBoolean settled = new AtomicBoolean(false);
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+        final ScheduledFuture<?> deadline = timeout <= 0 ? null : FacilitatorPool.SCHEDULER.schedule(() -> 
+            {
+                if(settled.compareAndSet(false, true))
+                {
+                    timedOut.set(true);
+                    command.destroyTree(current);
+                }
+            }, timeout, TimeUnit.NANOSECONDS);
+        boolean ok = false;
+        try
+        {
+            framing.writeRequest(stdin, request);
+            stdin.flush();
+            final byte[] response = framing.readResponse(stdout);
+            if(!settled.compareAndSet(false, true))
+            {
+                throw new IOException("The deadline passed as the response arrived.");
+            }
+            ok = true;
+            return response;
+        }
+        catch(final IOException e)
+        {
+            final AbstractFacilitator worker = stderrWorker;
+            stop();
+            try
+            {
+                worker.getCompletion().get(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch(final ExecutionException | TimeoutException x)
+            {
+                //Report whatever stderr has arrived.
+            }
+            catch(final InterruptedException x)
+            {
+                Thread.currentThread().interrupt();
+            }
+            final String message = stderr.toString(Charset.forName(StreamUtil.UTF8));
+            throw new IOException((timedOut.get() ? "Coprocess timed out after " + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms." 
+                : "Coprocess failed.") + (message.isEmpty() ? "" : " " + message), e);
+        }
+        finally
+        {
+            if(deadline != null)
+            {
+                deadline.cancel(false);
+            }
+            if(!ok)
+            {
+                //Anything else that went wrong, such as a RuntimeException from the framing.
+                stop();
+            }
+        }
+    }
+    
+    /**
+     * Send a UTF-8 request and wait for the UTF-8 response.
+     * @param request The request, without framing.
+     * @return The response, without framing.
+     * @throws IOException See {@link #exchange(byte[])}.
+     */
+    public String exchange(final String request) throws IOException
+    {
+        final Charset utf8 = Charset.forName(StreamUtil.UTF8);
+        return new String(exchange(request.getBytes(utf8)), utf8);
+    }
+    
+    /**
+     * Check that the process answers a probe correctly. A process that fails the check is stopped, 
+     * and the next exchange starts a new one.
+     * @param probe The request to send.
+     * @param healthy Tests the response.
+     * @return {@code true} if the process is healthy.
+     */
+    public synchronized boolean check(final byte[] probe, final Predicate<byte[]> healthy)
+    {
+        try
+        {
+            if(healthy.test(exchange(probe)))
+            {
+                return true;
+            }
+            stop();
+        }
+        catch(final IOException e)
+        {
+            //Already stopped.
+        }
+        return false;
+    }
+    
+    /**
+     * Whether the process is running.
+     * @return {@code true} if the process has been started and has not exited.
+     */
+    public synchronized boolean isAlive()
+    {
+        return process != null && process.isAlive();
+    }
+    
+    /**
+     * The number of times a process has been started, counting restarts.
+     * @return The start count.
+     */
+    public synchronized long getStartCount()
+    {
+        return starts;
+    }
+    
+    /**
+     * Close stdin so the process can exit by itself, then terminate it and its descendants if it has 
+     * not done so shortly afterwards.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if(!closed)
+        {
+            closed = true;
+            stop();
+        }
+    }
+    
+    /**
+     * Stop the current process, if there is one.
+     */
+    private void stop()
+    {
+        if(process == null)
+        {
+            return;
+        }
+        try
+        {
+            stdin.close();
+        }
+        catch(final IOException e)
+        {
+            //The process has already gone.
+        }
+        try
+        {
+            if(!process.waitFor(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS))
+            {
+                command.destroyTree(process);
+            }
+        }
+        catch(final InterruptedException e)
+        {
+            command.destroyTree(process);
+            Thread.currentThread().interrupt();
+        }
+        Subprocess.removeShutdownHandler(hook);
+        process = null;
+        hook = null;
+        stderrWorker = null;
+    }
+}
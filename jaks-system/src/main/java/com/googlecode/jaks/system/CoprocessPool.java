@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import com.googlecode.jaks.common.io.StreamUtil;
+
+/**
+ * <p>A fixed set of warm {@link Coprocess} instances running the same command. Each exchange 
+ * borrows an idle instance, so up to {@link #getSize()} exchanges run at once and the rest 
+ * wait.</p>
+ * 
+ * <p>An instance that crashes or fails an exchange is started again the next time it is 
+ * borrowed. An optional periodic health check probes idle instances and stops any that 
+ * answer wrongly, so that they too are replaced on next use.</p>
+ * @author Jason Smith
+ */
+public class CoprocessPool implements Closeable
+{
+    private final List<Coprocess> all = new ArrayList<Coprocess>();
+    
+    private final LinkedBlockingQueue<Coprocess> idle = new LinkedBlockingQueue<Coprocess>();
+    
+    /** The periodic health check, or {@code null}. Guarded by {@code this}. */
+    private ScheduledFuture<?> healthCheck = null;
+    
+    private volatile boolean closed = false;
+    
+    /**
+     * Constructor. Every instance is started before the constructor returns.
+     * @param command The command, working folder, environment and settings.
+     * @param framing How requests and responses are delimited.
+     * @param size The number of instances.
+     * @throws IOException An instance could not be started; any that were are closed.
+     */
+    public CoprocessPool(final Subprocess command, final Coprocess.Framing framing, final int size) throws IOException
+    {
+        if(size < 1)
+        {
+            throw new IllegalArgumentException("Size must be at least 1.");
+        }
+        try
+        {
+            for(int i = 0; i < size; ++i)
+            {
+                final Coprocess coprocess = new Coprocess(command, framing);
+                all.add(coprocess);
+                coprocess.start();
+                idle.add(coprocess);
+            }
+        }
+        catch(final IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Send a request to an idle instance and wait for the response.
+     * @param request The request, without framing.
+     * @return The response, without framing.
+     * @throws IOException See {@link Coprocess#exchange(byte[])}.
+     * @throws InterruptedException Interrupted while waiting for an idle instance.
+     */
+    public byte[] exchange(final byte[] request) throws IOException, InterruptedException
+    {
+        final Coprocess coprocess = borrow();
+        try
+        {
+            return coprocess.exchange(request);
+        }
+        finally
+        {
+            idle.add(coprocess);
+        }
+    }
+    
+    /**
+     * Send a UTF-8 request to an idle instance and wait for the UTF-8 response.
+     * @param request The request, without framing.
+     * @return The response, without framing.
+     * @throws IOException See {@link Coprocess#exchange(byte[])}.
+     * @throws InterruptedException Interrupted while waiting for an idle instance.
+     */
+    public String exchange(final String request) throws IOException, InterruptedException
+    {
+        final Charset utf8 = Charset.forName(StreamUtil.UTF8);
+        return new String(exchange(request.getBytes(utf8)), utf8);
+    }
+    
+    /**
+     * Probe idle instances periodically. The probe runs on the shared worker pool, one idle
+     * instance at a time, so it never delays an exchange by more than one probe.
+     * @param probe The request to send.
+     * @param healthy Tests the response.
+     * @param period Time between checks.
+     * @param unit The unit of {@code period}.
+     * @return This instance.
+     * @see Coprocess#check(byte[], Predicate)
+     */
+    public synchronized CoprocessPool setHealthCheck(final byte[] probe, final Predicate<byte[]> healthy, 
+            final long period, final TimeUnit unit)
+    {
+        if(healthCheck != null)
+        {
+            healthCheck.cancel(false);
+        }
+        healthCheck = FacilitatorPool.SCHEDULER.scheduleWithFixedDelay(
+            () -> FacilitatorPool.EXECUTOR.execute(() -> checkIdle(probe, healthy)), period, period, unit);
+        return this;
+    }
+    
+    /**
+     * The number of instances.
+     * @return The pool size.
+     */
+    public int getSize()
+    {
+        return all.size();
+    }
+    
+    /**
+     * The number of instances not serving an exchange.
+     * @return The idle count.
+     */
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+    
+    /**
+     * The number of processes started by all instances, counting restarts.
+     * @return The start count.
+     */
+    public long getStartCount()
+    {
+        long starts = 0;
+        for(final Coprocess coprocess : all)
+        {
+            starts += coprocess.getStartCount();
+        }
+        return starts;
+    }
+    
+    /**
+     * Stop the health check and close every instance. Exchanges in progress finish first.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        synchronized(this)
+        {
+            if(healthCheck != null)
+            {
+                healthCheck.cancel(false);
+            }
+        }
+        for(final Coprocess coprocess : all)
+        {
+            coprocess.close();
+        }
+    }
+    
+    /**
+     * Take an idle instance, waiting if there is none.
+     * @return The instance.
+     * @throws IOException The pool is closed.
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    private Coprocess borrow() throws IOException, InterruptedException
+    {
+        if(closed)
+        {
+            throw new IOException("Coprocess pool closed.");
+        }
+        return idle.take();
+    }
+    
+    /**
+     * Probe each instance that is idle right now.
+     * @param probe The request to send.
+     * @param healthy Tests the response.
+     */
+    private void checkIdle(final byte[] probe, final Predicate<byte[]> healthy)
+    {
+        for(int i = idle.size(); i > 0 && !closed; --i)
+        {
+            final Coprocess coprocess = idle.poll();
+            if(coprocess == null)
+            {
+                return;
+            }
+            try
+            {
+                coprocess.check(probe, healthy);
+            }
+            finally
+            {
+                idle.add(coprocess);
+            }
+        }
+    }
+}
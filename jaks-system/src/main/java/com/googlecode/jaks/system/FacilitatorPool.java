@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>The shared pool of daemon threads that runs the stdin, stdout, and stderr workers
+ * for every {@link Subprocess}. Idle threads are kept for a while and reused, so a burst of
+ * short-lived processes does not pay for creating and tearing down three threads each.</p>
+ * 
+ * <p>The pool is not capped. The workers for a single process must all run at the same time
+ * (a child that fills its stderr pipe stops writing stdout), so queueing a worker behind others 
+ * that are waiting on it would deadlock. The number of threads is bounded in practice by the
+ * number of processes running at once.</p>
+ * @author Jason Smith
+ */
+final class FacilitatorPool
+{
+    /** How long an idle thread is kept before it is retired. */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    
+    /** Number used to identify the worker threads. */
+    private static final AtomicLong threadCount = new AtomicLong();
+    
+    /** The shared executor. */
+    static final ExecutorService EXECUTOR = 
+        new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, 
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, 
+            new SynchronousQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread thread = new Thread(r, "Subprocess-Worker-" + threadCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    
+    /** 
+     * The shared timer for deadlines and kill escalation. Its tasks are short and never block; 
+     * cancelled tasks are dropped right away, so a finished process leaves nothing behind.
+     */
+    static final ScheduledExecutorService SCHEDULER = newScheduler();
+    
+    /**
+     * Create the timer.
+     * @return The timer.
+     */
+    private static ScheduledExecutorService newScheduler()
+    {
+        final ScheduledThreadPoolExecutor scheduler = 
+            new ScheduledThreadPoolExecutor(1, 
+                new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(final Runnable r)
+                    {
+                        final Thread thread = new Thread(r, "Subprocess-Timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+    
+    /**
+     * Private constructor.
+     */
+    private FacilitatorPool()
+    {
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.googlecode.jaks.system.Subprocess.AbstractShutdownHandler;
+
+/**
+ * <p>The JVM-wide registry of live child processes started by {@link Subprocess} and
+ * {@link SubprocessPipeline}. A single shutdown hook runs the shutdown handler of every process
+ * that is still tracked when the JVM exits.</p>
+ * 
+ * <p>Registering a process is a lock-free set insertion; unlike 
+ * {@link Runtime#addShutdownHook(Thread)}, it takes no global lock and allocates no thread. The 
+ * counters are cheap to read and meant for monitoring.</p>
+ * @author Jason Smith
+ */
+public final class ProcessRegistry
+{
+    /** Handlers of the processes that are currently tracked. */
+    private static final Set<AbstractShutdownHandler> live = ConcurrentHashMap.newKeySet();
+    
+    /** Number of processes ever registered. */
+    private static final AtomicLong started = new AtomicLong();
+    
+    /** Listeners told about every finished process. */
+    private static final List<SubprocessListener> listeners = new CopyOnWriteArrayList<SubprocessListener>();
+    
+    /** Set once the JVM has begun shutting down. */
+    private static volatile boolean shuttingDown = false;
+    
+    static
+    {
+        Runtime.getRuntime().addShutdownHook(new Thread(ProcessRegistry::shutdown, "Subprocess-Shutdown"));
+    }
+    
+    /**
+     * Private constructor.
+     */
+    private ProcessRegistry()
+    {
+    }
+    
+    /**
+     * The number of child processes that have been started and have not yet finished.
+     * @return The number of live children.
+     */
+    public static int getLiveCount()
+    {
+        return live.size();
+    }
+    
+    /**
+     * The number of child processes that have been started since the JVM started.
+     * @return The number of children started.
+     */
+    public static long getStartedCount()
+    {
+        return started.get();
+    }
+    
+    /**
+     * Tell a listener about every process that finishes from now on.
+     * @param listener The listener.
+     */
+    public static void addListener(final SubprocessListener listener)
+    {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Stop telling a listener about finished processes.
+     * @param listener The listener.
+     */
+    public static void removeListener(final SubprocessListener listener)
+    {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Tell the listeners that a process has finished.
+     * @param result The outcome of the process.
+     * @param error Why the run failed, or {@code null}.
+     */
+    static void fireFinished(final SubprocessResult result, final Throwable error)
+    {
+        for(final SubprocessListener listener : listeners)
+        {
+            try
+            {
+                listener.finished(result, error);
+            }
+            catch(final RuntimeException e)
+            {
+                //A broken listener must not break the process that reported to it.
+            }
+        }
+    }
+    
+    /**
+     * Tell the listeners that a failed call is about to be retried.
+     * @param command The command.
+     * @param failure Why the attempt failed.
+     * @param attempt The number of the attempt that failed.
+     * @param delayNanos How long until the next attempt.
+     */
+    static void fireRetrying(final Subprocess command, final SubprocessException failure, final int attempt, final long delayNanos)
+    {
+        for(final SubprocessListener listener : listeners)
+        {
+            try
+            {
+                listener.retrying(command, failure, attempt, delayNanos);
+            }
+            catch(final RuntimeException e)
+            {
+                //A broken listener must not break the process that reported to it.
+            }
+        }
+    }
+    
+    /**
+     * Track a process.
+     * @param handler The shutdown handler of the process.
+     * @return {@code false} if the JVM is already shutting down, in which case the process is not tracked.
+     */
+    static boolean register(final AbstractShutdownHandler handler)
+    {
+        started.incrementAndGet();
+        if(shuttingDown)
+        {
+            return false;
+        }
+        live.add(handler);
+        return true;
+    }
+    
+    /**
+     * Stop tracking a process.
+     * @param handler The shutdown handler of the process.
+     */
+    static void unregister(final AbstractShutdownHandler handler)
+    {
+        live.remove(handler);
+    }
+    
+    /**
+     * Run the handler of every tracked process.
+     */
+    private static void shutdown()
+    {
+        shuttingDown = true;
+        for(final AbstractShutdownHandler handler : live)
+        {
+            try
+            {
+                handler.execute();
+            }
+            catch(final RuntimeException e)
+            {
+                //Keep going; the other children still need to be stopped.
+            }
+        }
+    }
+}
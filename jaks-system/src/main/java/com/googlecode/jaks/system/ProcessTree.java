@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Terminates a process together with everything it started. Shell pipelines and wrapper scripts 
+ * leave grandchildren behind when only the direct child is destroyed, and those grandchildren keep
+ * the pipes open.
+ * @author Jason Smith
+ */
+final class ProcessTree
+{
+    /**
+     * Private constructor.
+     */
+    private ProcessTree()
+    {
+    }
+    
+    /**
+     * Ask a process and all of its descendants to terminate (<tt>SIGTERM</tt> on Unix), then kill 
+     * whatever is still alive once the grace period is over (<tt>SIGKILL</tt>). The descendants are 
+     * collected before anything is signalled, since a grandchild is no longer a descendant once its
+     * parent has gone.
+     * @param process The root of the tree.
+     * @param graceNanos The grace period in nanoseconds; zero or less kills right away.
+     */
+    static void destroy(final ProcessHandle process, final long graceNanos)
+    {
+        final List<ProcessHandle> tree = snapshot(process);
+        if(graceNanos <= 0)
+        {
+            destroyForcibly(tree);
+            return;
+        }
+        for(final ProcessHandle handle : tree)
+        {
+            handle.destroy();
+        }
+        FacilitatorPool.SCHEDULER.schedule(
+            () -> 
+            {
+                final List<ProcessHandle> all = snapshot(process);
+                all.addAll(tree);
+                destroyForcibly(all);
+            }, 
+            graceNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * The process and its live descendants, deepest first.
+     * @param process The root of the tree.
+     * @return The members of the tree.
+     */
+    private static List<ProcessHandle> snapshot(final ProcessHandle process)
+    {
+        final List<ProcessHandle> tree = new ArrayList<ProcessHandle>();
+        process.descendants().forEach(tree::add);
+        Collections.reverse(tree);
+        tree.add(process);
+        return tree;
+    }
+    
+    /**
+     * Kill every live member.
+     * @param tree The members.
+     */
+    private static void destroyForcibly(final List<ProcessHandle> tree)
+    {
+        for(final ProcessHandle handle : tree)
+        {
+            if(handle.isAlive())
+            {
+                handle.destroyForcibly();
+            }
+        }
+    }
+}
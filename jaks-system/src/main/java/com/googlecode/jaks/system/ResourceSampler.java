@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Samples the CPU time and memory use of a running child process. The kernel forgets a 
+ * process's usage once it has been reaped, which {@link Process} does as soon as it exits, so 
+ * the figures are the last values seen while it ran: a process that exits between samples may 
+ * be under-reported, and one that exits before the first sample reports nothing.</p>
+ * 
+ * <p>On Linux, user and system CPU time come from <tt>/proc/&lt;pid&gt;/stat</tt> and peak 
+ * resident memory from <tt>VmHWM</tt> in <tt>/proc/&lt;pid&gt;/status</tt>, which the kernel 
+ * tracks itself, so it is exact whenever a sample is taken late enough. Elsewhere only the total 
+ * CPU time from {@link ProcessHandle.Info} is available. Descendants are not included.</p>
+ * @author Jason Smith
+ */
+final class ResourceSampler
+{
+    /** Whether <tt>/proc</tt> is available. */
+    private static final boolean PROC = new File("/proc/self/stat").isFile();
+    
+    private final ProcessHandle handle;
+    
+    private final File stat;
+    
+    private final File status;
+    
+    private final ScheduledFuture<?> task;
+    
+    /** Whether a sample has been handed to a worker and not yet taken. */
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    
+    /** Guarded by {@code this}. */
+    private long userTicks = -1;
+    private long systemTicks = -1;
+    private long cpuNanos = -1;
+    private long peakRssKilobytes = -1;
+    private int samples = 0;
+    
+    /**
+     * Constructor. Sampling starts one interval from now. The timer only hands each sample to 
+     * a worker thread, so slow reads of <tt>/proc</tt> never hold up the deadlines and kill 
+     * escalation that share it; a sample still in progress when the next is due is not doubled up.
+     * @param handle The process.
+     * @param intervalNanos Time between samples; zero to sample only when {@link #sample()} is called.
+     */
+    ResourceSampler(final ProcessHandle handle, final long intervalNanos)
+    {
+        this.handle = handle;
+        this.stat = new File("/proc/" + handle.pid() + "/stat");
+        this.status = new File("/proc/" + handle.pid() + "/status");
+        this.task = intervalNanos <= 0 ? null : 
+            FacilitatorPool.SCHEDULER.scheduleAtFixedRate(this::dispatch, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Hand a sample to a worker thread, unless one is still waiting.
+     */
+    private void dispatch()
+    {
+        if(pending.compareAndSet(false, true))
+        {
+            try
+            {
+                FacilitatorPool.EXECUTOR.execute(() -> 
+                {
+                    try
+                    {
+                        sample();
+                    }
+                    finally
+                    {
+                        pending.set(false);
+                    }
+                });
+            }
+            catch(final RejectedExecutionException e)
+            {
+                pending.set(false);
+            }
+        }
+    }
+    
+    /**
+     * Take a sample now. Does nothing if the process is gone.
+     */
+    synchronized void sample()
+    {
+        if(!PROC)
+        {
+            final Duration cpu = handle.info().totalCpuDuration().orElse(null);
+            if(cpu != null)
+            {
+                cpuNanos = cpu.toNanos();
+                ++samples;
+            }
+            return;
+        }
+        try
+        {
+            final String line = new String(Files.readAllBytes(stat.toPath()), StandardCharsets.US_ASCII);
+            //The command name may contain spaces and parentheses; fields are counted from the last ')'.
+            final String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+            userTicks = Long.parseLong(fields[11]);
+            systemTicks = Long.parseLong(fields[12]);
+            ++samples;
+            for(final String entry : Files.readAllLines(status.toPath(), StandardCharsets.US_ASCII))
+            {
+                if(entry.startsWith("VmHWM:"))
+                {
+                    peakRssKilobytes = Math.max(peakRssKilobytes, Long.parseLong(entry.replaceAll("[^0-9]", "")));
+                    break;
+                }
+            }
+        }
+        catch(final IOException | RuntimeException e)
+        {
+            //Gone, or a zombie with no memory left to report.
+        }
+    }
+    
+    /**
+     * Stop sampling.
+     */
+    void stop()
+    {
+        if(task != null)
+        {
+            task.cancel(false);
+        }
+    }
+    
+    /**
+     * The metrics of the process.
+     * @param spawnNanos Time taken to start the process.
+     * @param wallNanos Time from start until the process finished.
+     * @param stdinBytes Bytes written to stdin, or {@code -1}.
+     * @param stdoutBytes Bytes read from stdout, or {@code -1}.
+     * @param stderrBytes Bytes read from stderr, or {@code -1}.
+     * @return The metrics.
+     */
+    synchronized SubprocessMetrics toMetrics(final long spawnNanos, final long wallNanos, 
+            final long stdinBytes, final long stdoutBytes, final long stderrBytes)
+    {
+        long user = -1;
+        long system = -1;
+        long cpu = cpuNanos;
+        if(userTicks >= 0)
+        {
+            final long nanosPerTick = TimeUnit.SECONDS.toNanos(1) / Sysconf.get("CLK_TCK", 100);
+            user = userTicks * nanosPerTick;
+            system = systemTicks * nanosPerTick;
+            cpu = user + system;
+        }
+        return new SubprocessMetrics(spawnNanos, wallNanos, cpu, user, system, 
+            peakRssKilobytes < 0 ? -1 : peakRssKilobytes * 1024, samples, stdinBytes, stdoutBytes, stderrBytes);
+    }
+}
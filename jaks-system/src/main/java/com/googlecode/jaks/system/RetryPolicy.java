@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Says which failures of a {@link Subprocess} call are worth another try, and how long to wait
+ * before each one. Set it with {@link Subprocess#setRetryPolicy(RetryPolicy)}; one policy may be 
+ * shared by many commands.</p>
+ * 
+ * <p>A failure is retried if its exit code is one of {@link #setExitCodes(int...)}, or if its 
+ * captured stderr contains a match for {@link #setStderrPattern(Pattern)}, or, when enabled, if 
+ * it timed out. With no exit codes and no pattern, every non-zero exit code is retried. The wait 
+ * before attempt <i>n</i>+1 is the initial delay times the multiplier to the power <i>n</i>-1, 
+ * capped at the maximum delay, less a random part of up to the jitter fraction so that 
+ * commands that failed together do not all retry together. The policy gives up after the maximum 
+ * number of attempts, or when the next attempt would start after the time budget has run out, 
+ * and rethrows the last failure with {@link SubprocessException#getAttempts()} set. An attempt 
+ * still running when the budget runs out is terminated like one that reached its own deadline,
+ * and fails with a {@link SubprocessTimeoutException}.</p>
+ * 
+ * <p>For example, to ride out a working copy that is locked by a concurrent <tt>svn</tt> 
+ * operation:</p>
+ * <pre>
+ * new RetryPolicy()
+ *     .setStderrPattern(Pattern.compile("E155004|is already locked"))
+ *     .setMaxAttempts(5)
+ *     .setBackoff(200, 5000, TimeUnit.MILLISECONDS)
+ *     .setBudget(30, TimeUnit.SECONDS);</pre>
+ * @author Jason Smith
+ */
+public class RetryPolicy
+{
+    /** The end of the budget of the attempt running on this thread, by {@link System#nanoTime()}. */
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<Long>();
+    
+    private volatile int[] exitCodes = new int[0];
+    
+    private volatile Pattern stderrPattern = null;
+    
+    private volatile boolean retryTimeouts = false;
+    
+    private volatile int maxAttempts = 3;
+    
+    private volatile long initialNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    
+    private volatile long maxNanos = TimeUnit.SECONDS.toNanos(10);
+    
+    private volatile double multiplier = 2;
+    
+    private volatile double jitter = 0.5;
+    
+    private volatile long budgetNanos = 0;
+    
+    private final AtomicLong retries = new AtomicLong();
+    
+    private final AtomicLong exhausted = new AtomicLong();
+    
+    /**
+     * Retry only these exit codes, or those that match the stderr pattern.
+     * @param exitCodes The exit codes; none to retry every non-zero exit code unless a stderr pattern is set.
+     * @return This instance.
+     */
+    public RetryPolicy setExitCodes(final int... exitCodes)
+    {
+        this.exitCodes = exitCodes.clone();
+        return this;
+    }
+    
+    /**
+     * Retry failures whose captured stderr contains a match for a pattern, or whose exit code 
+     * is one of the exit codes.
+     * @param pattern The pattern, or {@code null} for none.
+     * @return This instance.
+     * @see Subprocess#setStderrCapture(int, int)
+     */
+    public RetryPolicy setStderrPattern(final Pattern pattern)
+    {
+        this.stderrPattern = pattern;
+        return this;
+    }
+    
+    /**
+     * Whether to retry a run that exceeded its deadline. The default is {@code false}.
+     * @param retry {@code true} to retry timeouts.
+     * @return This instance.
+     * @see Subprocess#setTimeout(long, TimeUnit)
+     */
+    public RetryPolicy setRetryTimeouts(final boolean retry)
+    {
+        this.retryTimeouts = retry;
+        return this;
+    }
+    
+    /**
+     * Set the most times a command is run, including the first. The default is 3.
+     * @param maxAttempts The most attempts.
+     * @return This instance.
+     */
+    public RetryPolicy setMaxAttempts(final int maxAttempts)
+    {
+        if(maxAttempts < 1)
+        {
+            throw new IllegalArgumentException("Need at least one attempt.");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+    
+    /**
+     * Set the delay before the first retry, and the most any delay may grow to. The defaults 
+     * are 100 milliseconds and 10 seconds.
+     * @param initial The first delay.
+     * @param max The largest delay.
+     * @param unit The unit of the delays.
+     * @return This instance.
+     */
+    public RetryPolicy setBackoff(final long initial, final long max, final TimeUnit unit)
+    {
+        if(initial < 0 || max < initial)
+        {
+            throw new IllegalArgumentException("Delays must not be negative, and the maximum must not be below the initial delay.");
+        }
+        this.initialNanos = unit.toNanos(initial);
+        this.maxNanos = unit.toNanos(max);
+        return this;
+    }
+    
+    /**
+     * Set how much each delay grows over the one before. The default is 2.
+     * @param multiplier The growth factor; 1 for a constant delay.
+     * @return This instance.
+     */
+    public RetryPolicy setMultiplier(final double multiplier)
+    {
+        if(!(multiplier >= 1))
+        {
+            throw new IllegalArgumentException("Multiplier must be at least 1.");
+        }
+        this.multiplier = multiplier;
+        return this;
+    }
+    
+    /**
+     * Set the largest fraction of each delay that is taken off at random. The default is 0.5.
+     * @param jitter From 0, for exact delays, to 1.
+     * @return This instance.
+     */
+    public RetryPolicy setJitter(final double jitter)
+    {
+        if(!(jitter >= 0 && jitter <= 1))
+        {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1.");
+        }
+        this.jitter = jitter;
+        return this;
+    }
+    
+    /**
+     * Limit the total time a call may spend, counted from the start of the first attempt. No
+     * attempt is started, or waited for, past the budget, and an attempt still running when it 
+     * runs out is terminated as if it had reached the deadline set by 
+     * {@link Subprocess#setTimeout(long, TimeUnit)}.
+     * @param budget The budget; zero for none, which is the default.
+     * @param unit The unit of {@code budget}.
+     * @return This instance.
+     */
+    public RetryPolicy setBudget(final long budget, final TimeUnit unit)
+    {
+        if(budget < 0)
+        {
+            throw new IllegalArgumentException("Budget must not be negative.");
+        }
+        this.budgetNanos = unit.toNanos(budget);
+        return this;
+    }
+    
+    /**
+     * The number of retries made under this policy.
+     * @return The retry count.
+     */
+    public long getRetryCount()
+    {
+        return retries.get();
+    }
+    
+    /**
+     * The number of calls that still failed with a retryable failure when the policy gave up.
+     * @return The count of calls that ran out of attempts or budget.
+     */
+    public long getExhaustedCount()
+    {
+        return exhausted.get();
+    }
+    
+    /**
+     * Whether a failure is worth another try.
+     * @param failure The failure.
+     * @return {@code true} if the failure matches this policy.
+     */
+    boolean isRetryable(final SubprocessException failure)
+    {
+        if(failure instanceof SubprocessTimeoutException)
+        {
+            return retryTimeouts;
+        }
+        final int[] codes = exitCodes;
+        final Pattern pattern = stderrPattern;
+        if(codes.length == 0 && pattern == null)
+        {
+            return true;
+        }
+        return Arrays.stream(codes).anyMatch(code -> code == failure.exitCode)
+            || pattern != null && failure.getMessage() != null && pattern.matcher(failure.getMessage()).find();
+    }
+    
+    /**
+     * The wait before the next attempt.
+     * @param attempt The number of the attempt that failed, from 1.
+     * @return The delay, in nanoseconds.
+     */
+    long delayNanos(final int attempt)
+    {
+        final double full = Math.min((double)maxNanos, initialNanos * Math.pow(multiplier, attempt - 1));
+        return (long)(full * (1 - jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+    
+    /**
+     * Run a call, retrying failures that match this policy.
+     * @param <T> The type of the result.
+     * @param command The command, for listeners.
+     * @param call One attempt.
+     * @return The result of the first attempt that succeeds.
+     * @throws SubprocessException The last failure, once the policy gives up, with each earlier
+     *         failure attached as a suppressed exception.
+     * @throws InterruptedException The thread was interrupted while waiting to retry.
+     * @throws Exception See {@link Exception}.
+     */
+    <T> T call(final Subprocess command, final Callable<T> call) throws SubprocessException, InterruptedException, Exception
+    {
+        final long start = System.nanoTime();
+        final List<SubprocessException> previous = new ArrayList<SubprocessException>();
+        for(int attempt = 1;; attempt++)
+        {
+            final long budget = budgetNanos;
+            final Long outer = DEADLINE.get();
+            if(budget > 0)
+            {
+                DEADLINE.set(outer == null ? start + budget : Math.min(outer, start + budget));
+            }
+            try
+            {
+                return call.call();
+            }
+            catch(final SubprocessException e)
+            {
+                e.setAttempts(attempt);
+                if(!isRetryable(e))
+                {
+                    throw giveUp(e, previous);
+                }
+                final long delay = delayNanos(attempt);
+                if(attempt >= maxAttempts || budget > 0 && System.nanoTime() - start + delay >= budget)
+                {
+                    exhausted.incrementAndGet();
+                    throw giveUp(e, previous);
+                }
+                retries.incrementAndGet();
+                ProcessRegistry.fireRetrying(command, e, attempt, delay);
+                TimeUnit.NANOSECONDS.sleep(delay);
+                previous.add(e);
+            }
+            finally
+            {
+                DEADLINE.set(outer);
+            }
+        }
+    }
+    
+    /**
+     * The deadline for a process started on this thread, shortened to what is left of the budget
+     * of the attempt it belongs to, if any.
+     * @param timeoutNanos The deadline of the command; zero for none.
+     * @return The deadline in nanoseconds, or zero for none.
+     */
+    static long capTimeout(final long timeoutNanos)
+    {
+        final Long deadline = DEADLINE.get();
+        if(deadline == null)
+        {
+            return timeoutNanos;
+        }
+        final long remaining = Math.max(1, deadline - System.nanoTime());
+        return timeoutNanos <= 0 ? remaining : Math.min(timeoutNanos, remaining);
+    }
+    
+    /**
+     * Attach the earlier failures to the last one, each directly.
+     * @param last The failure to throw.
+     * @param earlier The failures before it, oldest first.
+     * @return The last failure.
+     */
+    private static SubprocessException giveUp(final SubprocessException last, final List<SubprocessException> earlier)
+    {
+        for(final SubprocessException e : earlier)
+        {
+            last.addSuppressed(e);
+        }
+        return last;
+    }
+}
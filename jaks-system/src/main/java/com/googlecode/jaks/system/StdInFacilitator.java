@@ -16,59 +16,168 @@
  */
 package com.googlecode.jaks.system;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
+import com.googlecode.jaks.common.io.BufferPool;
 
 /**
- * Thread-worker that pumps data from an input stream to an output
- * stream; expected to be interrupted when the process ends.
+ * <p>Worker that pumps data from an input stream to the stdin of a process, closing
+ * the process stdin as soon as the input stream is exhausted.</p>
+ * 
+ * <p>Reads block on the source, so data moves as soon as it arrives and in large chunks. When 
+ * the process ends first, call {@link #stop()}; the worker starts no further read. The source
+ * belongs to the worker and is closed when it is done, or by {@link #stop()} if the worker is 
+ * blocked reading it, which wakes most sources. Bytes that a read returns anyway are still 
+ * passed on to the process, whose closed pipe then refuses them, exactly as when a running 
+ * process stops reading early; they are never dropped quietly by the worker. The future 
+ * returned by {@link #stop()} does not wait for a source that cannot be woken.</p>
  * @author Jason Smith
  */
 class StdInFacilitator extends AbstractFacilitator
 {
+    /** Guards {@link #reading} and {@link #stopped}. */
+    private final Object lock = new Object();
+    
+    /** {@code true} while the worker is blocked reading the source. */
+    private boolean reading = false;
+    
+    /** {@code true} once the process has ended. */
+    private boolean stopped = false;
+    
+    /** {@code true} once the worker has returned. */
+    private boolean finished = false;
+    
+    /** Completed after {@link #stop()}, once the worker has returned or is blocked reading. */
+    private final CompletableFuture<Void> quiet = new CompletableFuture<Void>();
+    
     /**
      * Constructor. 
-     * @param baseThreadName The base name of the thread.
      * @param in Source input stream.
      * @param out Destination output stream; the "stdin" of the process.
      */
-    public StdInFacilitator(String baseThreadName, InputStream in, OutputStream out)
+    public StdInFacilitator(final InputStream in, final OutputStream out)
     {
-        super(baseThreadName, in, out);
+        super(in, out);
     }
     
     /*
-     * @see java.lang.Thread#run()
+     * @see com.googlecode.jaks.system.AbstractFacilitator#pump()
      */
-    public void run()
+    @Override
+    protected void pump() throws Exception
     {
+        final byte[] buffer = BufferPool.DEFAULT.acquireBytes();
         try
         {
-            byte[] buffer = new byte[4096];
-        
-            while(true)
+            for(;;)
             {
-                if(Thread.currentThread().isInterrupted())
-                    return;
-                
-                while(in.available() > 0)
+                synchronized(lock)
                 {
-                    int length = in.read(buffer, 0, Math.min(in.available(), buffer.length));
-                    if(length == -1)
+                    if(stopped)
+                    {
                         return;
-                    else
-                        out.write(buffer, 0, length);
+                    }
+                    reading = true;
+                }
+                final int len;
+                try
+                {
+                    len = in.read(buffer);
+                }
+                catch(final IOException e)
+                {
+                    synchronized(lock)
+                    {
+                        if(stopped)
+                        {
+                            //Most likely the source was closed under the read by stop().
+                            return;
+                        }
+                    }
+                    throw e;
+                }
+                finally
+                {
+                    synchronized(lock)
+                    {
+                        reading = false;
+                    }
+                }
+                if(len == -1)
+                {
+                    break;
+                }
+                try
+                {
+                    out.write(buffer, 0, len);
+                    out.flush();
+                    transferred += len;
+                }
+                catch(final IOException e)
+                {
+                    /*
+                     * The process closed its stdin, or exited, before taking all the data. Like a 
+                     * shell pipeline, that isn't an error; the exit code tells the story.
+                     */
+                    return;
                 }
-                Thread.sleep(10);
             }
         }
-        catch(InterruptedException e)
+        finally
+        {
+            BufferPool.DEFAULT.release(buffer);
+            closeQuietly(out);
+            closeQuietly(in);
+            synchronized(lock)
+            {
+                finished = true;
+            }
+            quiet.complete(null);
+        }
+    }
+    
+    /**
+     * Tell the worker that the process has ended, so that it stops pumping.
+     * @return A future that completes once the worker has returned, or right away if it is blocked 
+     *         reading the source.
+     */
+    public CompletableFuture<Void> stop()
+    {
+        final boolean blocked;
+        synchronized(lock)
+        {
+            stopped = true;
+            blocked = reading;
+            if(finished || reading)
+            {
+                quiet.complete(null);
+            }
+        }
+        interrupt();
+        if(blocked)
+        {
+            closeQuietly(in);
+        }
+        return quiet;
+    }
+    
+    /**
+     * Close a stream, ignoring failure.
+     * @param stream The stream.
+     */
+    private static void closeQuietly(final Closeable stream)
+    {
+        try
         {
-            return;
+            stream.close();
         }
-        catch(Throwable t)
+        catch(final IOException e)
         {
-            error = t;
+            //Ignore.
         }
     }
 }
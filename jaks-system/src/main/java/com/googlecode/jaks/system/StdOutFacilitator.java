@@ -19,8 +19,10 @@ package com.googlecode.jaks.system;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import com.googlecode.jaks.common.io.BufferPool;
+
 /**
- * <p>Thread-worker that pumps an input stream <i>completely</i>
+ * <p>Worker that pumps an input stream <i>completely</i>
  * to an output stream.</p>  
  * @author Jason Smith
  */
@@ -28,35 +30,36 @@ class StdOutFacilitator extends AbstractFacilitator
 {
     /**
      * Constructor. 
-     * @param baseThreadName Base name of the thread.
      * @param in The input stream; either "stdout" or "stderr" of the process.
      * @param out The destination output.
      */
-    public StdOutFacilitator(String baseThreadName, InputStream in, OutputStream out)
+    public StdOutFacilitator(final InputStream in, final OutputStream out)
     {
-        super(baseThreadName, in, out);
+        super(in, out);
     }
     
     /*
-     * @see java.lang.Thread#run()
+     * @see com.googlecode.jaks.system.AbstractFacilitator#pump()
      */
-    public void run()
+    @Override
+    protected void pump() throws Exception
     {
+        final byte[] b = BufferPool.DEFAULT.acquireBytes();
         try
         {
-                 byte[] b = new byte[4096];
-             while(true)
-             {
-                 int len = in.read(b);
-                 if(len == -1) break;
-                 out.write(b, 0, len);
-             }
-             out.flush();
+            while(true)
+            {
+                int len = in.read(b);
+                if(len == -1) break;
+                out.write(b, 0, len);
+                transferred += len;
+            }
         }
-        catch(Throwable t)
+        finally
         {
-            error = t;
+            BufferPool.DEFAULT.release(b);
         }
+        out.flush();
     }
 }
 
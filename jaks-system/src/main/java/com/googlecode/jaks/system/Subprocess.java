@@ -17,19 +17,37 @@
 package com.googlecode.jaks.system;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
+import com.googlecode.jaks.common.io.ChunkedOutputStream;
+import com.googlecode.jaks.common.io.FileTargetOutputStream;
+import com.googlecode.jaks.common.io.HeadTailOutputStream;
+import com.googlecode.jaks.common.io.LineOutputStream;
 import com.googlecode.jaks.common.io.MultiOutputStream;
 import com.googlecode.jaks.common.io.SquashedOutputStream;
 import com.googlecode.jaks.common.io.StreamUtil;
@@ -40,6 +58,12 @@ import com.googlecode.jaks.common.io.StreamUtil;
  * versions of {@link #call()} are available, letting you deal with the data directly in whatever
  * form is most convenient for you ({@link String}, {@link byte}, or streaming). It's 
  * like {@link java.lang.Process}, only a lot easier.
+ *
+ * <p>Starting a process does not copy the JVM. On Linux the JDK launches through
+ * <tt>posix_spawn</tt> and its small <tt>jspawnhelper</tt> program, so the cost of a start does
+ * not grow with the heap; a 3 GB heap starts <tt>/bin/true</tt> as quickly as a 16 MB one. Do not
+ * set <tt>-Djdk.lang.Process.launchMechanism=FORK</tt>, which copies the page tables of the whole
+ * JVM on every start and is some thirty times slower.</p>
  * @author Jason Smith
  */
 public class Subprocess extends ArrayList<String>
@@ -50,6 +74,43 @@ public class Subprocess extends ArrayList<String>
 	
 	private final Map<String,String> deltaEnv;
 	
+	/** Default number of bytes kept from the start of stderr for failure messages. */
+	public static final int DEFAULT_STDERR_HEAD = 0;
+	
+	/** Default number of bytes kept from the end of stderr for failure messages. */
+	public static final int DEFAULT_STDERR_TAIL = 64 * 1024;
+	
+	private int stderrHead = DEFAULT_STDERR_HEAD;
+	
+	private int stderrTail = DEFAULT_STDERR_TAIL;
+	
+	/** Default time a process is given to exit after <tt>SIGTERM</tt>, before it is killed. */
+	public static final long DEFAULT_KILL_GRACE_MILLIS = 5000;
+	
+	private long timeoutNanos = 0;
+	
+	private long killGraceNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_KILL_GRACE_MILLIS);
+	
+	/** Time between samples of the CPU and memory use of a running process; zero, or off, by default. */
+	private long sampleNanos = 0;
+	
+	private boolean mergeStderr = false;
+	
+	/** The complete environment of the process, or {@code null} to inherit the JVM's. */
+	private Map<String,String> fixedEnv = null;
+	
+	/** The changes {@link #environment} was computed from. Guarded by {@code this}. */
+	private transient Map<String,String> environmentDelta = null;
+	
+	/** The effective environment, computed once. Guarded by {@code this}. */
+	private transient Map<String,String> environment = null;
+	
+	private transient SubprocessCache cache = null;
+	
+	private transient RetryPolicy retryPolicy = null;
+	
+	private transient List<File> cacheInputs = Collections.emptyList();
+	
 	/**
 	 * Default constructor.
 	 * @throws IOException See {@link IOException}.
@@ -111,6 +172,273 @@ public class Subprocess extends ArrayList<String>
 		this(workingFolder, deltaEnv, Arrays.asList(elements));
 	}
 	
+	/**
+	 * The canonical working folder of the process.
+	 * @return The working folder.
+	 */
+	public File getWorkingFolder()
+	{
+		return workingFolder;
+	}
+	
+	/**
+	 * Set how much of stderr is kept for the message of a {@link SubprocessException}, and for 
+	 * {@link SubprocessResult#stderr} from {@link #callAsync(byte[])}. The first {@code headBytes} and 
+	 * the last {@code tailBytes} are kept in fixed buffers; whatever falls in between is counted and dropped.
+	 * The defaults are {@link #DEFAULT_STDERR_HEAD} and {@link #DEFAULT_STDERR_TAIL}.
+	 * @param headBytes How many bytes to keep from the start of stderr.
+	 * @param tailBytes How many bytes to keep from the end of stderr.
+	 * @return This instance.
+	 */
+	public Subprocess setStderrCapture(final int headBytes, final int tailBytes)
+	{
+		if(headBytes < 0 || tailBytes < 0)
+		{
+			throw new IllegalArgumentException("Capture sizes must not be negative.");
+		}
+		this.stderrHead = headBytes;
+		this.stderrTail = tailBytes;
+		return this;
+	}
+	
+	/**
+	 * Set a deadline for each run of the process, measured from the time it is started. A process
+	 * that has not finished by then is terminated along with all of its descendants, and the run fails
+	 * with a {@link SubprocessTimeoutException}.
+	 * @param timeout The deadline; zero for none, which is the default.
+	 * @param unit The unit of {@code timeout}.
+	 * @return This instance.
+	 * @see #setKillGracePeriod(long, TimeUnit)
+	 */
+	public Subprocess setTimeout(final long timeout, final TimeUnit unit)
+	{
+		if(timeout < 0)
+		{
+			throw new IllegalArgumentException("Timeout must not be negative.");
+		}
+		this.timeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+	
+	/**
+	 * Set how long a process and its descendants are given to exit after they are asked to 
+	 * (<tt>SIGTERM</tt>), before they are killed (<tt>SIGKILL</tt>). This applies on a timeout and on 
+	 * cancellation. The default is {@link #DEFAULT_KILL_GRACE_MILLIS}.
+	 * @param grace The grace period; zero to kill right away.
+	 * @param unit The unit of {@code grace}.
+	 * @return This instance.
+	 */
+	public Subprocess setKillGracePeriod(final long grace, final TimeUnit unit)
+	{
+		if(grace < 0)
+		{
+			throw new IllegalArgumentException("Grace period must not be negative.");
+		}
+		this.killGraceNanos = unit.toNanos(grace);
+		return this;
+	}
+	
+	/**
+	 * Send stderr of the process to the same pipe as stdout, so that the operating system keeps 
+	 * the two in the order they were written. The stderr target given to {@link #start(InputStream, 
+	 * OutputStream, OutputStream) start} and friends then receives nothing, and neither does the 
+	 * message of a {@link SubprocessException}. To keep the streams apart but still see how they 
+	 * interleave, use a {@link TimestampedLog} instead.
+	 * @param merge {@code true} to merge stderr into stdout; {@code false}, the default, to keep them apart.
+	 * @return This instance.
+	 */
+	public Subprocess setMergeStderr(final boolean merge)
+	{
+		this.mergeStderr = merge;
+		return this;
+	}
+	
+	/**
+	 * Whether stderr is merged into stdout.
+	 * @return {@code true} if stderr is merged.
+	 * @see #setMergeStderr(boolean)
+	 */
+	boolean isMergeStderr()
+	{
+		return mergeStderr;
+	}
+	
+	/**
+	 * Set how often the CPU time and peak memory of a running process are sampled for its 
+	 * {@link SubprocessMetrics}. Usage is only visible while the process runs, so a process that 
+	 * exits before the first sample reports none. Sampling is off by default, since it costs a 
+	 * few file reads per interval for every running process; the reads run on the shared worker
+	 * threads, never on the timer that enforces deadlines. A period around 100 ms suits most 
+	 * commands.
+	 * @param interval Time between samples; zero, the default, to turn sampling off.
+	 * @param unit The unit of {@code interval}.
+	 * @return This instance.
+	 */
+	public Subprocess setResourceSampling(final long interval, final TimeUnit unit)
+	{
+		if(interval < 0)
+		{
+			throw new IllegalArgumentException("Interval must not be negative.");
+		}
+		this.sampleNanos = unit.toNanos(interval);
+		return this;
+	}
+	
+	/**
+	 * A new sampler for a process started from this instance.
+	 * @param process The process.
+	 * @return The sampler, already running.
+	 * @see #setResourceSampling(long, TimeUnit)
+	 */
+	ResourceSampler newResourceSampler(final Process process)
+	{
+		return new ResourceSampler(process.toHandle(), sampleNanos);
+	}
+	
+	/**
+	 * Serve {@link #call()} from a cache, so that repeating a deterministic, read-only command
+	 * does not run it again. Both stdout and a non-zero exit code are cached. The key covers the 
+	 * command, the working folder, the environment changes, and the size and modification time of
+	 * each declared input file.
+	 * @param cache The cache, or {@code null} to stop caching.
+	 * @param inputs Files the output depends on.
+	 * @return This instance.
+	 */
+	public Subprocess setCache(final SubprocessCache cache, final File... inputs)
+	{
+		this.cache = cache;
+		this.cacheInputs = Arrays.asList(inputs.clone());
+		return this;
+	}
+	
+	/**
+	 * Give the process exactly this environment, rather than a copy of the JVM's. The changes 
+	 * passed to the constructor are still applied on top. A fixed environment makes runs 
+	 * reproducible, whatever the JVM was started with.
+	 * @param environment The complete environment, or {@code null} to inherit the JVM's again.
+	 * @return This instance.
+	 */
+	public synchronized Subprocess setEnvironment(final Map<String,String> environment)
+	{
+		this.fixedEnv = environment==null?null:Collections.unmodifiableMap(new HashMap<String,String>(environment));
+		this.environment = null;
+		return this;
+	}
+	
+	/**
+	 * The environment the process is started with: the JVM's, or the one given to
+	 * {@link #setEnvironment(Map)}, with the changes passed to the constructor applied. A change
+	 * with a {@code null} value removes the variable. The result is computed once and reused until 
+	 * the changes are modified.
+	 * @return The effective environment; unmodifiable.
+	 */
+	public synchronized Map<String,String> getEnvironment()
+	{
+		if(environment == null || !deltaEnv.equals(environmentDelta))
+		{
+			final Map<String,String> effective = newEnvironmentMap();
+			effective.putAll(fixedEnv==null?System.getenv():fixedEnv);
+			applyDelta(effective);
+			environmentDelta = new HashMap<String,String>(deltaEnv);
+			environment = Collections.unmodifiableMap(effective);
+		}
+		return environment;
+	}
+	
+	/**
+	 * The environment variables set or replaced for the process.
+	 * @return The changes to the environment.
+	 */
+	Map<String,String> getDeltaEnv()
+	{
+		return deltaEnv;
+	}
+	
+	/**
+	 * Retry failed calls that match a policy. Only the calls that buffer stdout in memory are 
+	 * retried: {@link #call()}, {@link #call(byte[])} and the variants that return a string. 
+	 * Output already passed to a stream cannot be taken back, so the streaming calls fail on the 
+	 * first attempt.
+	 * @param policy The policy, or {@code null} to never retry, which is the default.
+	 * @return This instance.
+	 */
+	public Subprocess setRetryPolicy(final RetryPolicy policy)
+	{
+		this.retryPolicy = policy;
+		return this;
+	}
+	
+	/**
+	 * The policy set by {@link #setRetryPolicy(RetryPolicy)}.
+	 * @return The retry policy, or {@code null}.
+	 */
+	RetryPolicy getRetryPolicy()
+	{
+		return retryPolicy;
+	}
+	
+	/**
+	 * The environment given to {@link #setEnvironment(Map)}.
+	 * @return The complete environment, or {@code null} if the JVM's is inherited.
+	 */
+	synchronized Map<String,String> getFixedEnvironment()
+	{
+		return fixedEnv;
+	}
+	
+	/**
+	 * Terminate a process started from this instance, together with its descendants, honoring
+	 * the grace period.
+	 * @param process The process.
+	 * @see #setKillGracePeriod(long, TimeUnit)
+	 */
+	void destroyTree(final Process process)
+	{
+		ProcessTree.destroy(process.toHandle(), killGraceNanos);
+	}
+	
+	/**
+	 * The deadline for each run.
+	 * @return The deadline in nanoseconds, or zero for none.
+	 * @see #setTimeout(long, TimeUnit)
+	 */
+	long getTimeoutNanos()
+	{
+		return timeoutNanos;
+	}
+	
+	/**
+	 * A new bounded buffer for capturing stderr.
+	 * @return The buffer.
+	 * @see #setStderrCapture(int, int)
+	 */
+	HeadTailOutputStream newStderrCapture()
+	{
+		return new HeadTailOutputStream(stderrHead, stderrTail);
+	}
+	
+	/**
+	 * A new instance with this command followed by more arguments, sharing the working folder
+	 * and environment and copying the capture, timeout and grace period settings.
+	 * @param arguments The arguments to append.
+	 * @return The new instance.
+	 * @throws IOException See {@link IOException}.
+	 */
+	Subprocess withArguments(final Collection<? extends String> arguments) throws IOException
+	{
+		final Subprocess copy = new Subprocess(workingFolder, deltaEnv, this);
+		copy.addAll(arguments);
+		copy.stderrHead = stderrHead;
+		copy.stderrTail = stderrTail;
+		copy.timeoutNanos = timeoutNanos;
+		copy.killGraceNanos = killGraceNanos;
+		copy.sampleNanos = sampleNanos;
+		copy.mergeStderr = mergeStderr;
+		copy.retryPolicy = retryPolicy;
+		copy.fixedEnv = getFixedEnvironment();
+		return copy;
+	}
+
 	/**
 	 * Call a process and return stdout as a string.
 	 * @param encoding String encoding. {@code null} to use system default encoding.
@@ -150,20 +478,39 @@ public class Subprocess extends ArrayList<String>
 	}
 	
 	/**
-	 * Call a process and return stdout as a byte-array.
+	 * Call a process and return stdout as a byte-array. If a cache is set, a cached result is 
+	 * returned, or rethrown, without running the process. Failures are retried as set by
+	 * {@link #setRetryPolicy(RetryPolicy)}.
 	 * @return Stdout as a byte-array.
 	 * @throws SubprocessException See {@link SubprocessException}.
 	 * @throws Exception See {@link Exception}.
 	 */
 	public byte[] call() throws SubprocessException, Exception
 	{
-		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final RetryPolicy policy = retryPolicy;
+		return policy==null?callOnce():policy.call(this, this::callOnce);
+	}
+	
+	/**
+	 * One attempt of {@link #call()}.
+	 * @return Stdout as a byte-array.
+	 * @throws SubprocessException See {@link SubprocessException}.
+	 * @throws Exception See {@link Exception}.
+	 */
+	private byte[] callOnce() throws SubprocessException, Exception
+	{
+		if(cache != null)
+		{
+			return cache.call(this, cacheInputs);
+		}
+		final ChunkedOutputStream out = new ChunkedOutputStream();
 		call(null, out, new SquashedOutputStream());
 		return out.toByteArray();
 	}
 	
 	/**
-	 * Call a process with stdin as a byte-array and return stdout as a byte-array.
+	 * Call a process with stdin as a byte-array and return stdout as a byte-array. Failures 
+	 * are retried as set by {@link #setRetryPolicy(RetryPolicy)}.
 	 * @param stdin Byte data passed to the process as stdin.
 	 * @return Stdout as a byte-array.
 	 * @throws SubprocessException See {@link SubprocessException}.
@@ -171,7 +518,20 @@ public class Subprocess extends ArrayList<String>
 	 */
 	public byte[] call(final byte[] stdin) throws SubprocessException, Exception
 	{
-		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final RetryPolicy policy = retryPolicy;
+		return policy==null?callOnce(stdin):policy.call(this, () -> callOnce(stdin));
+	}
+	
+	/**
+	 * One attempt of {@link #call(byte[])}.
+	 * @param stdin Byte data passed to the process as stdin.
+	 * @return Stdout as a byte-array.
+	 * @throws SubprocessException See {@link SubprocessException}.
+	 * @throws Exception See {@link Exception}.
+	 */
+	private byte[] callOnce(final byte[] stdin) throws SubprocessException, Exception
+	{
+		final ChunkedOutputStream out = new ChunkedOutputStream();
 		try(final ByteArrayInputStream in = new ByteArrayInputStream(stdin))
 		{
 			call(in, out, new SquashedOutputStream());
@@ -199,24 +559,82 @@ public class Subprocess extends ArrayList<String>
 			final OutputStream stdout, 
     		final OutputStream stderr) throws SubprocessException, Exception
 	{
-		final ByteArrayOutputStream err = new ByteArrayOutputStream();
-		OutputStream errs = new MultiOutputStream(stderr==null?System.err:stderr, err);
+		final HeadTailOutputStream err = newStderrCapture();
+		final OutputStream errs = toRedirect(stderr)==Redirect.DISCARD?err:new MultiOutputStream(stderr==null?System.err:stderr, err);
 		final int result = execute(stdin, stdout, errs);
 		if(result != 0)
 		{
-			String message = null;
-			try
-			{
-				message = new String(err.toByteArray(), StreamUtil.UTF8);
-			}
-			catch(final Exception e)
-			{
-				message = new String(err.toByteArray(), StreamUtil.US_ASCII);
-			}
+			final String message = err.toString(Charset.forName(StreamUtil.UTF8));
 			throw new SubprocessException(this, result, workingFolder.getAbsolutePath(), message);
 		}
 	}
 
+	/**
+	 * Call a process and pass each UTF-8 line of stdout to a consumer as it arrives.
+	 * @param consumer Receives each line, without its line ending.
+	 * @throws SubprocessException See {@link SubprocessException}.
+	 * @throws Exception See {@link Exception}.
+	 * @see #callLines(Charset, char, Consumer)
+	 */
+	public void callLines(final Consumer<? super CharSequence> consumer) throws SubprocessException, Exception
+	{
+		callLines(Charset.forName(StreamUtil.UTF8), '\n', consumer);
+	}
+
+	/**
+	 * Call a process and pass each record of stdout to a consumer as it arrives. Stdout is
+	 * decoded incrementally into reused buffers, so memory use does not grow with the size of
+	 * the output. The consumer runs on the thread that reads stdout, and the
+	 * {@link CharSequence} it is given is reused for the next record.
+	 * @param charset The encoding of stdout.
+	 * @param delimiter The character that ends each record.
+	 * @param consumer Receives each record, without its delimiter.
+	 * @throws SubprocessException See {@link SubprocessException}.
+	 * @throws Exception See {@link Exception}.
+	 * @see LineOutputStream
+	 */
+	public void callLines(final Charset charset, final char delimiter, final Consumer<? super CharSequence> consumer)
+			throws SubprocessException, Exception
+	{
+		try(final LineOutputStream out = new LineOutputStream(charset, delimiter, consumer))
+		{
+			call(null, out, new SquashedOutputStream());
+		}
+	}
+
+	/**
+	 * Start a process and return its stdout as a stream that the caller reads at its own pace.
+	 * @return Stdout of the process.
+	 * @throws IOException The process could not be started.
+	 * @see #open(InputStream)
+	 */
+	public SubprocessInputStream open() throws IOException
+	{
+		return open(null);
+	}
+
+	/**
+	 * <p>Start a process and return its stdout as a stream that the caller reads at its own pace, 
+	 * straight from the pipe and without an intermediate copy, for example to parse it. Stderr is
+	 * drained in the background and kept as set by {@link #setStderrCapture(int, int)}. Wrap 
+	 * the stream with {@link java.nio.channels.Channels#newChannel(InputStream)} where a channel 
+	 * is wanted.</p>
+	 * 
+	 * <p>Closing the stream after reading it to the end waits for the process and checks its 
+	 * exit code. Closing it sooner terminates the process.</p>
+	 * @param stdin Available for the process to read, or {@code null} for an empty stdin.
+	 * @return Stdout of the process.
+	 * @throws IOException The process could not be started.
+	 * @see SubprocessInputStream
+	 */
+	public SubprocessInputStream open(final InputStream stdin) throws IOException
+	{
+		final HeadTailOutputStream err = newStderrCapture();
+		final SubprocessInputStream stdout = new SubprocessInputStream(this, err);
+		stdout.setResult(start(stdin, null, err, stdout::connect, null));
+		return stdout;
+	}
+
     public int execute() throws Exception
 	{
     	return execute(null, new SquashedOutputStream(), new SquashedOutputStream());
@@ -239,124 +657,459 @@ public class Subprocess extends ArrayList<String>
      * 
      * <p>If stdout or stderr are not specified, they default to 
      * {@linkplain System#out} and {@linkplain System#err}, respectively.
-     * If stdin is not defined, it defaults to {@code null}.</p>
+     * If stdin is not defined, the process sees an empty stdin.</p>
      *
-     * @param command The command to execute.
      * @param stdin stdin Available for the process to read.
      * @param stdout stdout From the process (defaults to {@linkplain System#out} if {@code null}).
      * @param stderr stderr From the process (defaults to {@linkplain System#err} if {@code null}).
      * @return The exit code from the process.
+     * @throws SubprocessTimeoutException The process did not finish before the deadline.
+     * @throws InterruptedException The calling thread was interrupted; the process is terminated.
      * @throws IOException See {@link IOException}.
+     * @see #start(InputStream, OutputStream, OutputStream)
      */
     public int execute(
     		final InputStream stdin, 
     		final OutputStream stdout, 
     		final OutputStream stderr) throws Exception
     {
-        final ProcessBuilder pb = new ProcessBuilder(this);
-        pb.directory(workingFolder);
-        
-        /*
-         * Look for an equivalent environment variable name, case insensitive.
-         */
-        for(final Map.Entry<String,String> dV : deltaEnv.entrySet())
+        final CompletableFuture<SubprocessResult> future = start(stdin, stdout, stderr);
+        try
         {
-            String key = dV.getKey();
-            
-            for(final Map.Entry<String,String> v : pb.environment().entrySet())
+            return future.get().exitCode;
+        }
+        catch(final InterruptedException e)
+        {
+            future.cancel(true);
+            throw e;
+        }
+        catch(final ExecutionException e)
+        {
+            throw unwrap(e);
+        }
+    }
+    
+    /**
+     * Call a process asynchronously, capturing stdout and stderr. The future fails with 
+     * a {@link SubprocessException} on a non-zero exit code. Only part of a large stderr is 
+     * kept; see {@link #setStderrCapture(int, int)}.
+     * @return The result, including the captured stdout and stderr.
+     * @throws IOException The process could not be started.
+     * @see #start(InputStream, OutputStream, OutputStream)
+     */
+    public CompletableFuture<SubprocessResult> callAsync() throws IOException
+    {
+        return callAsync(null);
+    }
+    
+    /**
+     * Call a process asynchronously with stdin as a byte-array, capturing stdout and stderr. 
+     * The future fails with a {@link SubprocessException} on a non-zero exit code. Only part of 
+     * a large stderr is kept; see {@link #setStderrCapture(int, int)}.
+     * @param stdin Byte data passed to the process as stdin, or {@code null} for none.
+     * @return The result, including the captured stdout and stderr.
+     * @throws IOException The process could not be started.
+     * @see #start(InputStream, OutputStream, OutputStream)
+     */
+    public CompletableFuture<SubprocessResult> callAsync(final byte[] stdin) throws IOException
+    {
+        return callAsync(stdin, null);
+    }
+    
+    /**
+     * Call a process asynchronously, with access to the process itself.
+     * @param stdin Byte data passed to the process as stdin, or {@code null} for none.
+     * @param spawned Receives the process as soon as it exists, before this method returns; 
+     *        {@code null} for none.
+     * @return The result, including the captured stdout and stderr.
+     * @throws IOException The process could not be started.
+     * @see #callAsync(byte[])
+     */
+    CompletableFuture<SubprocessResult> callAsync(final byte[] stdin, final Consumer<? super Process> spawned) throws IOException
+    {
+        final ChunkedOutputStream out = new ChunkedOutputStream();
+        final HeadTailOutputStream err = newStderrCapture();
+        final CompletableFuture<SubprocessResult> started = start(stdin==null?null:new ByteArrayInputStream(stdin), out, err, null, spawned);
+        final CompletableFuture<SubprocessResult> captured = started.thenApply(result ->
             {
-                if(v.getKey().equals(dV.getKey()))
+                final SubprocessResult withOutput = result.withOutput(out.toByteArray(), err.toByteArray());
+                if(withOutput.exitCode != 0)
                 {
-                    key = v.getKey();
+                    throw new CompletionException(
+                        new SubprocessException(this, withOutput.exitCode, withOutput.path, err.toString(Charset.forName(StreamUtil.UTF8))));
                 }
-            }
-            
-            pb.environment().put(key, dV.getValue());
-        }
+                return withOutput;
+            });
+        // Cancelling a dependent future does not reach its source; pass it on so the process is killed.
+        captured.whenComplete((result, t) ->
+            {
+                if(captured.isCancelled())
+                {
+                    started.cancel(true);
+                }
+            });
+        return captured;
+    }
+    
+	/**
+     * <p>Starts a command without waiting for it to finish. The returned future completes once the
+     * process has exited and its output has been fully delivered. No thread is blocked waiting 
+     * on the process; completion is driven by {@link Process#onExit()}, so any number of 
+     * children may be in flight at once.</p>
+     * 
+     * <p>If stdout or stderr are not specified, they default to 
+     * {@linkplain System#out} and {@linkplain System#err}, respectively.
+     * If stdin is not defined, the process sees an empty stdin.</p>
+     * 
+     * <p>A stdin stream belongs to the call, like the streams given to 
+     * {@link StreamUtil#transfer(InputStream, OutputStream)}: it is read on a worker thread until it
+     * ends or the process exits, and then closed, which also wakes a read that is still blocked. 
+     * Whatever the process did not take is left unread or lost with its pipe, as in a shell 
+     * pipeline, so don't pass a stream such as {@link System#in} that is still wanted 
+     * afterwards.</p>
+     * 
+     * <p>Cancelling the future, or reaching the deadline set by {@link #setTimeout(long, TimeUnit)}, 
+     * terminates the process and all of its descendants, escalating to a kill after the grace period
+     * set by {@link #setKillGracePeriod(long, TimeUnit)}. On a deadline the future fails with a
+     * {@link SubprocessTimeoutException}.</p>
+     * 
+     * <p>Output sent to a plain {@link SquashedOutputStream} is discarded by the operating system, 
+     * and output sent to a {@link FileTargetOutputStream} is appended to its file directly. 
+     * Neither needs a worker to copy the bytes.</p>
+     *
+     * @param stdin stdin Available for the process to read.
+     * @param stdout stdout From the process (defaults to {@linkplain System#out} if {@code null}).
+     * @param stderr stderr From the process (defaults to {@linkplain System#err} if {@code null}).
+     * @return The exit code and timing of the process.
+     * @throws IOException The process could not be started.
+     */
+    public CompletableFuture<SubprocessResult> start(
+    		final InputStream stdin, 
+    		final OutputStream stdout, 
+    		final OutputStream stderr) throws IOException
+    {
+        return start(stdin, stdout, stderr, null, null);
+    }
+    
+    /**
+     * Start a command, optionally handing stdout to the caller instead of pumping it.
+     * @param stdin stdin Available for the process to read.
+     * @param stdout stdout From the process; ignored if {@code pull} is given.
+     * @param stderr stderr From the process.
+     * @param pull Receives the stdout pipe of the process before this method returns, and 
+     *        returns a future that completes once the pipe is no longer read; {@code null} to 
+     *        deliver stdout to {@code stdout}.
+     * @param spawned Receives the process as soon as it exists, before this method returns; 
+     *        {@code null} for none. The process may outlive the returned future when that is 
+     *        cancelled, for as long as its grace period.
+     * @return The exit code and timing of the process.
+     * @throws IOException The process could not be started.
+     * @see #start(InputStream, OutputStream, OutputStream)
+     */
+    CompletableFuture<SubprocessResult> start(
+            final InputStream stdin, 
+            final OutputStream stdout, 
+            final OutputStream stderr,
+            final Function<InputStream,CompletableFuture<Void>> pull,
+            final Consumer<? super Process> spawned) throws IOException
+    {
+        final long startMillis = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
         
-        final Process process = pb.start();
-
-        AbstractShutdownHandler hook = newShutdownHandler(process);
-        try
+        final OutputStream out = stdout==null?System.out:stdout;
+        final OutputStream err = stderr==null?System.err:stderr;
+        
+        final ProcessBuilder pb = newProcessBuilder();
+        final Redirect outRedirect = pull!=null?null:toRedirect(out);
+        if(outRedirect != null)
         {
-            Runtime.getRuntime().addShutdownHook(hook);
+            pb.redirectOutput(outRedirect);
         }
-        catch(final IllegalStateException e)
+        final Redirect errRedirect = mergeStderr?null:toRedirect(err);
+        if(errRedirect != null)
         {
-            hook = null;
+            pb.redirectError(errRedirect);
         }
+        pb.redirectErrorStream(mergeStderr);
+        
+        final Process process = pb.start();
+        final long spawnNanos = System.nanoTime() - startNanos;
+        if(spawned != null)
+        {
+            spawned.accept(process);
+        }
+        final AbstractShutdownHandler hook = addShutdownHandler(process);
+        final ResourceSampler sampler = newResourceSampler(process);
+        final CompletableFuture<SubprocessResult> result = new CompletableFuture<SubprocessResult>();
         try
         {
-            try
+            final Executor executor = getFacilitatorExecutor();
+            
+            final AbstractFacilitator outWorker = outRedirect!=null||pull!=null?null:new StdOutFacilitator(process.getInputStream(), out);
+            if(outWorker != null)
             {
-                final OutputStream out = stdout==null?System.out:stdout;
-                final AbstractFacilitator outWorker = new StdOutFacilitator("STDOUT-Worker", process.getInputStream(), out);
-                outWorker.start();
-                
-                final OutputStream err = stderr==null?System.err:stderr;
-                
-                final AbstractFacilitator errWorker = new StdOutFacilitator("STDERR-Worker", process.getErrorStream(), err);
-                errWorker.start();
-                
-                final AbstractFacilitator inWorker = stdin==null?null:new StdInFacilitator("STDIN-Worker", stdin, process.getOutputStream());
-                if(inWorker != null)
-                {
-                    inWorker.start();
-                }
-                
-                outWorker.join();
-                
-                if(errWorker != null)
-                {
-                    errWorker.join();
-                }
-                
-                process.waitFor();
-                
-                if(inWorker != null) 
-                {
-                    inWorker.interrupt();
-                    inWorker.join();
-                }
-                
-                if(outWorker.error != null)
-                {
-                    throw new RuntimeException(outWorker.error);
-                }
-                
-                if(errWorker != null && errWorker.error != null)
+                outWorker.start(executor);
+            }
+            final CompletableFuture<Void> pulled = pull==null?completion(outWorker):pull.apply(process.getInputStream());
+            
+            final AbstractFacilitator errWorker = errRedirect!=null||mergeStderr?null:new StdOutFacilitator(process.getErrorStream(), err);
+            if(errWorker != null)
+            {
+                errWorker.start(executor);
+            }
+            
+            final StdInFacilitator inWorker = stdin==null?null:new StdInFacilitator(stdin, process.getOutputStream());
+            if(inWorker != null)
+            {
+                inWorker.start(executor);
+            }
+            else
+            {
+                process.getOutputStream().close();
+            }
+            
+            result.whenComplete((r, t) -> 
+            {
+                if(result.isCancelled())
                 {
-                    throw new RuntimeException(errWorker.error);
+                    destroyTree(process);
                 }
-                
-                if(inWorker != null && inWorker.error != null)
+            });
+            
+            // A pump that fails stops reading; the process would block on a full pipe and never exit.
+            for(final AbstractFacilitator worker : Arrays.asList(outWorker, errWorker))
+            {
+                if(worker != null)
                 {
-                    throw new RuntimeException(inWorker.error);
+                    worker.getCompletion().thenRun(() -> 
+                    {
+                        if(worker.error != null)
+                        {
+                            destroyTree(process);
+                        }
+                    });
                 }
-                
-                return process.exitValue();
-            }
-            finally
-            {
-                process.destroy();
             }
+            
+            final long timeout = RetryPolicy.capTimeout(timeoutNanos);
+            final AtomicBoolean timedOut = new AtomicBoolean(false);
+            final ScheduledFuture<?> deadline = timeout <= 0 ? null : 
+                FacilitatorPool.SCHEDULER.schedule(
+                    () -> 
+                    {
+                        if(!result.isDone() && timedOut.compareAndSet(false, true))
+                        {
+                            destroyTree(process);
+                        }
+                    }, 
+                    timeout, TimeUnit.NANOSECONDS);
+            
+            CompletableFuture.allOf(pulled, completion(errWorker), process.onExit())
+                .thenCompose(v -> inWorker==null?CompletableFuture.<Void>completedFuture(null):inWorker.stop())
+                .whenComplete((v, t) -> 
+                {
+                    try
+                    {
+                        if(deadline != null)
+                        {
+                            deadline.cancel(false);
+                        }
+                        process.destroy();
+                        removeShutdownHandler(hook);
+                        sampler.stop();
+                        
+                        final SubprocessResult finished = new SubprocessResult(this, process.exitValue(), 
+                            workingFolder.getAbsolutePath(), startMillis, 
+                            sampler.toMetrics(spawnNanos, System.nanoTime() - startNanos, 
+                                inWorker==null?0:inWorker.getTransferred(), 
+                                outWorker==null?-1:outWorker.getTransferred(), 
+                                errWorker==null?-1:errWorker.getTransferred()));
+                        final Throwable error = 
+                            timedOut.get() ? new SubprocessTimeoutException(this, finished.exitCode, 
+                                workingFolder.getAbsolutePath(), TimeUnit.NANOSECONDS.toMillis(timeout)) :
+                            t != null ? t :
+                            outWorker != null && outWorker.error != null ? new RuntimeException(outWorker.error) :
+                            errWorker != null && errWorker.error != null ? new RuntimeException(errWorker.error) :
+                            inWorker != null && inWorker.error != null ? new RuntimeException(inWorker.error) :
+                            null;
+                        ProcessRegistry.fireFinished(finished, error);
+                        if(error != null)
+                        {
+                            result.completeExceptionally(error);
+                        }
+                        else
+                        {
+                            skipToEnd(out);
+                            skipToEnd(err);
+                            result.complete(finished);
+                        }
+                    }
+                    catch(final Throwable e)
+                    {
+                        result.completeExceptionally(e);
+                    }
+                });
+            return result;
+        }
+        catch(final IOException | RuntimeException | Error e)
+        {
+            process.destroy();
+            removeShutdownHandler(hook);
+            sampler.stop();
+            throw e;
+        }
+    }
+    
+    /**
+     * Create the {@link ProcessBuilder} for this command, with the working folder and
+     * environment applied. When the JVM's environment is inherited unchanged, the environment 
+     * of the builder is never touched, so the JDK passes its own straight through instead of 
+     * copying it.
+     * @return The process builder.
+     */
+    ProcessBuilder newProcessBuilder()
+    {
+        final ProcessBuilder pb = new ProcessBuilder(this);
+        pb.directory(workingFolder);
+        if(getFixedEnvironment() != null)
+        {
+            final Map<String,String> env = pb.environment();
+            env.clear();
+            env.putAll(getEnvironment());
         }
-        finally
+        else if(!deltaEnv.isEmpty())
         {
-            try
+            applyDelta(pb.environment());
+        }
+        return pb;
+    }
+    
+    /**
+     * An empty map with the key rules of environment variable names on this platform: ignoring 
+     * case on Windows, exact elsewhere.
+     * @return The map.
+     */
+    private static Map<String,String> newEnvironmentMap()
+    {
+        return File.separatorChar=='\\'?new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER):new HashMap<String,String>();
+    }
+    
+    /**
+     * Apply the environment changes to an environment. The map must follow the key rules of 
+     * the platform, as {@link ProcessBuilder#environment()} does, so that on Windows a change to 
+     * <tt>PATH</tt> replaces <tt>Path</tt>.
+     * @param env The environment to change.
+     */
+    private void applyDelta(final Map<String,String> env)
+    {
+        for(final Map.Entry<String,String> dV : deltaEnv.entrySet())
+        {
+            if(dV.getValue() == null)
             {
-                if(hook != null)
-                {
-                    Runtime.getRuntime().removeShutdownHook(hook);
-                }
+                env.remove(dV.getKey());
             }
-            catch(IllegalStateException e)
+            else
             {
-                //Ignore.
+                env.put(dV.getKey(), dV.getValue());
             }
         }
     }
     
+    /**
+     * Find a redirect that lets the operating system deliver output directly, with no worker. 
+     * A plain {@link SquashedOutputStream} is discarded, and a {@link FileTargetOutputStream} 
+     * is appended to.
+     * @param out The output target.
+     * @return The redirect, or {@code null} if the output has to be pumped.
+     */
+    static Redirect toRedirect(final OutputStream out)
+    {
+        if(out != null && out.getClass() == SquashedOutputStream.class)
+        {
+            return Redirect.DISCARD;
+        }
+        else if(out instanceof FileTargetOutputStream)
+        {
+            return Redirect.appendTo(((FileTargetOutputStream)out).getFile());
+        }
+        return null;
+    }
+    
+    /**
+     * After a process has appended to a {@link FileTargetOutputStream}, move the stream
+     * to the end of the file so that later writes follow the output of the process.
+     * @param out The output target.
+     * @throws IOException See {@link IOException}.
+     */
+    static void skipToEnd(final OutputStream out) throws IOException
+    {
+        if(out instanceof FileTargetOutputStream)
+        {
+            final FileChannel channel = ((FileTargetOutputStream)out).getChannel();
+            channel.position(channel.size());
+        }
+    }
+    
+    /**
+     * The completion of a worker.
+     * @param worker The worker, or {@code null} if there is none.
+     * @return The completion of the worker; already complete if there is none.
+     */
+    static CompletableFuture<Void> completion(final AbstractFacilitator worker)
+    {
+        return worker==null?CompletableFuture.<Void>completedFuture(null):worker.getCompletion();
+    }
+    
+    /**
+     * Register the shutdown handler for a process with the {@link ProcessRegistry}.
+     * @param process The process.
+     * @return The registered handler, or {@code null} if the JVM is already shutting down.
+     */
+    AbstractShutdownHandler addShutdownHandler(final Process process)
+    {
+        final AbstractShutdownHandler hook = newShutdownHandler(process);
+        return ProcessRegistry.register(hook)?hook:null;
+    }
+    
+    /**
+     * Remove a shutdown handler registered by {@link #addShutdownHandler(Process)}.
+     * @param hook The handler, or {@code null}.
+     */
+    static void removeShutdownHandler(final AbstractShutdownHandler hook)
+    {
+        if(hook != null)
+        {
+            ProcessRegistry.unregister(hook);
+        }
+    }
+    
+    /**
+     * Unwrap the cause of a failed future so that it can be rethrown as-is.
+     * @param e The exception from {@link Future#get()}.
+     * @return The cause, if it is an {@link Exception}.
+     */
+    static Exception unwrap(final ExecutionException e)
+    {
+        final Throwable cause = e.getCause();
+        if(cause instanceof Error)
+        {
+            throw (Error)cause;
+        }
+        return cause instanceof Exception?(Exception)cause:e;
+    }
+    
+    /**
+     * Provides the executor that runs the stdin, stdout, and stderr workers. The default is a shared 
+     * pool of daemon threads that are reused across processes. Override this method to supply a different
+     * executor, for example one that starts a virtual thread per task. The executor must be able to run 
+     * all three workers of a process at the same time.
+     * @return The worker executor.
+     */
+    protected Executor getFacilitatorExecutor()
+    {
+        return FacilitatorPool.EXECUTOR;
+    }
+    
     /**
      * Provides the shutdown handler. The default implementation is {@link Subprocess.DefaultShutdownHandlerImpl}.
      * Override this method to modify the shutdown.
@@ -369,10 +1122,11 @@ public class Subprocess extends ArrayList<String>
     }
     
     /**
-     * Abstract shutdown hook.
+     * Abstract shutdown handler. Handlers are tracked by the {@link ProcessRegistry}, and
+     * {@link #execute()} is called for each process that is still running when the JVM exits.
      * @author Jason Smith
      */
-    protected static abstract class AbstractShutdownHandler extends Thread
+    protected static abstract class AbstractShutdownHandler
     {
         /**
          * The process that is being shutdown.
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.SystemUtils;
+
+import com.googlecode.jaks.common.io.ChunkedOutputStream;
+
+/**
+ * <p>Runs one command over a long list of arguments the way <tt>xargs</tt> does: the arguments 
+ * are appended to a fixed command prefix in as few invocations as the operating system allows.
+ * Running <tt>chmod</tt> or <tt>svn propset</tt> once per thousand paths instead of once per 
+ * path removes nearly all of the process creation cost.</p>
+ * 
+ * <p>On POSIX systems each invocation is kept within <tt>ARG_MAX</tt>, counting every argument 
+ * and every environment variable of the child, with their terminators and pointers, and leaving
+ * {@link #ARG_MAX_HEADROOM} bytes spare. On Windows each command line is kept within 
+ * {@link #WINDOWS_COMMAND_LINE_MAX} characters. Either limit can be lowered with 
+ * {@link #setMaxBytes(long)} and {@link #setMaxArgs(int)}.</p>
+ * 
+ * <p>Invocations run through a {@link SubprocessExecutor}, so they can run in parallel; the 
+ * executor's ordering and failure policy apply. Each invocation is one {@link SubprocessResult},
+ * and its exit code is reported in a {@link SubprocessException} if it fails.</p>
+ * @author Jason Smith
+ */
+public class SubprocessBatch
+{
+    /** Bytes left unused below <tt>ARG_MAX</tt>, as <tt>xargs</tt> does. */
+    public static final int ARG_MAX_HEADROOM = 2048;
+    
+    /** The longest command line <tt>CreateProcess</tt> accepts, in characters. */
+    public static final int WINDOWS_COMMAND_LINE_MAX = 32767;
+    
+    /** Used when <tt>ARG_MAX</tt> can't be determined; the Linux default before 2.6.23. */
+    private static final long FALLBACK_ARG_MAX = 128 * 1024;
+    
+    /** Size of an <tt>argv</tt> or <tt>envp</tt> pointer. */
+    private static final int POINTER_SIZE = 8;
+    
+    private final Subprocess prefix;
+    
+    private final List<String> arguments;
+    
+    private int maxArgs = Integer.MAX_VALUE;
+    
+    private long maxBytes = 0;
+    
+    /**
+     * Constructor.
+     * @param prefix The command, and any leading arguments; its working folder, environment 
+     * and settings are used for every invocation.
+     * @param arguments The arguments to spread across invocations.
+     */
+    public SubprocessBatch(final Subprocess prefix, final Collection<? extends String> arguments)
+    {
+        this.prefix = prefix;
+        this.arguments = new ArrayList<String>(arguments);
+    }
+    
+    /**
+     * Limit the number of arguments passed to each invocation, like <tt>xargs -n</tt>.
+     * @param maxArgs The most arguments per invocation.
+     * @return This instance.
+     */
+    public SubprocessBatch setMaxArgs(final int maxArgs)
+    {
+        if(maxArgs < 1)
+        {
+            throw new IllegalArgumentException("Must allow at least one argument.");
+        }
+        this.maxArgs = maxArgs;
+        return this;
+    }
+    
+    /**
+     * Limit the size of each invocation below what the system allows, like <tt>xargs -s</tt>. 
+     * The size is counted the same way as the system limit.
+     * @param maxBytes The most bytes per invocation; zero for the system limit, which is the default.
+     * @return This instance.
+     */
+    public SubprocessBatch setMaxBytes(final long maxBytes)
+    {
+        if(maxBytes < 0)
+        {
+            throw new IllegalArgumentException("Size must not be negative.");
+        }
+        this.maxBytes = maxBytes;
+        return this;
+    }
+    
+    /**
+     * Split the arguments into invocations. No invocation is made for an empty argument list.
+     * @return The invocations, in argument order.
+     * @throws IllegalArgumentException A single argument does not fit in an invocation.
+     * @throws IOException See {@link IOException}.
+     */
+    public List<Subprocess> split() throws IOException
+    {
+        final long budget = getLimit() - fixedCost();
+        if(budget <= 0)
+        {
+            throw new IllegalStateException("The command and environment leave no room for arguments.");
+        }
+        
+        final List<Subprocess> invocations = new ArrayList<Subprocess>();
+        final List<String> chunk = new ArrayList<String>();
+        long used = 0;
+        for(final String argument : arguments)
+        {
+            final long cost = cost(argument);
+            if(cost > budget)
+            {
+                throw new IllegalArgumentException("Argument is too long for a command line: " 
+                    + (argument.length() > 64 ? argument.substring(0, 64) + "..." : argument));
+            }
+            if(used + cost > budget || chunk.size() == maxArgs)
+            {
+                invocations.add(prefix.withArguments(chunk));
+                chunk.clear();
+                used = 0;
+            }
+            chunk.add(argument);
+            used += cost;
+        }
+        if(!chunk.isEmpty())
+        {
+            invocations.add(prefix.withArguments(chunk));
+        }
+        return invocations;
+    }
+    
+    /**
+     * Run every invocation through an executor.
+     * @param executor The executor, which sets the parallelism, ordering and failure policy.
+     * @return The result of each invocation.
+     * @throws SubprocessException See {@link SubprocessExecutor#invokeAll(java.util.stream.Stream)}.
+     * @throws SubprocessBatchException See {@link SubprocessExecutor#invokeAll(java.util.stream.Stream)}.
+     * @throws Exception See {@link Exception}.
+     */
+    public List<SubprocessResult> invokeAll(final SubprocessExecutor executor) 
+            throws SubprocessException, SubprocessBatchException, Exception
+    {
+        return executor.invokeAll(split().stream());
+    }
+    
+    /**
+     * Run the invocations one at a time, stopping at the first failure, and return their 
+     * stdout joined together.
+     * @return Stdout of every invocation, in argument order.
+     * @throws SubprocessException See {@link SubprocessException}.
+     * @throws Exception See {@link Exception}.
+     */
+    public byte[] call() throws SubprocessException, Exception
+    {
+        return call(new SubprocessExecutor(1));
+    }
+    
+    /**
+     * Run the invocations through an executor and return their stdout joined together.
+     * @param executor The executor; stdout is joined in the order it returns results.
+     * @return Stdout of every invocation.
+     * @throws SubprocessException See {@link SubprocessException}.
+     * @throws SubprocessBatchException See {@link SubprocessBatchException}.
+     * @throws Exception See {@link Exception}.
+     */
+    public byte[] call(final SubprocessExecutor executor) throws SubprocessException, SubprocessBatchException, Exception
+    {
+        final List<SubprocessResult> results = invokeAll(executor);
+        final ChunkedOutputStream out = new ChunkedOutputStream(results.stream().mapToLong(result -> result.stdout.length).sum());
+        for(final SubprocessResult result : results)
+        {
+            out.write(result.stdout);
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * The size allowed for one invocation.
+     * @return The limit, in the units of {@link #cost(String)}.
+     */
+    private long getLimit()
+    {
+        final long system = SystemUtils.IS_OS_WINDOWS ? WINDOWS_COMMAND_LINE_MAX : getArgMax() - ARG_MAX_HEADROOM;
+        return maxBytes > 0 ? Math.min(maxBytes, system) : system;
+    }
+    
+    /**
+     * The size of the command prefix and, on POSIX, the environment of the child.
+     * @return The size taken before any argument is added.
+     */
+    long fixedCost()
+    {
+        long cost = 0;
+        for(final String element : prefix)
+        {
+            cost += cost(element);
+        }
+        if(!SystemUtils.IS_OS_WINDOWS)
+        {
+            for(final Map.Entry<String,String> v : prefix.getEnvironment().entrySet())
+            {
+                cost += cost(v.getKey() + "=" + v.getValue());
+            }
+            //argv and envp terminators.
+            cost += 2 * POINTER_SIZE;
+        }
+        return cost;
+    }
+    
+    /**
+     * The space one argument takes in an invocation.
+     * @param argument The argument.
+     * @return Bytes on POSIX, with terminator and pointer; characters on Windows, with a space and quotes.
+     */
+    static long cost(final String argument)
+    {
+        if(SystemUtils.IS_OS_WINDOWS)
+        {
+            return argument.length() + 3;
+        }
+        return argument.getBytes(Charset.defaultCharset()).length + 1 + POINTER_SIZE;
+    }
+    
+    /**
+     * <tt>ARG_MAX</tt> of this system, from <tt>getconf</tt>. The value is looked up once.
+     * @return The size of arguments plus environment a new process may be given, in bytes.
+     */
+    static long getArgMax()
+    {
+        return Sysconf.get("ARG_MAX", FALLBACK_ARG_MAX);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by {@link SubprocessExecutor#invokeAll(java.util.stream.Stream)} under 
+ * {@link SubprocessExecutor.FailurePolicy#COLLECT_ALL} when one or more jobs failed. Every job 
+ * has finished by the time this is thrown.
+ * @author Jason Smith
+ */
+public class SubprocessBatchException extends Exception
+{
+    private static final long serialVersionUID = 6221380716482531907L;
+    
+    /** The results of the jobs that succeeded, in the order the executor was asked for. */
+    public final List<SubprocessResult> results;
+    
+    /** The failures, in the order the jobs finished. */
+    public final List<Exception> failures;
+    
+    SubprocessBatchException(final List<SubprocessResult> results, final List<Exception> failures)
+    {
+        super(failures.size() + " of " + (results.size() + failures.size()) + " jobs failed.", failures.get(0));
+        this.results = Collections.unmodifiableList(results);
+        this.failures = Collections.unmodifiableList(failures);
+        for(final Exception failure : failures.subList(1, failures.size()))
+        {
+            addSuppressed(failure);
+        }
+    }
+}
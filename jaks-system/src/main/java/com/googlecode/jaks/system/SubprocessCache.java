@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.googlecode.jaks.common.io.ChunkedOutputStream;
+import com.googlecode.jaks.common.io.HeadTailOutputStream;
+import com.googlecode.jaks.common.io.StreamUtil;
+
+/**
+ * <p>Remembers the results of deterministic, read-only commands so that repeating one does 
+ * not start a process. Caching is opt-in per {@link Subprocess}, with 
+ * {@link Subprocess#setCache(SubprocessCache, File...)}, and applies to {@link Subprocess#call()}.</p>
+ * 
+ * <p>Results are keyed on the command, the canonical working folder, the environment changes,
+ * the complete environment if one was given and, for each declared input file, its path, size 
+ * and modification time; editing an input makes the old entry unreachable. Stdout is cached, 
+ * and so is a failure: a non-zero exit code is cached with its stderr and rethrown as a 
+ * {@link SubprocessException}. Timeouts are not cached, and neither are failures that the 
+ * {@link RetryPolicy} of the command would retry.</p>
+ * 
+ * <p>Entries are kept in memory up to a count, least recently used first out, and optionally 
+ * on disk under a cache directory, where they outlive the JVM. Two threads that miss on the 
+ * same key at once both run the command.</p>
+ * @author Jason Smith
+ */
+public class SubprocessCache
+{
+    /** Identifies the format of files in the cache directory. */
+    private static final int DISK_FORMAT = 0x4a4b5331;
+    
+    /**
+     * A cached result.
+     */
+    private static final class Entry
+    {
+        final int exitCode;
+        final byte[] stdout;
+        final String stderr;
+        
+        Entry(final int exitCode, final byte[] stdout, final String stderr)
+        {
+            this.exitCode = exitCode;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+        
+        /**
+         * The stdout of the command, or its failure.
+         * @param process The command.
+         * @return A copy of stdout.
+         * @throws SubprocessException The command exited with a non-zero exit code.
+         */
+        byte[] replay(final Subprocess process) throws SubprocessException
+        {
+            if(exitCode != 0)
+            {
+                throw new SubprocessException(process, exitCode, process.getWorkingFolder().getAbsolutePath(), stderr);
+            }
+            return stdout.clone();
+        }
+    }
+    
+    private final int maxEntries;
+    
+    /** Guarded by itself. */
+    private final LinkedHashMap<String,Entry> memory;
+    
+    private volatile File directory = null;
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    
+    /**
+     * Constructor.
+     * @param maxEntries The most results kept in memory.
+     */
+    public SubprocessCache(final int maxEntries)
+    {
+        if(maxEntries < 1)
+        {
+            throw new IllegalArgumentException("Must allow at least one entry.");
+        }
+        this.maxEntries = maxEntries;
+        this.memory = new LinkedHashMap<String,Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String,Entry> eldest)
+            {
+                return size() > SubprocessCache.this.maxEntries;
+            }
+        };
+    }
+    
+    /**
+     * Also keep results on disk, one file per entry. Files are never removed by the cache;
+     * delete the directory, or old files in it, to reclaim the space.
+     * @param directory The cache directory, created if it does not exist; {@code null} for memory only.
+     * @return This instance.
+     * @throws IOException The directory could not be created.
+     */
+    public SubprocessCache setDirectory(final File directory) throws IOException
+    {
+        if(directory != null)
+        {
+            Files.createDirectories(directory.toPath());
+        }
+        this.directory = directory;
+        return this;
+    }
+    
+    /**
+     * The number of calls served from the cache, from memory or disk.
+     * @return The hit count.
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+    
+    /**
+     * The number of calls served from the disk tier.
+     * @return The disk hit count.
+     */
+    public long getDiskHitCount()
+    {
+        return diskHits.get();
+    }
+    
+    /**
+     * The number of calls that ran the command.
+     * @return The miss count.
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+    
+    /**
+     * The number of results held in memory.
+     * @return The memory tier size.
+     */
+    public int getSize()
+    {
+        synchronized(memory)
+        {
+            return memory.size();
+        }
+    }
+    
+    /**
+     * Forget every result held in memory. The disk tier is left alone.
+     */
+    public void clear()
+    {
+        synchronized(memory)
+        {
+            memory.clear();
+        }
+    }
+    
+    /**
+     * Serve a call from the cache, or run it and remember the result.
+     * @param process The command.
+     * @param inputs Files the output depends on.
+     * @return Stdout.
+     * @throws SubprocessException The command exited with a non-zero exit code, now or when cached.
+     * @throws Exception See {@link Exception}.
+     */
+    byte[] call(final Subprocess process, final List<File> inputs) throws SubprocessException, Exception
+    {
+        final String key = key(process, inputs);
+        Entry entry;
+        synchronized(memory)
+        {
+            entry = memory.get(key);
+        }
+        if(entry == null)
+        {
+            entry = readDisk(key);
+            if(entry != null)
+            {
+                diskHits.incrementAndGet();
+                remember(key, entry);
+            }
+        }
+        if(entry != null)
+        {
+            hits.incrementAndGet();
+            return entry.replay(process);
+        }
+        
+        misses.incrementAndGet();
+        final ChunkedOutputStream out = new ChunkedOutputStream();
+        final HeadTailOutputStream err = process.newStderrCapture();
+        final int exitCode = process.execute(null, out, err);
+        entry = new Entry(exitCode, out.toByteArray(), err.toString(Charset.forName(StreamUtil.UTF8)));
+        final RetryPolicy retry = process.getRetryPolicy();
+        if(exitCode != 0 && retry != null)
+        {
+            final SubprocessException failure = new SubprocessException(process, exitCode, process.getWorkingFolder().getAbsolutePath(), entry.stderr);
+            if(retry.isRetryable(failure))
+            {
+                //A failure worth retrying is transient by definition; don't remember it.
+                throw failure;
+            }
+        }
+        remember(key, entry);
+        writeDisk(key, entry);
+        return entry.replay(process);
+    }
+    
+    /**
+     * Keep an entry in memory.
+     * @param key The key.
+     * @param entry The entry.
+     */
+    private void remember(final String key, final Entry entry)
+    {
+        synchronized(memory)
+        {
+            memory.put(key, entry);
+        }
+    }
+    
+    /**
+     * Look an entry up in the cache directory.
+     * @param key The key.
+     * @return The entry, or {@code null} if there is no directory, no entry, or it can't be read.
+     */
+    private Entry readDisk(final String key)
+    {
+        final File folder = directory;
+        if(folder == null)
+        {
+            return null;
+        }
+        final File file = new File(folder, key);
+        if(!file.isFile())
+        {
+            return null;
+        }
+        try(final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()))))
+        {
+            if(in.readInt() != DISK_FORMAT)
+            {
+                return null;
+            }
+            final int exitCode = in.readInt();
+            final byte[] stdout = new byte[in.readInt()];
+            in.readFully(stdout);
+            final byte[] stderr = new byte[in.readInt()];
+            in.readFully(stderr);
+            return new Entry(exitCode, stdout, new String(stderr, StreamUtil.UTF8));
+        }
+        catch(final IOException e)
+        {
+            //Treat a damaged or partly written file as a miss.
+            return null;
+        }
+    }
+    
+    /**
+     * Store an entry in the cache directory, atomically, if there is one.
+     * @param key The key.
+     * @param entry The entry.
+     * @throws IOException See {@link IOException}.
+     */
+    private void writeDisk(final String key, final Entry entry) throws IOException
+    {
+        final File folder = directory;
+        if(folder == null)
+        {
+            return;
+        }
+        final File temp = File.createTempFile(key, ".tmp", folder);
+        try
+        {
+            try(final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath()))))
+            {
+                final byte[] stderr = entry.stderr.getBytes(StreamUtil.UTF8);
+                out.writeInt(DISK_FORMAT);
+                out.writeInt(entry.exitCode);
+                out.writeInt(entry.stdout.length);
+                out.write(entry.stdout);
+                out.writeInt(stderr.length);
+                out.write(stderr);
+            }
+            Files.move(temp.toPath(), new File(folder, key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+    
+    /**
+     * The cache key of a call: a SHA-256 hash, in hex, of everything the result depends on.
+     * @param process The command.
+     * @param inputs Files the output depends on.
+     * @return The key.
+     * @throws IOException See {@link IOException}.
+     */
+    static String key(final Subprocess process, final List<File> inputs) throws IOException
+    {
+        final MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch(final NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(process.size());
+        for(final String element : process)
+        {
+            writeString(out, element);
+        }
+        writeString(out, process.getWorkingFolder().getPath());
+        final Map<String,String> fixed = process.getFixedEnvironment();
+        for(final Map<String,String> vars : Arrays.asList(process.getDeltaEnv(), fixed==null?Collections.<String,String>emptyMap():fixed))
+        {
+            final Map<String,String> env = new TreeMap<String,String>(vars);
+            out.writeInt(env.size());
+            for(final Map.Entry<String,String> v : env.entrySet())
+            {
+                writeString(out, v.getKey());
+                out.writeBoolean(v.getValue() != null);
+                writeString(out, v.getValue()==null?"":v.getValue());
+            }
+        }
+        out.writeBoolean(fixed != null);
+        out.writeBoolean(process.isMergeStderr());
+        out.writeInt(inputs.size());
+        for(final File input : inputs)
+        {
+            final File file = input.getCanonicalFile();
+            writeString(out, file.getPath());
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+        }
+        out.flush();
+        
+        final StringBuilder hex = new StringBuilder();
+        for(final byte b : digest.digest(bytes.toByteArray()))
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+    
+    /**
+     * Write a string of any length, prefixed by its length.
+     * @param out The target.
+     * @param value The string.
+     * @throws IOException See {@link IOException}.
+     */
+    private static void writeString(final DataOutputStream out, final String value) throws IOException
+    {
+        final byte[] bytes = value.getBytes(StreamUtil.UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -36,6 +36,9 @@ public class SubprocessException extends Exception
     /** The working-folder path. */
     public final String path;
     
+    /** How many times the command was run before giving up; more than one under a {@link RetryPolicy}. */
+    private int attempts = 1;
+    
     SubprocessException(final List<String> command, final int exitCode, final String path, final String message)
     {
         super(message);
@@ -50,10 +53,29 @@ public class SubprocessException extends Exception
         this(command, exitCode, path, "");
     }
     
+    /**
+     * How many times the command was run before giving up. Earlier failures are attached to
+     * this one as {@linkplain #getSuppressed() suppressed} exceptions.
+     * @return The number of attempts; 1 unless a {@link RetryPolicy} retried the command.
+     */
+    public int getAttempts()
+    {
+        return attempts;
+    }
+    
+    /**
+     * Record how many times the command was run.
+     * @param attempts The number of attempts.
+     */
+    void setAttempts(final int attempts)
+    {
+        this.attempts = attempts;
+    }
+    
     @Override
     public String toString()
     {
-        return getClass().getName() + " [" + exitCode + "] " + path + "$ " + command + "\n" + getMessage();
+        return getClass().getName() + " [" + exitCode + "] " + (attempts>1?"after " + attempts + " attempts ":"") + path + "$ " + command + "\n" + getMessage();
     }
 }
 
@@ -0,0 +1,520 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+/**
+ * <p>Runs many {@link Subprocess} jobs concurrently, keeping at most a fixed amount of work
+ * in flight. Each job costs a weight (one by default); a job starts only when the weight of 
+ * everything running plus its own fits within the capacity. Jobs start in submission order.</p>
+ * 
+ * <p>Jobs are run with {@link Subprocess#callAsync()}, so stdout and stderr are captured and 
+ * a non-zero exit code is a failure. No thread is held per job: a finishing job starts the 
+ * next one from its completion callback. A job holds its capacity until its process has 
+ * exited, so a cancelled job that is still within its 
+ * {@linkplain Subprocess#setKillGracePeriod(long, java.util.concurrent.TimeUnit) grace period} 
+ * still counts.</p>
+ * 
+ * <pre>
+ * final List&lt;SubprocessResult&gt; results = SubprocessExecutor.forProcessors()
+ *     .setOrdering(Ordering.COMPLETION)
+ *     .invokeAll(files.stream().map(f -&gt; new Subprocess("gzip", "-9", f.getPath())));
+ * </pre>
+ * @author Jason Smith
+ */
+public class SubprocessExecutor
+{
+    /**
+     * The order of the results returned by {@link SubprocessExecutor#invokeAll(Stream)}.
+     */
+    public enum Ordering
+    {
+        /** Results are in the order the jobs were submitted. */
+        SUBMISSION,
+        
+        /** Results are in the order the jobs finished. */
+        COMPLETION
+    }
+    
+    /**
+     * What {@link SubprocessExecutor#invokeAll(Stream)} does when a job fails.
+     */
+    public enum FailurePolicy
+    {
+        /** Cancel every other job and throw the first failure. */
+        FAIL_FAST,
+        
+        /** Run every job, then throw a {@link SubprocessBatchException} if any failed. */
+        COLLECT_ALL
+    }
+    
+    /**
+     * A submitted job.
+     */
+    private static final class Job
+    {
+        final Subprocess process;
+        final int weight;
+        final long submitNanos = System.nanoTime();
+        final CompletableFuture<SubprocessResult> future = new CompletableFuture<>();
+        
+        Job(final Subprocess process, final int weight)
+        {
+            this.process = process;
+            this.weight = weight;
+        }
+    }
+    
+    /** Total weight that may run at once. */
+    private final int capacity;
+    
+    /** Weight not currently in use. Guarded by {@code this}. */
+    private int available;
+    
+    /** Number of jobs running. Guarded by {@code this}. */
+    private int running = 0;
+    
+    /** Whether a thread is starting jobs in {@link #drain()}. Guarded by {@code this}. */
+    private boolean draining = false;
+    
+    /** Jobs waiting to start. Guarded by {@code this}. */
+    private final ArrayDeque<Job> queue = new ArrayDeque<>();
+    
+    private volatile ToIntFunction<? super Subprocess> weigher = process -> 1;
+    private volatile Ordering ordering = Ordering.SUBMISSION;
+    private volatile FailurePolicy failurePolicy = FailurePolicy.FAIL_FAST;
+    
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0L);
+    
+    /**
+     * Constructor.
+     * @param capacity The total weight that may run at once; with the default weight of one, 
+     * this is the number of concurrent processes.
+     */
+    public SubprocessExecutor(final int capacity)
+    {
+        if(capacity < 1)
+        {
+            throw new IllegalArgumentException("Capacity must be at least 1.");
+        }
+        this.capacity = capacity;
+        this.available = capacity;
+    }
+    
+    /**
+     * An executor that runs one job per available processor.
+     * @return A new executor.
+     */
+    public static SubprocessExecutor forProcessors()
+    {
+        return new SubprocessExecutor(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Set how much of the capacity each job uses. A job that is itself multi-threaded can be 
+     * given a weight matching its thread count. Weights are clamped to between one and the 
+     * capacity.
+     * @param weigher Returns the weight of a job.
+     * @return This executor.
+     */
+    public SubprocessExecutor setWeigher(final ToIntFunction<? super Subprocess> weigher)
+    {
+        this.weigher = weigher;
+        return this;
+    }
+    
+    /**
+     * Set the order of the results returned by {@link #invokeAll(Stream)}. The default is 
+     * {@link Ordering#SUBMISSION}.
+     * @param ordering The ordering.
+     * @return This executor.
+     */
+    public SubprocessExecutor setOrdering(final Ordering ordering)
+    {
+        this.ordering = ordering;
+        return this;
+    }
+    
+    /**
+     * Set what {@link #invokeAll(Stream)} does when a job fails. The default is 
+     * {@link FailurePolicy#FAIL_FAST}.
+     * @param failurePolicy The policy.
+     * @return This executor.
+     */
+    public SubprocessExecutor setFailurePolicy(final FailurePolicy failurePolicy)
+    {
+        this.failurePolicy = failurePolicy;
+        return this;
+    }
+    
+    /**
+     * Queue a job. It starts as soon as there is capacity for it. Cancelling the returned
+     * future removes a waiting job from the queue, or kills a running one.
+     * @param process The job.
+     * @return The result, as from {@link Subprocess#callAsync()}.
+     */
+    public CompletableFuture<SubprocessResult> submit(final Subprocess process)
+    {
+        final Job job = new Job(process, Math.max(1, Math.min(capacity, weigher.applyAsInt(process))));
+        synchronized(this)
+        {
+            queue.add(job);
+        }
+        job.future.whenComplete((result, t) -> 
+            {
+                if(job.future.isCancelled())
+                {
+                    synchronized(this)
+                    {
+                        queue.remove(job);
+                    }
+                }
+            });
+        drain();
+        return job.future;
+    }
+    
+    /**
+     * Run a batch of jobs and wait for them, applying the ordering and failure policy. Jobs are
+     * taken from the stream as earlier ones finish, so no more of them are submitted at once 
+     * than the capacity, and a large or endless stream is never queued in full.
+     * @param jobs The jobs.
+     * @return The results of all the jobs.
+     * @throws SubprocessException A job failed, under {@link FailurePolicy#FAIL_FAST}.
+     * @throws SubprocessBatchException One or more jobs failed, under {@link FailurePolicy#COLLECT_ALL}.
+     * @throws InterruptedException The wait was interrupted; the remaining jobs are cancelled.
+     * @throws Exception A job could not be started, under {@link FailurePolicy#FAIL_FAST}.
+     */
+    public List<SubprocessResult> invokeAll(final Stream<? extends Subprocess> jobs) 
+            throws SubprocessException, SubprocessBatchException, InterruptedException, Exception
+    {
+        final FailurePolicy policy = failurePolicy;
+        final Iterator<? extends Subprocess> source = jobs.iterator();
+        final List<CompletableFuture<SubprocessResult>> futures = new ArrayList<>();
+        final BlockingQueue<CompletableFuture<SubprocessResult>> done = new LinkedBlockingQueue<>();
+        
+        final List<SubprocessResult> results = new ArrayList<>();
+        final List<Exception> failures = new ArrayList<>();
+        try
+        {
+            for(int outstanding = 0;; --outstanding)
+            {
+                for(; outstanding < capacity && source.hasNext(); ++outstanding)
+                {
+                    final CompletableFuture<SubprocessResult> future = submit(source.next());
+                    futures.add(future);
+                    future.whenComplete((result, t) -> done.add(future));
+                }
+                if(outstanding == 0)
+                {
+                    break;
+                }
+                final CompletableFuture<SubprocessResult> future = done.take();
+                try
+                {
+                    results.add(future.join());
+                }
+                catch(final CompletionException | CancellationException e)
+                {
+                    final Exception failure = unwrap(e);
+                    if(policy == FailurePolicy.FAIL_FAST)
+                    {
+                        cancel(futures);
+                        throw failure;
+                    }
+                    failures.add(failure);
+                }
+            }
+        }
+        catch(final InterruptedException e)
+        {
+            cancel(futures);
+            throw e;
+        }
+        
+        final List<SubprocessResult> ordered;
+        if(ordering == Ordering.COMPLETION)
+        {
+            ordered = results;
+        }
+        else
+        {
+            ordered = new ArrayList<>(results.size());
+            for(final CompletableFuture<SubprocessResult> future : futures)
+            {
+                if(!future.isCompletedExceptionally())
+                {
+                    ordered.add(future.join());
+                }
+            }
+        }
+        if(!failures.isEmpty())
+        {
+            throw new SubprocessBatchException(ordered, failures);
+        }
+        return ordered;
+    }
+    
+    /**
+     * The number of jobs waiting for capacity.
+     * @return The queue depth.
+     */
+    public synchronized int getQueueDepth()
+    {
+        return queue.size();
+    }
+    
+    /**
+     * The number of jobs running now, including cancelled ones whose processes have not exited yet.
+     * @return The running count.
+     */
+    public synchronized int getRunningCount()
+    {
+        return running;
+    }
+    
+    /**
+     * The number of jobs that have finished, successfully or not.
+     * @return The completed count.
+     */
+    public long getCompletedCount()
+    {
+        return completed.get();
+    }
+    
+    /**
+     * The number of jobs that have failed or been cancelled.
+     * @return The failed count.
+     */
+    public long getFailedCount()
+    {
+        return failed.get();
+    }
+    
+    /**
+     * The mean time from submission to completion of finished jobs, including time spent 
+     * waiting in the queue. The run time of each process alone is in 
+     * {@link SubprocessResult#elapsedNanos}.
+     * @return The mean latency in nanoseconds, or zero if no job has finished.
+     */
+    public long getMeanLatencyNanos()
+    {
+        final long count = completed.get();
+        return count == 0 ? 0 : totalLatencyNanos.get() / count;
+    }
+    
+    /**
+     * The longest time from submission to completion of any finished job.
+     * @return The maximum latency in nanoseconds.
+     */
+    public long getMaxLatencyNanos()
+    {
+        return maxLatencyNanos.get();
+    }
+    
+    /**
+     * Start queued jobs while there is capacity for the job at the head of the queue. Only one
+     * thread drains at a time, in a loop; a job that finishes while it does so, even inline 
+     * because it failed to start, leaves its capacity for that loop to pick up instead of 
+     * draining again on the same stack.
+     */
+    private void drain()
+    {
+        synchronized(this)
+        {
+            if(draining)
+            {
+                return;
+            }
+            draining = true;
+        }
+        boolean done = false;
+        try
+        {
+            while(!done)
+            {
+                final List<Job> ready = takeReady();
+                for(final Job job : ready)
+                {
+                    launch(job);
+                }
+                done = ready.isEmpty();
+            }
+        }
+        finally
+        {
+            if(!done)
+            {
+                synchronized(this)
+                {
+                    draining = false;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Take the jobs that fit in the free capacity off the queue, or, if none do, stop draining.
+     * Both happen under the same lock as a release, so a release either sees that nobody is 
+     * draining, and drains itself, or is seen here.
+     * @return The jobs to start, with their capacity taken; empty if draining has stopped.
+     */
+    private synchronized List<Job> takeReady()
+    {
+        final List<Job> ready = new ArrayList<>();
+        while(!queue.isEmpty())
+        {
+            final Job job = queue.peek();
+            if(job.future.isDone())
+            {
+                //Cancelled while waiting.
+                queue.poll();
+                continue;
+            }
+            if(job.weight > available)
+            {
+                break;
+            }
+            queue.poll();
+            available -= job.weight;
+            ++running;
+            ready.add(job);
+        }
+        if(ready.isEmpty())
+        {
+            draining = false;
+        }
+        return ready;
+    }
+    
+    /**
+     * Start a job that has been given capacity.
+     * @param job The job.
+     */
+    private void launch(final Job job)
+    {
+        final CompletableFuture<Process> spawned = new CompletableFuture<>();
+        CompletableFuture<SubprocessResult> call;
+        try
+        {
+            call = job.process.callAsync(null, spawned::complete);
+        }
+        catch(final IOException | RuntimeException | Error e)
+        {
+            call = CompletableFuture.failedFuture(e);
+        }
+        final CompletableFuture<SubprocessResult> started = call;
+        final Process process = spawned.getNow(null);
+        
+        job.future.whenComplete((result, t) -> 
+            {
+                if(job.future.isCancelled())
+                {
+                    started.cancel(true);
+                }
+            });
+        started.whenComplete((result, t) -> 
+            {
+                try
+                {
+                    //Cancelling the call completes it at once, while the process may take its grace period to go.
+                    if(process != null && process.isAlive())
+                    {
+                        process.onExit().whenComplete((p, x) -> release(job));
+                    }
+                    else
+                    {
+                        release(job);
+                    }
+                }
+                finally
+                {
+                    final long latency = System.nanoTime() - job.submitNanos;
+                    totalLatencyNanos.addAndGet(latency);
+                    maxLatencyNanos.accumulate(latency);
+                    completed.incrementAndGet();
+                    if(t != null)
+                    {
+                        failed.incrementAndGet();
+                        job.future.completeExceptionally(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                    }
+                    else
+                    {
+                        job.future.complete(result);
+                    }
+                }
+            });
+    }
+    
+    /**
+     * Give back the capacity of a job whose process has exited, and start what now fits.
+     * @param job The job.
+     */
+    private void release(final Job job)
+    {
+        synchronized(this)
+        {
+            available += job.weight;
+            --running;
+        }
+        drain();
+    }
+    
+    /**
+     * Cancel every job that has not finished.
+     * @param futures The jobs.
+     */
+    private static void cancel(final List<CompletableFuture<SubprocessResult>> futures)
+    {
+        for(final CompletableFuture<SubprocessResult> future : futures)
+        {
+            future.cancel(true);
+        }
+    }
+    
+    /**
+     * Get the exception a job failed with.
+     * @param e The exception thrown by {@link CompletableFuture#join()}.
+     * @return The underlying exception.
+     */
+    private static Exception unwrap(final RuntimeException e)
+    {
+        final Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+        if(cause instanceof Exception)
+        {
+            return (Exception)cause;
+        }
+        return new RuntimeException(cause);
+    }
+}
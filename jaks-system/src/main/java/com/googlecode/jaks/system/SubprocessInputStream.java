@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.googlecode.jaks.common.io.HeadTailOutputStream;
+import com.googlecode.jaks.common.io.StreamUtil;
+
+/**
+ * <p>The stdout of a running {@link Subprocess}, read directly from the pipe as the caller pulls it.
+ * See {@link Subprocess#open(InputStream)}.</p>
+ * 
+ * <p>When the stream has been read to the end, {@link #close()} waits for the process to exit
+ * and throws an {@link IOException} caused by a {@link SubprocessException} if the exit code was 
+ * not zero, or by a {@link SubprocessTimeoutException} if the deadline passed. When the stream
+ * is closed before the end, the process and its descendants are terminated and the exit code is 
+ * not checked, much as a shell pipeline stops a writer whose reader has gone.</p>
+ * @author Jason Smith
+ */
+public class SubprocessInputStream extends FilterInputStream
+{
+    private final Subprocess command;
+    
+    private CompletableFuture<SubprocessResult> result;
+    
+    /** Completes once the pipe is no longer read, releasing the process. */
+    private final CompletableFuture<Void> drained = new CompletableFuture<Void>();
+    
+    private final HeadTailOutputStream stderr;
+    
+    private boolean ended = false;
+    
+    private boolean closed = false;
+    
+    /**
+     * Constructor. The stream is unusable until it is connected to a process.
+     * @param command The command.
+     * @param stderr The stderr capture.
+     */
+    SubprocessInputStream(final Subprocess command, final HeadTailOutputStream stderr)
+    {
+        super(null);
+        this.command = command;
+        this.stderr = stderr;
+    }
+    
+    /**
+     * Read from the stdout pipe of the process.
+     * @param stdout The pipe.
+     * @return Completes once the pipe is no longer read.
+     */
+    CompletableFuture<Void> connect(final InputStream stdout)
+    {
+        this.in = stdout;
+        return drained;
+    }
+    
+    /**
+     * Set the outcome of the process.
+     * @param result Completes when the process has exited and its output has been drained.
+     */
+    void setResult(final CompletableFuture<SubprocessResult> result)
+    {
+        this.result = result;
+    }
+    
+    /**
+     * The outcome of the process, including its exit code and metrics. The future is cancelled
+     * if the stream is closed before the end.
+     * @return The result; it completes only once stdout has been read to the end.
+     */
+    public CompletableFuture<SubprocessResult> getResult()
+    {
+        return result;
+    }
+    
+    /*
+     * @see java.io.FilterInputStream#read()
+     */
+    @Override
+    public int read() throws IOException
+    {
+        final int b = super.read();
+        if(b == -1)
+        {
+            ended = true;
+            drained.complete(null);
+        }
+        return b;
+    }
+    
+    /*
+     * @see java.io.FilterInputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        final int count = super.read(b, off, len);
+        if(count == -1)
+        {
+            ended = true;
+            drained.complete(null);
+        }
+        return count;
+    }
+    
+    /*
+     * @see java.io.FilterInputStream#close()
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(closed)
+        {
+            return;
+        }
+        closed = true;
+        if(!ended)
+        {
+            result.cancel(true);
+            in.close();
+            drained.complete(null);
+            return;
+        }
+        in.close();
+        final SubprocessResult finished;
+        try
+        {
+            finished = result.get();
+        }
+        catch(final InterruptedException e)
+        {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + command);
+        }
+        catch(final ExecutionException e)
+        {
+            final Exception cause = Subprocess.unwrap(e);
+            throw cause instanceof IOException?(IOException)cause:new IOException(cause);
+        }
+        if(finished.exitCode != 0)
+        {
+            throw new IOException(new SubprocessException(command, finished.exitCode, finished.path, 
+                stderr.toString(Charset.forName(StreamUtil.UTF8))));
+        }
+    }
+}
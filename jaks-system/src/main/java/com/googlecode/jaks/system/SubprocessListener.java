@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+/**
+ * Receives the outcome of every process started by {@link Subprocess} or 
+ * {@link SubprocessPipeline}, and every retry, for monitoring. Register with 
+ * {@link ProcessRegistry#addListener(SubprocessListener)}. Listeners are called on the 
+ * thread that completes the process, so they should be quick; exceptions they throw are ignored.
+ * @author Jason Smith
+ */
+public interface SubprocessListener
+{
+    /**
+     * A process has finished.
+     * @param result The exit code, timing and {@link SubprocessResult#metrics} of the process.
+     * @param error Why the run failed, such as a {@link SubprocessTimeoutException}, or 
+     * {@code null}; a non-zero exit code alone is not a failure here.
+     */
+    void finished(SubprocessResult result, Throwable error);
+    
+    /**
+     * A failed call is about to be run again under a {@link RetryPolicy}. The process of the 
+     * failed attempt has already been reported to {@link #finished(SubprocessResult, Throwable)}.
+     * @param command The command.
+     * @param failure Why the attempt failed.
+     * @param attempt The number of the attempt that failed, from 1.
+     * @param delayNanos How long until the next attempt.
+     */
+    default void retrying(final Subprocess command, final SubprocessException failure, final int attempt, final long delayNanos)
+    {
+    }
+}
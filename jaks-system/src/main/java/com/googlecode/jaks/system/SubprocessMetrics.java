@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+/**
+ * <p>What a finished {@link Subprocess} cost. Figures that could not be measured are {@code -1}:
+ * byte counts for streams redirected by the operating system, and CPU and memory figures when 
+ * sampling is off, as it is by default, or no sample was taken before the process exited.</p>
+ * 
+ * <p>CPU and memory figures are sampled while the process runs and cover the process itself, 
+ * not its descendants; see {@link Subprocess#setResourceSampling(long, java.util.concurrent.TimeUnit)}.</p>
+ * @author Jason Smith
+ */
+public class SubprocessMetrics
+{
+    /** Time taken to create the process, in nanoseconds. */
+    public final long spawnNanos;
+    
+    /** Time from starting the process until it exited and its output was delivered, in nanoseconds. */
+    public final long wallNanos;
+    
+    /** User plus system CPU time, in nanoseconds. */
+    public final long cpuNanos;
+    
+    /** User CPU time, in nanoseconds. */
+    public final long userCpuNanos;
+    
+    /** System CPU time, in nanoseconds. */
+    public final long systemCpuNanos;
+    
+    /** Peak resident set size, in bytes. */
+    public final long peakRssBytes;
+    
+    /** Number of CPU and memory samples taken. */
+    public final int samples;
+    
+    /** Bytes written to stdin. */
+    public final long stdinBytes;
+    
+    /** Bytes read from stdout. */
+    public final long stdoutBytes;
+    
+    /** Bytes read from stderr. */
+    public final long stderrBytes;
+    
+    SubprocessMetrics(final long spawnNanos, final long wallNanos, final long cpuNanos, 
+            final long userCpuNanos, final long systemCpuNanos, final long peakRssBytes, final int samples,
+            final long stdinBytes, final long stdoutBytes, final long stderrBytes)
+    {
+        this.spawnNanos = spawnNanos;
+        this.wallNanos = wallNanos;
+        this.cpuNanos = cpuNanos;
+        this.userCpuNanos = userCpuNanos;
+        this.systemCpuNanos = systemCpuNanos;
+        this.peakRssBytes = peakRssBytes;
+        this.samples = samples;
+        this.stdinBytes = stdinBytes;
+        this.stdoutBytes = stdoutBytes;
+        this.stderrBytes = stderrBytes;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "spawn=" + spawnNanos / 1000 + "us wall=" + wallNanos / 1000000 + "ms cpu=" 
+            + (cpuNanos < 0 ? "?" : cpuNanos / 1000000 + "ms") + " rss=" 
+            + (peakRssBytes < 0 ? "?" : peakRssBytes / 1024 + "KiB") 
+            + " in=" + stdinBytes + " out=" + stdoutBytes + " err=" + stderrBytes;
+    }
+}
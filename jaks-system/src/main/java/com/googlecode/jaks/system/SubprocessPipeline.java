@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.googlecode.jaks.common.io.ChunkedOutputStream;
+import com.googlecode.jaks.common.io.HeadTailOutputStream;
+import com.googlecode.jaks.common.io.MultiOutputStream;
+import com.googlecode.jaks.common.io.SquashedOutputStream;
+import com.googlecode.jaks.common.io.StreamUtil;
+import com.googlecode.jaks.common.io.SynchronizedOutputStream;
+import com.googlecode.jaks.system.Subprocess.AbstractShutdownHandler;
+
+/**
+ * <p>{@link SubprocessPipeline} runs several {@link Subprocess}es as a pipeline, like 
+ * <tt>a | b | c</tt> in a shell. The stages are connected with real operating-system pipes 
+ * (see {@link ProcessBuilder#startPipeline(List)}), so data passed between stages never goes 
+ * through the JVM. Only stdin of the first stage, stdout of the last stage, and stderr of every stage
+ * are pumped in Java, and output that is discarded or sent to a file is not pumped at all 
+ * (see {@link Subprocess#start(InputStream, OutputStream, OutputStream)}).</p>
+ * 
+ * <p>Each stage keeps its own working folder, environment and {@linkplain Subprocess#setMergeStderr(boolean) 
+ * stderr merging}; a middle stage that merges stderr sends it down the pipe to the next stage, 
+ * like <tt>a 2&gt;&amp;1 | b</tt>. Exit codes are reported per stage, in order.</p>
+ * 
+ * <p>The {@linkplain Subprocess#setTimeout(long, java.util.concurrent.TimeUnit) timeouts} of 
+ * the stages make one deadline for the whole pipeline, the earliest of them, since a stage that
+ * hangs holds up every other. When it passes, every stage and its descendants are terminated,
+ * each with its own {@linkplain Subprocess#setKillGracePeriod(long, java.util.concurrent.TimeUnit) 
+ * grace period}, and the pipeline fails with a {@link SubprocessTimeoutException} for the stage 
+ * whose timeout it was.</p>
+ * @author Jason Smith
+ */
+public class SubprocessPipeline extends ArrayList<Subprocess>
+{
+	private static final long serialVersionUID = -4381266713505207735L;
+
+	/**
+	 * Constructor.
+	 * @param stages The stages, in order.
+	 */
+	public SubprocessPipeline(final Collection<? extends Subprocess> stages)
+	{
+		super(stages);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param stages The stages, in order.
+	 */
+	public SubprocessPipeline(final Subprocess... stages)
+	{
+		this(Arrays.asList(stages));
+	}
+	
+	/**
+	 * Call the pipeline and return stdout of the last stage as a string.
+	 * @param encoding String encoding. {@code null} to use system default encoding.
+	 * @return Stdout as a string.
+	 * @throws SubprocessException See {@link #call(InputStream, OutputStream, OutputStream)}.
+	 * @throws Exception See {@link Exception}.
+	 */
+	public String call(final String encoding) throws SubprocessException, Exception
+	{
+		return new String(call(), encoding==null?Charset.defaultCharset().name():encoding);
+	}
+	
+	/**
+	 * Call the pipeline and return stdout of the last stage as a byte-array.
+	 * @return Stdout as a byte-array.
+	 * @throws SubprocessException See {@link #call(InputStream, OutputStream, OutputStream)}.
+	 * @throws Exception See {@link Exception}.
+	 */
+	public byte[] call() throws SubprocessException, Exception
+	{
+		final ChunkedOutputStream out = new ChunkedOutputStream();
+		call(null, out, new SquashedOutputStream());
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Call the pipeline with stdin as a byte-array and return stdout of the last stage as a byte-array.
+	 * @param stdin Byte data passed to the first stage as stdin.
+	 * @return Stdout as a byte-array.
+	 * @throws SubprocessException See {@link #call(InputStream, OutputStream, OutputStream)}.
+	 * @throws Exception See {@link Exception}.
+	 */
+	public byte[] call(final byte[] stdin) throws SubprocessException, Exception
+	{
+		final ChunkedOutputStream out = new ChunkedOutputStream();
+		call(new ByteArrayInputStream(stdin), out, new SquashedOutputStream());
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Call the pipeline, waiting for every stage to finish. If any stage exits with a non-zero
+	 * code, a {@link SubprocessException} is thrown for the first such stage, carrying that stage's stderr
+	 * (bounded by {@link Subprocess#setStderrCapture(int, int)}).
+	 * @param stdin stdin of the first stage, or {@code null} for none.
+	 * @param stdout stdout of the last stage (defaults to {@linkplain System#out} if {@code null}).
+	 * @param stderr stderr of every stage (defaults to {@linkplain System#err} if {@code null}).
+	 * @throws SubprocessException A stage exited with a non-zero code.
+	 * @throws Exception See {@link Exception}.
+	 */
+	public void call(
+			final InputStream stdin, 
+			final OutputStream stdout, 
+			final OutputStream stderr) throws SubprocessException, Exception
+	{
+		final List<HeadTailOutputStream> errs = new ArrayList<HeadTailOutputStream>();
+		for(final Subprocess stage : this)
+		{
+			errs.add(stage.newStderrCapture());
+		}
+		final List<SubprocessResult> results = get(start(stdin, stdout==null?System.out:stdout, stderr==null?System.err:stderr, errs));
+		for(int i=0; i<results.size(); i++)
+		{
+			final SubprocessResult result = results.get(i);
+			if(result.exitCode != 0)
+			{
+				throw new SubprocessException(result.command, result.exitCode, result.path, 
+					errs.get(i).toString(Charset.forName(StreamUtil.UTF8)));
+			}
+		}
+	}
+	
+	/**
+	 * Execute the pipeline, waiting for every stage to finish.
+	 * @param stdin stdin of the first stage, or {@code null} for none.
+	 * @param stdout stdout of the last stage (defaults to {@linkplain System#out} if {@code null}).
+	 * @param stderr stderr of every stage (defaults to {@linkplain System#err} if {@code null}).
+	 * @return The exit code of each stage, in order.
+	 * @throws Exception See {@link Exception}.
+	 */
+	public int[] execute(
+			final InputStream stdin, 
+			final OutputStream stdout, 
+			final OutputStream stderr) throws Exception
+	{
+		final List<SubprocessResult> results = get(start(stdin, stdout, stderr));
+		final int[] codes = new int[results.size()];
+		for(int i=0; i<codes.length; i++)
+		{
+			codes[i] = results.get(i).exitCode;
+		}
+		return codes;
+	}
+	
+	/**
+	 * Start the pipeline without waiting for it to finish. Cancelling the future, or reaching 
+	 * the deadline of the pipeline, terminates every stage and its descendants.
+	 * @param stdin stdin of the first stage, or {@code null} for none.
+	 * @param stdout stdout of the last stage (defaults to {@linkplain System#out} if {@code null}).
+	 * @param stderr stderr of every stage (defaults to {@linkplain System#err} if {@code null}). 
+	 *             Writes from different stages are serialized, chunk by chunk.
+	 * @return The result of each stage, in order.
+	 * @throws IOException The pipeline could not be started.
+	 */
+	public CompletableFuture<List<SubprocessResult>> start(
+			final InputStream stdin, 
+			final OutputStream stdout, 
+			final OutputStream stderr) throws IOException
+	{
+		return start(stdin, stdout==null?System.out:stdout, stderr==null?System.err:stderr, null);
+	}
+	
+	/**
+	 * Start the pipeline.
+	 * @param stdin stdin of the first stage, or {@code null} for none.
+	 * @param stdout stdout of the last stage.
+	 * @param stderr stderr of every stage.
+	 * @param errs Additional per-stage stderr targets, or {@code null}.
+	 * @return The result of each stage, in order.
+	 * @throws IOException The pipeline could not be started.
+	 */
+	private CompletableFuture<List<SubprocessResult>> start(
+			final InputStream stdin, 
+			final OutputStream stdout, 
+			final OutputStream stderr,
+			final List<? extends OutputStream> errs) throws IOException
+	{
+		if(isEmpty())
+		{
+			throw new IllegalStateException("A pipeline needs at least one stage.");
+		}
+		
+		final long startMillis = System.currentTimeMillis();
+		final long startNanos = System.nanoTime();
+		
+		final List<ProcessBuilder> builders = new ArrayList<ProcessBuilder>();
+		for(final Subprocess stage : this)
+		{
+			builders.add(stage.newProcessBuilder().redirectErrorStream(stage.isMergeStderr()));
+		}
+		final Redirect outRedirect = Subprocess.toRedirect(stdout);
+		if(outRedirect != null)
+		{
+			builders.get(size() - 1).redirectOutput(outRedirect);
+		}
+		final Redirect errRedirect = Subprocess.toRedirect(stderr);
+		if(errRedirect != null && errs == null)
+		{
+			for(final ProcessBuilder pb : builders)
+			{
+				if(!pb.redirectErrorStream())
+				{
+					pb.redirectError(errRedirect);
+				}
+			}
+		}
+		
+		final List<Process> processes = ProcessBuilder.startPipeline(builders);
+		final long spawnNanos = System.nanoTime() - startNanos;
+		final List<AbstractShutdownHandler> hooks = new ArrayList<AbstractShutdownHandler>();
+		final List<ResourceSampler> samplers = new ArrayList<ResourceSampler>();
+		for(int i=0; i<processes.size(); i++)
+		{
+			hooks.add(get(i).addShutdownHandler(processes.get(i)));
+			samplers.add(get(i).newResourceSampler(processes.get(i)));
+		}
+		
+		final CompletableFuture<List<SubprocessResult>> result = new CompletableFuture<List<SubprocessResult>>();
+		result.whenComplete((r, t) -> 
+		{
+			if(result.isCancelled())
+			{
+				destroyTrees(processes);
+			}
+		});
+		
+		int earliest = -1;
+		for(int i=0; i<size(); i++)
+		{
+			final long timeout = get(i).getTimeoutNanos();
+			if(timeout > 0 && (earliest < 0 || timeout < get(earliest).getTimeoutNanos()))
+			{
+				earliest = i;
+			}
+		}
+		final int timedIndex = earliest;
+		final Subprocess timedStage = timedIndex < 0 ? null : get(timedIndex);
+		final AtomicBoolean timedOut = new AtomicBoolean(false);
+		final ScheduledFuture<?> deadline = timedStage == null ? null : 
+			FacilitatorPool.SCHEDULER.schedule(
+				() -> 
+				{
+					if(!result.isDone() && timedOut.compareAndSet(false, true))
+					{
+						destroyTrees(processes);
+					}
+				}, 
+				timedStage.getTimeoutNanos(), TimeUnit.NANOSECONDS);
+		
+		try
+		{
+			final Executor executor = get(size() - 1).getFacilitatorExecutor();
+			final List<AbstractFacilitator> workers = new ArrayList<AbstractFacilitator>();
+			final List<CompletableFuture<?>> pending = new ArrayList<CompletableFuture<?>>();
+			
+			final Process last = processes.get(processes.size() - 1);
+			final AbstractFacilitator outWorker = outRedirect!=null?null:new StdOutFacilitator(last.getInputStream(), stdout);
+			if(outWorker != null)
+			{
+				workers.add(outWorker);
+			}
+			
+			final boolean pumpErr = errRedirect == null || (errs != null && errRedirect != Redirect.DISCARD);
+			final OutputStream shared = pumpErr?new SynchronizedOutputStream(stderr):null;
+			final List<AbstractFacilitator> errWorkers = new ArrayList<AbstractFacilitator>();
+			for(int i=0; i<processes.size(); i++)
+			{
+				AbstractFacilitator errWorker = null;
+				if(get(i).isMergeStderr())
+				{
+					//Stderr went down the pipe with stdout.
+				}
+				else if(errs != null)
+				{
+					errWorker = new StdOutFacilitator(processes.get(i).getErrorStream(), new MultiOutputStream(shared, errs.get(i)));
+				}
+				else if(shared != null)
+				{
+					errWorker = new StdOutFacilitator(processes.get(i).getErrorStream(), shared);
+				}
+				if(errWorker != null)
+				{
+					workers.add(errWorker);
+				}
+				errWorkers.add(errWorker);
+				pending.add(processes.get(i).onExit());
+			}
+			
+			for(final AbstractFacilitator worker : workers)
+			{
+				worker.start(executor);
+				pending.add(worker.getCompletion());
+				//A pump that fails stops reading; its stage would block on a full pipe and never exit.
+				worker.getCompletion().thenRun(() -> 
+				{
+					if(worker.error != null)
+					{
+						destroyTrees(processes);
+					}
+				});
+			}
+			
+			final Process first = processes.get(0);
+			final StdInFacilitator inWorker = stdin==null?null:new StdInFacilitator(stdin, first.getOutputStream());
+			if(inWorker != null)
+			{
+				inWorker.start(executor);
+			}
+			else
+			{
+				first.getOutputStream().close();
+			}
+			
+			CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()]))
+				.thenCompose(v -> inWorker==null?CompletableFuture.<Void>completedFuture(null):inWorker.stop())
+				.whenComplete((v, t) -> 
+				{
+					try
+					{
+						if(deadline != null)
+						{
+							deadline.cancel(false);
+						}
+						final long elapsed = System.nanoTime() - startNanos;
+						for(int i=0; i<processes.size(); i++)
+						{
+							processes.get(i).destroy();
+							Subprocess.removeShutdownHandler(hooks.get(i));
+							samplers.get(i).stop();
+						}
+						
+						Throwable error = t;
+						if(timedOut.get())
+						{
+							error = new SubprocessTimeoutException(timedStage, processes.get(timedIndex).exitValue(), 
+								timedStage.getWorkingFolder().getAbsolutePath(), TimeUnit.NANOSECONDS.toMillis(timedStage.getTimeoutNanos()));
+						}
+						for(final AbstractFacilitator worker : workers)
+						{
+							if(error == null && worker.error != null)
+							{
+								error = new RuntimeException(worker.error);
+							}
+						}
+						if(error == null && inWorker != null && inWorker.error != null)
+						{
+							error = new RuntimeException(inWorker.error);
+						}
+						
+						/*
+						 * Only the ends of the pipeline pass through us, so bytes between stages are not counted. 
+						 */
+						final List<SubprocessResult> results = new ArrayList<SubprocessResult>();
+						for(int i=0; i<processes.size(); i++)
+						{
+							final AbstractFacilitator errWorker = errWorkers.get(i);
+							final SubprocessMetrics metrics = samplers.get(i).toMetrics(spawnNanos, elapsed, 
+								i > 0 ? -1 : inWorker==null ? 0 : inWorker.getTransferred(), 
+								i < processes.size() - 1 || outWorker == null ? -1 : outWorker.getTransferred(), 
+								errWorker == null ? -1 : errWorker.getTransferred());
+							results.add(new SubprocessResult(get(i), processes.get(i).exitValue(), 
+								get(i).getWorkingFolder().getAbsolutePath(), startMillis, metrics));
+							ProcessRegistry.fireFinished(results.get(i), error);
+						}
+						
+						if(error != null)
+						{
+							result.completeExceptionally(error);
+						}
+						else
+						{
+							Subprocess.skipToEnd(stdout);
+							Subprocess.skipToEnd(stderr);
+							result.complete(results);
+						}
+					}
+					catch(final Throwable e)
+					{
+						result.completeExceptionally(e);
+					}
+				});
+			return result;
+		}
+		catch(final IOException | RuntimeException | Error e)
+		{
+			if(deadline != null)
+			{
+				deadline.cancel(false);
+			}
+			result.cancel(true);
+			for(final AbstractShutdownHandler hook : hooks)
+			{
+				Subprocess.removeShutdownHandler(hook);
+			}
+			for(final ResourceSampler sampler : samplers)
+			{
+				sampler.stop();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Terminate every stage and its descendants, each with the grace period of its stage.
+	 * @param processes The processes of the stages, in order.
+	 */
+	private void destroyTrees(final List<Process> processes)
+	{
+		for(int i=0; i<processes.size(); i++)
+		{
+			get(i).destroyTree(processes.get(i));
+		}
+	}
+	
+	/**
+	 * Wait for a pipeline to finish, unwrapping any failure.
+	 * @param future The pipeline future.
+	 * @return The per-stage results.
+	 * @throws Exception The cause of a failure.
+	 */
+	private static List<SubprocessResult> get(final CompletableFuture<List<SubprocessResult>> future) throws Exception
+	{
+		try
+		{
+			return future.get();
+		}
+		catch(final InterruptedException e)
+		{
+			future.cancel(true);
+			throw e;
+		}
+		catch(final ExecutionException e)
+		{
+			throw Subprocess.unwrap(e);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of a {@link Subprocess} that has finished.
+ * @see Subprocess#start(java.io.InputStream, java.io.OutputStream, java.io.OutputStream)
+ * @see Subprocess#callAsync(byte[])
+ * @author Jason Smith
+ */
+public class SubprocessResult
+{
+    /** The command that was run. */
+    public final List<String> command;
+    
+    /** The numeric exit code of the process. */
+    public final int exitCode;
+    
+    /** The working-folder path. */
+    public final String path;
+    
+    /** Captured stdout, or {@code null} if stdout was streamed elsewhere. */
+    public final byte[] stdout;
+    
+    /** Captured stderr, or {@code null} if stderr was streamed elsewhere. */
+    public final byte[] stderr;
+    
+    /** When the process was started, in milliseconds since the epoch. */
+    public final long startMillis;
+    
+    /** Time from starting the process until it exited and its output was delivered, in nanoseconds. */
+    public final long elapsedNanos;
+    
+    /** What the process cost. */
+    public final SubprocessMetrics metrics;
+    
+    SubprocessResult(final List<String> command, final int exitCode, final String path, 
+            final long startMillis, final SubprocessMetrics metrics)
+    {
+        this(command, exitCode, path, null, null, startMillis, metrics);
+    }
+    
+    private SubprocessResult(final List<String> command, final int exitCode, final String path, 
+            final byte[] stdout, final byte[] stderr, final long startMillis, final SubprocessMetrics metrics)
+    {
+        this.command = new ArrayList<String>(command);
+        this.exitCode = exitCode;
+        this.path = path;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.startMillis = startMillis;
+        this.elapsedNanos = metrics.wallNanos;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Copy of this result with captured output attached.
+     * @param stdout Captured stdout.
+     * @param stderr Captured stderr.
+     * @return The new result.
+     */
+    SubprocessResult withOutput(final byte[] stdout, final byte[] stderr)
+    {
+        return new SubprocessResult(command, exitCode, path, stdout, stderr, startMillis, metrics);
+    }
+    
+    /**
+     * Captured stdout as a string.
+     * @param encoding String encoding. {@code null} to use system default encoding.
+     * @return Stdout as a string, or {@code null} if it was not captured.
+     * @throws UnsupportedEncodingException See {@link UnsupportedEncodingException}.
+     */
+    public String getStdout(final String encoding) throws UnsupportedEncodingException
+    {
+        return stdout==null?null:new String(stdout, encoding==null?Charset.defaultCharset().name():encoding);
+    }
+    
+    /**
+     * Captured stderr as a string. Bytes that are not valid in the encoding are replaced.
+     * @param encoding String encoding. {@code null} to use system default encoding.
+     * @return Stderr as a string, or {@code null} if it was not captured.
+     */
+    public String getStderr(final String encoding)
+    {
+        return stderr==null?null:new String(stderr, encoding==null?Charset.defaultCharset():Charset.forName(encoding));
+    }
+    
+    @Override
+    public String toString()
+    {
+        return getClass().getName() + " [" + exitCode + "] " + path + "$ " + command + " (" + elapsedNanos / 1000000 + " ms)";
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.util.List;
+
+/**
+ * Thrown when a {@link Subprocess} does not finish before its deadline. The process and its 
+ * descendants have been terminated by the time this is thrown.
+ * @see Subprocess#setTimeout(long, java.util.concurrent.TimeUnit)
+ * @author Jason Smith
+ */
+public class SubprocessTimeoutException extends SubprocessException
+{
+    private static final long serialVersionUID = -3517862154013728491L;
+    
+    /** The deadline that was exceeded, in milliseconds. */
+    public final long timeoutMillis;
+    
+    SubprocessTimeoutException(final List<String> command, final int exitCode, final String path, final long timeoutMillis)
+    {
+        super(command, exitCode, path, "Timed out after " + timeoutMillis + " ms.");
+        this.timeoutMillis = timeoutMillis;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.googlecode.jaks.common.io.StreamUtil;
+
+/**
+ * System configuration values from <tt>getconf</tt>, looked up once each.
+ * @author Jason Smith
+ */
+final class Sysconf
+{
+    private static final Map<String,Long> values = new ConcurrentHashMap<String,Long>();
+    
+    /**
+     * Private constructor.
+     */
+    private Sysconf()
+    {
+    }
+    
+    /**
+     * A numeric configuration value, such as <tt>ARG_MAX</tt> or <tt>CLK_TCK</tt>.
+     * @param name The name passed to <tt>getconf</tt>.
+     * @param fallback Used when the value is unavailable or not a number.
+     * @return The value.
+     */
+    static long get(final String name, final long fallback)
+    {
+        final Long cached = values.get(name);
+        if(cached != null)
+        {
+            return cached;
+        }
+        long value = fallback;
+        try
+        {
+            final Process process = new ProcessBuilder("getconf", name).redirectErrorStream(true).start();
+            process.getOutputStream().close();
+            try(final InputStream in = process.getInputStream())
+            {
+                final String output = new String(StreamUtil.readBytes(in), StreamUtil.UTF8).trim();
+                if(process.waitFor() == 0)
+                {
+                    value = Long.parseLong(output);
+                }
+            }
+        }
+        catch(final IOException | NumberFormatException e)
+        {
+            //Keep the fallback.
+        }
+        catch(final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return value;
+        }
+        values.put(name, value);
+        return value;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.util.Arrays;
+
+import com.googlecode.jaks.common.io.RotatingFileOutputStream;
+import com.googlecode.jaks.common.io.StreamUtil;
+
+/**
+ * <p>Records stdout and stderr of a process line by line into one log, each line stamped with
+ * the time it arrived and tagged with the stream it came from. Pass {@link #getStdout()} and 
+ * {@link #getStderr()} as the targets of a {@link Subprocess}:</p>
+ * 
+ * <pre>
+ * try(final TimestampedLog log = new TimestampedLog(new RotatingFileOutputStream(file, 10 << 20, 4)))
+ * {
+ *     command.call(null, log.getStdout(), log.getStderr());
+ * }</pre>
+ * 
+ * <p>The log starts with <tt># origin</tt> and the wall-clock time it was created. Each record 
+ * follows as seconds since then, to the nanosecond, then <tt>O</tt> or <tt>E</tt>, then the line.
+ * Written to a {@link RotatingFileOutputStream}, every file begins with the same origin line, so 
+ * each one can be read on its own after the first has been rolled away:</p>
+ * 
+ * <pre>
+ * 0.004113250 O compiling
+ * 3.217095113 E warning: slow disk</pre>
+ * 
+ * <p>A line is stamped when the read that completed it returned, so lines from the two streams 
+ * are ordered as the JVM received them; lines written by the process within the same moment may
+ * still swap places. Where the exact order matters more than knowing the source, use 
+ * {@link Subprocess#setMergeStderr(boolean)}.</p>
+ * 
+ * <p>Memory use is bounded: a line longer than {@link #MAX_LINE} bytes is split. For a bounded 
+ * log, write to a {@link RotatingFileOutputStream} or a 
+ * {@link com.googlecode.jaks.common.io.HeadTailOutputStream}. Records are passed to the target 
+ * whole, a batch per read.</p>
+ * @author Jason Smith
+ */
+public class TimestampedLog implements Closeable
+{
+    /** The longest line recorded as one record. */
+    public static final int MAX_LINE = 64 * 1024;
+    
+    private static final Charset ASCII = Charset.forName(StreamUtil.US_ASCII);
+    
+    private final OutputStream target;
+    
+    private final long originNanos;
+    
+    private final Stream stdout = new Stream('O');
+    
+    private final Stream stderr = new Stream('E');
+    
+    /**
+     * Constructor. The origin of the timestamps is now.
+     * @param target Receives the log; it is closed with this log. A {@link RotatingFileOutputStream}
+     *        is also given the origin line as its header.
+     * @throws IOException The header could not be written.
+     */
+    public TimestampedLog(final OutputStream target) throws IOException
+    {
+        this.target = target;
+        this.originNanos = System.nanoTime();
+        final byte[] header = ("# origin " + Instant.now() + "\n").getBytes(ASCII);
+        if(target instanceof RotatingFileOutputStream)
+        {
+            ((RotatingFileOutputStream)target).setHeader(header);
+        }
+        target.write(header);
+    }
+    
+    /**
+     * The target for stdout.
+     * @return A stream whose lines are recorded with the tag <tt>O</tt>.
+     */
+    public OutputStream getStdout()
+    {
+        return stdout;
+    }
+    
+    /**
+     * The target for stderr.
+     * @return A stream whose lines are recorded with the tag <tt>E</tt>.
+     */
+    public OutputStream getStderr()
+    {
+        return stderr;
+    }
+    
+    /**
+     * Record any unfinished lines and close the target.
+     * @throws IOException See {@link IOException}.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            stdout.flush();
+            stderr.flush();
+        }
+        finally
+        {
+            target.close();
+        }
+    }
+    
+    /**
+     * Pass a batch of records to the target.
+     * @param records The records.
+     * @throws IOException See {@link IOException}.
+     */
+    private void append(final ByteArrayOutputStream records) throws IOException
+    {
+        synchronized(target)
+        {
+            records.writeTo(target);
+        }
+    }
+    
+    /**
+     * One of the two streams of the process.
+     */
+    private final class Stream extends OutputStream
+    {
+        private final byte tag;
+        
+        /** The unfinished line. */
+        private byte[] line = new byte[256];
+        
+        private int length = 0;
+        
+        /** Records waiting to be passed on, reused. */
+        private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        
+        Stream(final char tag)
+        {
+            this.tag = (byte)tag;
+        }
+        
+        @Override
+        public synchronized void write(final int b) throws IOException
+        {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+        
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            final long stamp = System.nanoTime() - originNanos;
+            int start = off;
+            final int end = off + len;
+            for(int i = off; i < end; i++)
+            {
+                if(b[i] == '\n' || length + i - start == MAX_LINE)
+                {
+                    add(b, start, i - start);
+                    record(stamp);
+                    start = b[i]=='\n'?i + 1:i;
+                }
+            }
+            add(b, start, end - start);
+            if(records.size() > 0)
+            {
+                append(records);
+                records.reset();
+            }
+        }
+        
+        /**
+         * A flush ends the current line, if there is one.
+         */
+        @Override
+        public synchronized void flush() throws IOException
+        {
+            if(length > 0)
+            {
+                record(System.nanoTime() - originNanos);
+                append(records);
+                records.reset();
+            }
+            synchronized(target)
+            {
+                target.flush();
+            }
+        }
+        
+        /**
+         * Add bytes to the unfinished line.
+         * @param b The bytes.
+         * @param off Where they start.
+         * @param len How many there are.
+         */
+        private void add(final byte[] b, final int off, final int len)
+        {
+            if(length + len > line.length)
+            {
+                line = Arrays.copyOf(line, Math.max(length + len, Math.min(line.length * 2, MAX_LINE)));
+            }
+            System.arraycopy(b, off, line, length, len);
+            length += len;
+        }
+        
+        /**
+         * Turn the unfinished line into a record.
+         * @param stamp Nanoseconds since the origin.
+         */
+        private void record(final long stamp)
+        {
+            final String seconds = Long.toString(stamp / 1000000000L);
+            final String nanos = Long.toString(1000000000L + stamp % 1000000000L);
+            records.write(seconds.getBytes(ASCII), 0, seconds.length());
+            records.write('.');
+            records.write(nanos.getBytes(ASCII), 1, 9);
+            records.write(' ');
+            records.write(tag);
+            records.write(' ');
+            records.write(line, 0, length);
+            records.write('\n');
+            length = 0;
+        }
+    }
+}
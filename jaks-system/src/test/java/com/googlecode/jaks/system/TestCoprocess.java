@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang.SystemUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link Coprocess} and {@link CoprocessPool}.
+ * @author Jason Smith
+ */
+public class TestCoprocess extends Assert
+{
+	/**
+	 * Verify that one process serves many exchanges, and that a process that exits is started again.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testExchange() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		try(final Coprocess cat = new Coprocess(new Subprocess("cat"), Coprocess.lines()))
+		{
+			for(int i = 0; i < 100; ++i)
+			{
+				assertEquals("Unexpected response.", "hello " + i, cat.exchange("hello " + i));
+			}
+			assertEquals("Expected a single process.", 1, cat.getStartCount());
+		}
+		
+		try(final Coprocess once = new Coprocess(new Subprocess("head", "-n", "1"), Coprocess.lines()))
+		{
+			assertEquals("Unexpected response.", "first", once.exchange("first"));
+			final long deadline = System.currentTimeMillis() + 5000;
+			while(once.isAlive() && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals("Unexpected response.", "second", once.exchange("second"));
+			assertEquals("Expected a restart.", 2, once.getStartCount());
+		}
+	}
+	
+	/**
+	 * Verify that a failed exchange reports stderr, and that a hung exchange times out.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testFailure() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		try(final Coprocess broken = new Coprocess(new Subprocess("sh", "-c", "read x; echo broken >&2; exit 1"), Coprocess.lines()))
+		{
+			broken.exchange("anything");
+			fail("Expected an IOException.");
+		}
+		catch(final IOException e)
+		{
+			assertTrue("Unexpected message: " + e.getMessage(), e.getMessage().contains("broken"));
+		}
+		
+		final Subprocess silent = new Subprocess("sh", "-c", "read x; sleep 60")
+			.setTimeout(200, TimeUnit.MILLISECONDS).setKillGracePeriod(0, TimeUnit.MILLISECONDS);
+		try(final Coprocess hung = new Coprocess(silent, Coprocess.lines()))
+		{
+			hung.exchange("anything");
+			fail("Expected an IOException.");
+		}
+		catch(final IOException e)
+		{
+			assertTrue("Unexpected message: " + e.getMessage(), e.getMessage().contains("timed out"));
+		}
+		
+		final Coprocess.Framing lines = Coprocess.lines();
+		final AtomicBoolean fail = new AtomicBoolean(true);
+		final Coprocess.Framing faulty = new Coprocess.Framing()
+			{
+				@Override
+				public void writeRequest(final OutputStream stdin, final byte[] request) throws IOException
+				{
+					lines.writeRequest(stdin, request);
+				}
+				
+				@Override
+				public byte[] readResponse(final InputStream stdout) throws IOException
+				{
+					if(fail.getAndSet(false))
+					{
+						throw new IllegalStateException("bad frame");
+					}
+					return lines.readResponse(stdout);
+				}
+			};
+		try(final Coprocess cat = new Coprocess(new Subprocess("cat"), faulty))
+		{
+			try
+			{
+				cat.exchange("stale");
+				fail("Expected an IllegalStateException.");
+			}
+			catch(final IllegalStateException e)
+			{
+				assertFalse("Expected the process to be stopped.", cat.isAlive());
+			}
+			assertEquals("Expected a fresh process in step with its pipes.", "fresh", cat.exchange("fresh"));
+			assertEquals("Expected a restart.", 2, cat.getStartCount());
+		}
+	}
+	
+	/**
+	 * Verify that a pool serves concurrent exchanges from its warm instances.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testPool() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		try(final CoprocessPool pool = new CoprocessPool(new Subprocess("cat"), Coprocess.lines(), 3))
+		{
+			pool.setHealthCheck("ping".getBytes(), response -> "ping".equals(new String(response)), 10, TimeUnit.MILLISECONDS);
+			final List<CompletableFuture<Void>> clients = new ArrayList<CompletableFuture<Void>>();
+			for(int c = 0; c < 6; ++c)
+			{
+				final int client = c;
+				clients.add(CompletableFuture.runAsync(() -> 
+					{
+						try
+						{
+							for(int i = 0; i < 50; ++i)
+							{
+								assertEquals("Unexpected response.", client + ":" + i, pool.exchange(client + ":" + i));
+							}
+						}
+						catch(final Exception e)
+						{
+							throw new RuntimeException(e);
+						}
+					}, FacilitatorPool.EXECUTOR));
+			}
+			CompletableFuture.allOf(clients.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+			assertEquals("Unexpected start count.", 3, pool.getStartCount());
+			assertEquals("Unexpected idle count.", 3, pool.getIdleCount());
+		}
+	}
+}
@@ -16,10 +16,35 @@
  */
 package com.googlecode.jaks.system;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
 import org.apache.commons.lang.SystemUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.googlecode.jaks.common.io.FileTargetOutputStream;
+import com.googlecode.jaks.common.io.RotatingFileOutputStream;
+import com.googlecode.jaks.common.io.SquashedOutputStream;
+import com.googlecode.jaks.common.io.StreamUtil;
 import com.googlecode.jaks.system.Subprocess;
 
 public class TestSubprocess extends Assert
@@ -36,4 +61,702 @@ public class TestSubprocess extends Assert
 			new Subprocess("ls", "-al").call();
 		}
 	}
+	
+	/**
+	 * Verify that stdin reaches the process and is closed at EOF, so that <tt>cat</tt> exits.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testCatRepeatedly() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		for(int i=0; i<50; i++)
+		{
+			assertEquals("Unexpected stdout.", "hello " + i, new Subprocess("cat").call("hello " + i, StreamUtil.UTF8));
+		}
+	}
+	
+	/**
+	 * Verify that a process that exits without reading all of stdin is not an error.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testEarlyExit() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		assertEquals("Unexpected stdout.", 10, new Subprocess("head", "-c", "10").call(new byte[16 * 1024 * 1024]).length);
+	}
+	
+	/**
+	 * Pipe a large volume of data through <tt>cat</tt> and verify that all of it comes back. The volume 
+	 * defaults to 64 MiB and can be raised with the <tt>jaks.test.throughput.bytes</tt> system property;
+	 * throughput itself is measured by the benchmarks module.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testCatLargeVolume() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final long total = Long.getLong("jaks.test.throughput.bytes", 64L * 1024 * 1024);
+		final InputStream in = 
+			new InputStream()
+			{
+				private long remaining = total;
+				
+				@Override
+				public int read() throws IOException
+				{
+					if(remaining == 0)
+					{
+						return -1;
+					}
+					remaining--;
+					return 'x';
+				}
+				
+				@Override
+				public int read(final byte[] b, final int off, final int len) throws IOException
+				{
+					if(remaining == 0)
+					{
+						return -1;
+					}
+					final int n = (int)Math.min(len, remaining);
+					remaining -= n;
+					return n;
+				}
+			};
+		final long[] received = new long[1];
+		final OutputStream out = 
+			new OutputStream()
+			{
+				@Override
+				public void write(final int b) throws IOException
+				{
+					received[0]++;
+				}
+				
+				@Override
+				public void write(final byte[] b, final int off, final int len) throws IOException
+				{
+					received[0] += len;
+				}
+			};
+		
+		new Subprocess("cat").call(in, out);
+		
+		assertEquals("Unexpected stdout length.", total, received[0]);
+	}
+	
+	/**
+	 * Verify that a stdin source still blocked when the process exits is closed, which wakes the 
+	 * worker reading it, rather than being left to hand its next bytes to nobody.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test(timeout=30000)
+	public void testBlockedStdinClosed() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final CountDownLatch reading = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		final InputStream in = 
+			new InputStream()
+			{
+				@Override
+				public int read() throws IOException
+				{
+					reading.countDown();
+					while(true)
+					{
+						try
+						{
+							closed.await();
+							throw new IOException("Stream closed.");
+						}
+						catch(final InterruptedException e)
+						{
+							//Like a socket or a pipe, ignore interrupts; only close() ends the read.
+						}
+					}
+				}
+				
+				@Override
+				public void close()
+				{
+					closed.countDown();
+				}
+			};
+		
+		final SubprocessResult result = 
+			new Subprocess("sh", "-c", "sleep 0.2").start(in, null, null).get();
+		assertEquals("Unexpected exit code.", 0, result.exitCode);
+		assertTrue("Source was never read.", reading.await(10, TimeUnit.SECONDS));
+		assertTrue("Source not closed.", closed.await(10, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * Verify that output sent to a {@link FileTargetOutputStream} lands in the file, in order with 
+	 * what is written through the stream before and after.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testFileTarget() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final File file = File.createTempFile("jaks-", ".txt");
+		try
+		{
+			try(final FileTargetOutputStream out = new FileTargetOutputStream(file))
+			{
+				out.write("before\n".getBytes(StreamUtil.UTF8));
+				new Subprocess("echo", "child").call(out);
+				out.write("after\n".getBytes(StreamUtil.UTF8));
+			}
+			assertEquals("Unexpected file content.", "before\nchild\nafter\n", 
+				new String(Files.readAllBytes(file.toPath()), StreamUtil.UTF8));
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Verify that discarded output still lets the process run to completion.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testDiscard() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		assertEquals("Unexpected exit code.", 0, 
+			new Subprocess("head", "-c", "100000000", "/dev/zero").execute(null, new SquashedOutputStream(), new SquashedOutputStream()));
+	}
+	
+	/**
+	 * Verify that only the head and tail of a large stderr end up in the failure message.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testBoundedStderr() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		try
+		{
+			new Subprocess("sh", "-c", "echo START >&2; head -c 10000000 /dev/zero | tr '\\0' x >&2; echo END >&2; exit 1")
+				.setStderrCapture(6, 4)
+				.call();
+			fail("Expected a SubprocessException.");
+		}
+		catch(final SubprocessException e)
+		{
+			assertEquals("Unexpected message.", "START\n\n[... 10000000 bytes omitted ...]\nEND\n", e.getMessage());
+		}
+	}
+	
+	/**
+	 * Verify that a deadline terminates the process and its descendants, escalating to a kill when
+	 * they ignore <tt>SIGTERM</tt>.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testTimeoutKillsTree() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final long start = System.nanoTime();
+		try
+		{
+			new Subprocess("sh", "-c", "trap '' TERM; sleep 30 & echo $!; wait")
+				.setTimeout(300, TimeUnit.MILLISECONDS)
+				.setKillGracePeriod(300, TimeUnit.MILLISECONDS)
+				.execute(null, out, null);
+			fail("Expected a SubprocessTimeoutException.");
+		}
+		catch(final SubprocessTimeoutException e)
+		{
+			assertEquals("Unexpected timeout.", 300, e.timeoutMillis);
+		}
+		assertTrue("Took too long.", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+		
+		final long pid = Long.parseLong(new String(out.toByteArray(), StreamUtil.UTF8).trim());
+		assertFalse("Grandchild still running.", isRunning(pid));
+	}
+	
+	/**
+	 * Verify that cancelling a started process terminates it.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testCancel() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final CompletableFuture<SubprocessResult> future = 
+			new Subprocess("sh", "-c", "echo $$; exec sleep 30").start(null, out, null);
+		final long start = System.nanoTime();
+		while(out.size() == 0)
+		{
+			assertTrue("No output.", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+			Thread.sleep(10);
+		}
+		future.cancel(true);
+		
+		final long pid = Long.parseLong(new String(out.toByteArray(), StreamUtil.UTF8).trim());
+		assertFalse("Process still running.", isRunning(pid));
+	}
+	
+	/**
+	 * Verify that the {@link ProcessRegistry} tracks a process while it runs, and only then.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testRegistry() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final int live = ProcessRegistry.getLiveCount();
+		final long started = ProcessRegistry.getStartedCount();
+		
+		final CompletableFuture<SubprocessResult> future = new Subprocess("sleep", "30").start(null, null, null);
+		assertEquals("Unexpected live count.", live + 1, ProcessRegistry.getLiveCount());
+		assertEquals("Unexpected started count.", started + 1, ProcessRegistry.getStartedCount());
+		
+		future.cancel(true);
+		final long start = System.nanoTime();
+		while(ProcessRegistry.getLiveCount() != live)
+		{
+			assertTrue("Process still registered.", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+			Thread.sleep(10);
+		}
+	}
+	
+	/**
+	 * Whether a process is still running (not gone, and not a zombie), waiting briefly for it to go.
+	 * @param pid The process ID.
+	 * @return {@code true} if the process is still running after a few seconds.
+	 * @throws Exception See {@link Exception}.
+	 */
+	private static boolean isRunning(final long pid) throws Exception
+	{
+		final File stat = new File("/proc/" + pid + "/stat");
+		for(int i=0; i<100; i++)
+		{
+			try
+			{
+				if(new String(Files.readAllBytes(stat.toPath()), StreamUtil.US_ASCII).contains(") Z "))
+				{
+					return false;
+				}
+			}
+			catch(final IOException e)
+			{
+				//Gone, possibly while being read.
+				return false;
+			}
+			Thread.sleep(50);
+		}
+		return true;
+	}
+	
+	/**
+	 * Start many processes at once and collect their results asynchronously.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testCallAsync() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final List<CompletableFuture<SubprocessResult>> futures = new ArrayList<CompletableFuture<SubprocessResult>>();
+		for(int i=0; i<100; i++)
+		{
+			futures.add(new Subprocess("echo", String.valueOf(i)).callAsync());
+		}
+		for(int i=0; i<100; i++)
+		{
+			final SubprocessResult result = futures.get(i).get();
+			assertEquals("Unexpected exit code.", 0, result.exitCode);
+			assertEquals("Unexpected stdout.", i + "\n", result.getStdout(StreamUtil.UTF8));
+		}
+	}
+	
+	/**
+	 * Verify that a failed asynchronous call surfaces as a {@link SubprocessException}.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testCallAsyncFailure() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		try
+		{
+			new Subprocess("sh", "-c", "echo oops >&2; exit 3").callAsync().get();
+			fail("Expected a SubprocessException.");
+		}
+		catch(final ExecutionException e)
+		{
+			assertTrue("Unexpected cause.", e.getCause() instanceof SubprocessException);
+			final SubprocessException cause = (SubprocessException)e.getCause();
+			assertEquals("Unexpected exit code.", 3, cause.exitCode);
+			assertEquals("Unexpected message.", "oops\n", cause.getMessage());
+		}
+	}
+	
+	/**
+	 * Verify that stdout comes back intact, many times over on the shared worker pool.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testEchoRepeatedly() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		for(int i=0; i<50; i++)
+		{
+			assertEquals("Unexpected stdout.", "hello " + i + "\n", new Subprocess("echo", "hello " + i).call(StreamUtil.UTF8));
+		}
+	}
+	
+	/**
+	 * Verify that stdout is split into records across buffer boundaries, with multi-byte characters
+	 * intact and line endings removed.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testCallLines() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final long[] countAndSum = new long[2];
+		new Subprocess("seq", "1", "200000").callLines(line -> 
+			{
+				countAndSum[0]++;
+				countAndSum[1] += Long.parseLong(line.toString());
+			});
+		assertEquals("Unexpected line count.", 200000, countAndSum[0]);
+		assertEquals("Unexpected sum.", 200000L * 200001L / 2, countAndSum[1]);
+		
+		final List<String> lines = new ArrayList<String>();
+		new Subprocess("printf", "caf\\303\\251\r\nna\\303\\257ve\nlast").callLines(line -> lines.add(line.toString()));
+		assertEquals("Unexpected lines.", Arrays.asList("caf\u00e9", "na\u00efve", "last"), lines);
+		
+		lines.clear();
+		new Subprocess("printf", "a b\\0c\\0").callLines(Charset.forName(StreamUtil.UTF8), '\0', record -> lines.add(record.toString()));
+		assertEquals("Unexpected records.", Arrays.asList("a b", "c"), lines);
+	}
+	
+	/**
+	 * Verify that a consumer that throws stops the process, instead of leaving it blocked on a
+	 * full pipe, and that the call fails with the consumer's exception.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test(timeout=30000)
+	public void testCallLinesConsumerFails() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final IllegalStateException thrown = new IllegalStateException("consumer failed");
+		try
+		{
+			new Subprocess("seq", "1", "10000000").callLines(line -> 
+				{
+					throw thrown;
+				});
+			fail("Expected the consumer's exception.");
+		}
+		catch(final Exception e)
+		{
+			Throwable cause = e;
+			while(cause != null && cause != thrown)
+			{
+				cause = cause.getCause();
+			}
+			assertSame("Expected the consumer's exception in the chain: " + e, thrown, cause);
+		}
+	}
+	
+	/**
+	 * Verify that a finished process reports its costs on the result and to listeners.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testMetrics() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final List<SubprocessResult> heard = new ArrayList<SubprocessResult>();
+		final SubprocessListener listener = (result, error) -> 
+			{
+				synchronized(heard)
+				{
+					heard.add(result);
+				}
+			};
+		ProcessRegistry.addListener(listener);
+		try
+		{
+			final Subprocess busy = new Subprocess("sh", "-c", "cat >/dev/null; i=0; while [ $i -lt 200000 ]; do i=$((i+1)); done; echo done")
+				.setResourceSampling(10, TimeUnit.MILLISECONDS);
+			final SubprocessResult result = busy.start(new ByteArrayInputStream(new byte[1000]), new ByteArrayOutputStream(), new ByteArrayOutputStream()).get();
+			final SubprocessMetrics metrics = result.metrics;
+			assertEquals("Unexpected stdin bytes.", 1000, metrics.stdinBytes);
+			assertEquals("Unexpected stdout bytes.", 5, metrics.stdoutBytes);
+			assertEquals("Unexpected stderr bytes.", 0, metrics.stderrBytes);
+			assertTrue("No spawn time: " + metrics, metrics.spawnNanos > 0);
+			assertTrue("No samples: " + metrics, metrics.samples > 0);
+			assertTrue("No CPU time: " + metrics, metrics.cpuNanos > 0 && metrics.cpuNanos == metrics.userCpuNanos + metrics.systemCpuNanos);
+			assertTrue("No peak RSS: " + metrics, metrics.peakRssBytes > 0);
+			assertEquals("Expected sampling to be off by default.", 0, new Subprocess("true").callAsync().get().metrics.samples);
+			synchronized(heard)
+			{
+				assertTrue("Listener not called.", heard.contains(result));
+			}
+		}
+		finally
+		{
+			ProcessRegistry.removeListener(listener);
+		}
+	}
+	
+	/**
+	 * Verify that environment changes are applied, including removals, and that a complete 
+	 * environment replaces the JVM's.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testEnvironment() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final Map<String,String> delta = new HashMap<String,String>();
+		delta.put("JAKS_TEST", "one");
+		delta.put("HOME", null);
+		final Subprocess printenv = new Subprocess(new File("."), delta, "sh", "-c", "echo \"$JAKS_TEST:${HOME-unset}:${PATH:+path}\"");
+		assertEquals("Unexpected environment.", "one:unset:path\n", printenv.call(StreamUtil.UTF8));
+		assertSame("Expected the environment to be reused.", printenv.getEnvironment(), printenv.getEnvironment());
+		
+		delta.put("JAKS_TEST", "two");
+		assertEquals("Unexpected environment after a change.", "two:unset:path\n", printenv.call(StreamUtil.UTF8));
+		
+		final Subprocess env = new Subprocess(new File("."), delta, "env").setEnvironment(Collections.singletonMap("HOME", "/nowhere"));
+		assertEquals("Unexpected complete environment.", "JAKS_TEST=two\n", env.call(StreamUtil.UTF8));
+		assertEquals("Unexpected effective environment.", Collections.singletonMap("JAKS_TEST", "two"), env.getEnvironment());
+	}
+	
+	/**
+	 * Verify that stdout can be pulled from a stream, and that closing the stream checks the exit 
+	 * code or, before the end, stops the process.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testOpen() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		try(final SubprocessInputStream in = new Subprocess("sh", "-c", "echo one; echo two").open())
+		{
+			assertEquals("Unexpected stdout.", "one\ntwo\n", new String(StreamUtil.readBytes(in), StreamUtil.UTF8));
+		}
+		
+		final SubprocessInputStream failing = new Subprocess("sh", "-c", "echo out; echo broken >&2; exit 3").open();
+		try
+		{
+			StreamUtil.readBytes(failing);
+			fail("Expected the exit code to be checked.");
+		}
+		catch(final IOException e)
+		{
+			final SubprocessException cause = (SubprocessException)e.getCause();
+			assertEquals("Unexpected exit code.", 3, cause.exitCode);
+			assertTrue("Expected stderr in the message.", cause.getMessage().contains("broken"));
+		}
+		
+		final SubprocessInputStream endless = new Subprocess("yes").open();
+		assertEquals("Unexpected first byte.", 'y', endless.read());
+		endless.close();
+		try
+		{
+			endless.getResult().get(10, TimeUnit.SECONDS);
+			fail("Expected the process to be stopped.");
+		}
+		catch(final CancellationException e)
+		{
+			//Expected.
+		}
+	}
+	
+	/**
+	 * Verify that stdout and stderr can be merged by the operating system, or logged together with
+	 * timestamps into a rotating file.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testInterleavedOutput() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final Subprocess merged = new Subprocess("sh", "-c", "echo one; echo two >&2; echo three").setMergeStderr(true);
+		assertEquals("Unexpected merged output.", "one\ntwo\nthree\n", merged.call(StreamUtil.UTF8));
+		
+		final File file = File.createTempFile("jaks", ".log");
+		try(final RotatingFileOutputStream rotating = new RotatingFileOutputStream(file, 80, 1))
+		{
+			try(final TimestampedLog log = new TimestampedLog(rotating))
+			{
+				new Subprocess("sh", "-c", "echo one; sleep 0.2; echo two >&2; sleep 0.2; printf three").call(null, log.getStdout(), log.getStderr());
+			}
+			final String older = new String(Files.readAllBytes(rotating.getFile(1).toPath()), StreamUtil.UTF8);
+			final String newer = new String(Files.readAllBytes(file.toPath()), StreamUtil.UTF8);
+			final String origin = older.substring(0, older.indexOf('\n') + 1);
+			assertTrue("Expected the newer file to repeat the origin: " + newer, newer.startsWith(origin));
+			assertTrue("Unexpected log: " + older + newer, 
+				(older + newer.substring(origin.length())).matches("# origin \\S+\n(\\d+\\.\\d{9} O one\n)(\\d+\\.\\d{9} E two\n)(\\d+\\.\\d{9} O three\n)"));
+			assertTrue("Expected the log to roll over.", newer.length() > origin.length());
+		}
+		finally
+		{
+			file.delete();
+			new File(file.getPath() + ".1").delete();
+		}
+	}
+	
+	/**
+	 * Verify that a transient failure is retried, and that the policy gives up on the rest.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testRetry() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final File marker = File.createTempFile("jaks", ".retry");
+		marker.delete();
+		try
+		{
+			final RetryPolicy policy = new RetryPolicy()
+				.setStderrPattern(Pattern.compile("locked"))
+				.setMaxAttempts(3)
+				.setBackoff(10, 50, TimeUnit.MILLISECONDS);
+			final Subprocess flaky = new Subprocess("sh", "-c", "[ -e \"$0\" ] && echo done || { touch \"$0\"; echo locked >&2; exit 1; }", 
+				marker.getPath()).setRetryPolicy(policy);
+			assertEquals("Expected the second attempt to succeed.", "done\n", flaky.call(StreamUtil.UTF8));
+			assertEquals("Unexpected retry count.", 1, policy.getRetryCount());
+			
+			try
+			{
+				new Subprocess("sh", "-c", "echo locked >&2; exit 1").setRetryPolicy(policy).call();
+				fail("Expected the policy to give up.");
+			}
+			catch(final SubprocessException e)
+			{
+				assertEquals("Unexpected attempt count.", 3, e.getAttempts());
+				assertEquals("Expected earlier failures to be kept.", e.getAttempts() - 1, e.getSuppressed().length);
+				for(final Throwable earlier : e.getSuppressed())
+				{
+					assertEquals("Expected earlier failures to be attached directly.", 0, earlier.getSuppressed().length);
+				}
+			}
+			
+			try
+			{
+				new Subprocess("sh", "-c", "echo broken >&2; exit 1").setRetryPolicy(policy).call();
+				fail("Expected the failure to be thrown.");
+			}
+			catch(final SubprocessException e)
+			{
+				assertEquals("Expected no retry.", 1, e.getAttempts());
+			}
+			assertEquals("Unexpected retry count.", 3, policy.getRetryCount());
+			assertEquals("Unexpected exhausted count.", 1, policy.getExhaustedCount());
+		}
+		finally
+		{
+			marker.delete();
+		}
+	}
+	
+	/**
+	 * Verify that an attempt still running when the retry budget runs out is stopped, and fails as
+	 * a timeout, rather than being waited for.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test(timeout=30000)
+	public void testRetryBudget() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final RetryPolicy policy = new RetryPolicy()
+			.setRetryTimeouts(true)
+			.setBackoff(10, 50, TimeUnit.MILLISECONDS)
+			.setBudget(500, TimeUnit.MILLISECONDS);
+		final long start = System.nanoTime();
+		try
+		{
+			new Subprocess("sleep", "20").setTimeout(10, TimeUnit.SECONDS).setRetryPolicy(policy).call();
+			fail("Expected the budget to run out.");
+		}
+		catch(final SubprocessTimeoutException e)
+		{
+			assertEquals("Expected no retry past the budget.", 1, e.getAttempts());
+			assertTrue("Deadline not capped by the budget.", e.timeoutMillis <= 500);
+		}
+		assertTrue("Took too long.", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		assertEquals("Unexpected exhausted count.", 1, policy.getExhaustedCount());
+		
+		assertEquals("Budget leaked past the call.", "ok\n", 
+			new Subprocess("sh", "-c", "sleep 1; echo ok").call(StreamUtil.UTF8));
+	}
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.SystemUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.googlecode.jaks.common.io.StreamUtil;
+
+/**
+ * Tests for {@link SubprocessBatch}.
+ * @author Jason Smith
+ */
+public class TestSubprocessBatch extends Assert
+{
+	/**
+	 * Verify that arguments are split across invocations within the size limit, and that 
+	 * stdout comes back in argument order whether or not the invocations run in parallel.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testSplit() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final List<String> arguments = new ArrayList<String>();
+		final StringBuilder expected = new StringBuilder();
+		for(int i = 0; i < 5000; ++i)
+		{
+			arguments.add("argument-" + i);
+			expected.append("argument-").append(i).append('\n');
+		}
+		
+		final SubprocessBatch batch = new SubprocessBatch(new Subprocess("printf", "%s\\n"), arguments);
+		assertEquals("Expected a single invocation.", 1, batch.split().size());
+		assertEquals("Unexpected stdout.", expected.toString(), new String(batch.call(), StreamUtil.UTF8));
+		
+		assertTrue("ARG_MAX not found.", SubprocessBatch.getArgMax() >= 4096);
+		assertEquals("Expected no invocations.", 0, new SubprocessBatch(new Subprocess("true"), new ArrayList<String>()).split().size());
+		
+		batch.setMaxArgs(700);
+		final List<Subprocess> invocations = batch.split();
+		assertEquals("Unexpected number of invocations.", 8, invocations.size());
+		assertEquals("Unexpected stdout.", expected.toString(), new String(batch.call(new SubprocessExecutor(3)), StreamUtil.UTF8));
+	}
+	
+	/**
+	 * Verify that a small size limit splits the arguments into many invocations, each within the
+	 * limit and as full as it allows, and that stdout still comes back in argument order.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testMaxBytes() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final List<String> arguments = new ArrayList<String>();
+		final StringBuilder expected = new StringBuilder();
+		for(int i = 0; i < 2000; ++i)
+		{
+			final String argument = "argument-" + i + "-" + "x".repeat(i % 37);
+			arguments.add(argument);
+			expected.append(argument).append('\n');
+		}
+		
+		final SubprocessBatch batch = new SubprocessBatch(new Subprocess("printf", "%s\\n"), arguments);
+		final long limit = batch.fixedCost() + 1000;
+		batch.setMaxBytes(limit);
+		final List<Subprocess> invocations = batch.split();
+		assertTrue("Expected many invocations.", invocations.size() > 50);
+		
+		int next = 0;
+		for(int i = 0; i < invocations.size(); ++i)
+		{
+			final Subprocess invocation = invocations.get(i);
+			final long size = new SubprocessBatch(invocation, new ArrayList<String>()).fixedCost();
+			assertTrue("Invocation " + i + " is over the limit.", size <= limit);
+			assertEquals("Unexpected arguments in invocation " + i + ".", 
+				arguments.subList(next, next + invocation.size() - 2), invocation.subList(2, invocation.size()));
+			next += invocation.size() - 2;
+			if(next < arguments.size())
+			{
+				assertTrue("Invocation " + i + " could have taken another argument.", 
+					size + SubprocessBatch.cost(arguments.get(next)) > limit);
+			}
+		}
+		assertEquals("Arguments lost.", arguments.size(), next);
+		assertEquals("Unexpected stdout.", expected.toString(), new String(batch.call(new SubprocessExecutor(4)), StreamUtil.UTF8));
+		
+		batch.setMaxBytes(batch.fixedCost());
+		try
+		{
+			batch.split();
+			fail("Expected no room for arguments.");
+		}
+		catch(final IllegalStateException e)
+		{
+			//Expected.
+		}
+	}
+}
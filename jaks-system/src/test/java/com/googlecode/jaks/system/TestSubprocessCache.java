@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.commons.lang.SystemUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.googlecode.jaks.common.io.StreamUtil;
+
+/**
+ * Tests for {@link SubprocessCache}.
+ * @author Jason Smith
+ */
+public class TestSubprocessCache extends Assert
+{
+	/**
+	 * Verify that repeated calls are served from memory and from disk, that changing an input 
+	 * misses, and that failures are cached too.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testCache() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final File folder = Files.createTempDirectory("jaks-cache").toFile();
+		final File input = new File(folder, "input.txt");
+		Files.write(input.toPath(), "one".getBytes(StreamUtil.UTF8));
+		final SubprocessCache cache = new SubprocessCache(10).setDirectory(new File(folder, "cache"));
+		
+		final String first = new Subprocess("sh", "-c", "cat \"$0\"; date +%s%N", input.getPath()).setCache(cache, input).call(StreamUtil.UTF8);
+		final String second = new Subprocess("sh", "-c", "cat \"$0\"; date +%s%N", input.getPath()).setCache(cache, input).call(StreamUtil.UTF8);
+		assertEquals("Expected the cached stdout.", first, second);
+		assertEquals("Unexpected hits.", 1, cache.getHitCount());
+		assertEquals("Unexpected misses.", 1, cache.getMissCount());
+		
+		Files.write(input.toPath(), "three".getBytes(StreamUtil.UTF8));
+		final String third = new Subprocess("sh", "-c", "cat \"$0\"; date +%s%N", input.getPath()).setCache(cache, input).call(StreamUtil.UTF8);
+		assertTrue("Expected a fresh run: " + third, third.startsWith("three"));
+		assertEquals("Unexpected misses.", 2, cache.getMissCount());
+		
+		final SubprocessCache reopened = new SubprocessCache(10).setDirectory(new File(folder, "cache"));
+		assertEquals("Expected the stdout cached on disk.", third, 
+			new Subprocess("sh", "-c", "cat \"$0\"; date +%s%N", input.getPath()).setCache(reopened, input).call(StreamUtil.UTF8));
+		assertEquals("Unexpected disk hits.", 1, reopened.getDiskHitCount());
+		
+		for(int i = 0; i < 2; ++i)
+		{
+			try
+			{
+				new Subprocess("sh", "-c", "echo broken >&2; exit 3").setCache(cache).call();
+				fail("Expected a SubprocessException.");
+			}
+			catch(final SubprocessException e)
+			{
+				assertEquals("Unexpected exit code.", 3, e.exitCode);
+				assertEquals("Unexpected message.", "broken\n", e.getMessage());
+			}
+		}
+		assertEquals("Unexpected misses.", 3, cache.getMissCount());
+	}
+}
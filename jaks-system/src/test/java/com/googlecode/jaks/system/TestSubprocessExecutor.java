@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.apache.commons.lang.SystemUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.googlecode.jaks.common.io.StreamUtil;
+import com.googlecode.jaks.system.SubprocessExecutor.FailurePolicy;
+import com.googlecode.jaks.system.SubprocessExecutor.Ordering;
+
+/**
+ * Tests for {@link SubprocessExecutor}.
+ * @author Jason Smith
+ */
+public class TestSubprocessExecutor extends Assert
+{
+	/**
+	 * Verify that results come back in submission order and that no more jobs run than 
+	 * the capacity allows.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testInvokeAll() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final SubprocessExecutor executor = new SubprocessExecutor(2);
+		final long start = System.nanoTime();
+		final List<SubprocessResult> results = executor.invokeAll(IntStream.range(0, 6).mapToObj(i -> 
+			{
+				try
+				{
+					return new Subprocess("sh", "-c", "sleep 0.2; echo " + i);
+				}
+				catch(final Exception e)
+				{
+					throw new RuntimeException(e);
+				}
+			}));
+		final long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		
+		final StringBuilder stdout = new StringBuilder();
+		for(final SubprocessResult result : results)
+		{
+			stdout.append(result.getStdout(StreamUtil.UTF8));
+		}
+		assertEquals("Unexpected stdout.", "0\n1\n2\n3\n4\n5\n", stdout.toString());
+		assertTrue("Ran more than two at a time: " + elapsedMillis + " ms.", elapsedMillis >= 600);
+		assertEquals("Unexpected completed count.", 6, executor.getCompletedCount());
+		assertEquals("Unexpected queue depth.", 0, executor.getQueueDepth());
+		assertEquals("Unexpected running count.", 0, executor.getRunningCount());
+		assertTrue("Latency not recorded.", executor.getMaxLatencyNanos() >= executor.getMeanLatencyNanos());
+	}
+	
+	/**
+	 * Verify that {@link FailurePolicy#COLLECT_ALL} runs every job and reports every failure.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testCollectAll() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final SubprocessExecutor executor = new SubprocessExecutor(4)
+			.setFailurePolicy(FailurePolicy.COLLECT_ALL)
+			.setOrdering(Ordering.COMPLETION);
+		try
+		{
+			executor.invokeAll(IntStream.range(0, 5).mapToObj(i -> 
+				{
+					try
+					{
+						return new Subprocess("sh", "-c", "exit " + (i % 2));
+					}
+					catch(final Exception e)
+					{
+						throw new RuntimeException(e);
+					}
+				}));
+			fail("Expected a SubprocessBatchException.");
+		}
+		catch(final SubprocessBatchException e)
+		{
+			assertEquals("Unexpected successes.", 3, e.results.size());
+			assertEquals("Unexpected failures.", 2, e.failures.size());
+			assertTrue("Unexpected failure type.", e.failures.get(0) instanceof SubprocessException);
+			assertEquals("Unexpected failed count.", 2, executor.getFailedCount());
+		}
+	}
+	
+	/**
+	 * Verify that a cancelled job keeps its capacity until its process has exited, and that a
+	 * cancelled job leaves the queue at once.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testCancel() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final SubprocessExecutor executor = new SubprocessExecutor(1);
+		final CompletableFuture<SubprocessResult> stubborn = executor.submit(
+			new Subprocess("sh", "-c", "trap '' TERM; sleep 5").setKillGracePeriod(1, TimeUnit.SECONDS));
+		final CompletableFuture<SubprocessResult> queued = executor.submit(new Subprocess("true"));
+		final CompletableFuture<SubprocessResult> next = executor.submit(new Subprocess("true"));
+		Thread.sleep(200);
+		assertEquals("Unexpected queue depth.", 2, executor.getQueueDepth());
+		
+		queued.cancel(true);
+		assertEquals("Expected the cancelled job to leave the queue.", 1, executor.getQueueDepth());
+		
+		stubborn.cancel(true);
+		Thread.sleep(300);
+		assertEquals("Expected the capacity to be held during the grace period.", 1, executor.getRunningCount());
+		assertFalse("Started beyond capacity.", next.isDone());
+		
+		next.get(10, TimeUnit.SECONDS);
+		assertEquals("Unexpected queue depth.", 0, executor.getQueueDepth());
+	}
+	
+	/**
+	 * Verify that many queued jobs that fail to start are all run and all fail, without the 
+	 * executor recursing once per job or losing its capacity.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test(timeout=60000)
+	public void testStartFailures() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final SubprocessExecutor executor = new SubprocessExecutor(1);
+		final CompletableFuture<SubprocessResult> first = executor.submit(new Subprocess("sleep", "0.5"));
+		final List<CompletableFuture<SubprocessResult>> missing = new ArrayList<CompletableFuture<SubprocessResult>>();
+		for(int i = 0; i < 5000; ++i)
+		{
+			missing.add(executor.submit(new Subprocess("/nonexistent/jaks-missing-command")));
+		}
+		first.get();
+		for(final CompletableFuture<SubprocessResult> future : missing)
+		{
+			try
+			{
+				future.get();
+				fail("Expected a failure to start.");
+			}
+			catch(final ExecutionException e)
+			{
+				assertTrue("Unexpected failure: " + e.getCause(), e.getCause() instanceof IOException);
+			}
+		}
+		assertEquals("Unexpected queue depth.", 0, executor.getQueueDepth());
+		assertEquals("Unexpected running count.", 0, executor.getRunningCount());
+		assertEquals("Unexpected failed count.", 5000, executor.getFailedCount());
+		assertEquals("Expected the executor to still run jobs.", "ok\n", executor.submit(new Subprocess("echo", "ok")).get().getStdout(StreamUtil.UTF8));
+	}
+}
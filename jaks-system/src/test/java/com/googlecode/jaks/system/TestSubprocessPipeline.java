@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.SystemUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.googlecode.jaks.common.io.StreamUtil;
+
+/**
+ * Tests for {@link SubprocessPipeline}.
+ * @author Jason Smith
+ */
+public class TestSubprocessPipeline extends Assert
+{
+	/**
+	 * Verify that data flows from stdin through every stage to stdout.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testPipeline() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final SubprocessPipeline pipeline = 
+			new SubprocessPipeline(
+				new Subprocess("sort"), 
+				new Subprocess("uniq"), 
+				new Subprocess("head", "-n", "2"));
+		assertEquals("Unexpected stdout.", "a\nb\n", 
+			new String(pipeline.call("c\nb\na\nb\na\n".getBytes(StreamUtil.UTF8)), StreamUtil.UTF8));
+	}
+	
+	/**
+	 * Verify that exit codes are reported per stage, and that a failing stage raises a 
+	 * {@link SubprocessException} with its own stderr.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testExitCodes() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final SubprocessPipeline pipeline = 
+			new SubprocessPipeline(
+				new Subprocess("echo", "hello"), 
+				new Subprocess("sh", "-c", "cat >/dev/null; echo broken >&2; exit 4"), 
+				new Subprocess("cat"));
+		final ByteArrayOutputStream err = new ByteArrayOutputStream();
+		assertArrayEquals("Unexpected exit codes.", new int[] {0, 4, 0}, pipeline.execute(null, new ByteArrayOutputStream(), err));
+		assertEquals("Unexpected stderr.", "broken\n", new String(err.toByteArray(), StreamUtil.UTF8));
+		
+		try
+		{
+			pipeline.call();
+			fail("Expected a SubprocessException.");
+		}
+		catch(final SubprocessException e)
+		{
+			assertEquals("Unexpected exit code.", 4, e.exitCode);
+			assertEquals("Unexpected command.", pipeline.get(1), e.command);
+			assertEquals("Unexpected message.", "broken\n", e.getMessage());
+		}
+	}
+	
+	/**
+	 * Verify that a hung stage is terminated at its deadline, along with the rest of the 
+	 * pipeline, and that a stage can merge its stderr down the pipe.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testTimeoutAndMerge() throws Exception
+	{
+		if(SystemUtils.IS_OS_WINDOWS)
+		{
+			return;
+		}
+		final SubprocessPipeline hung = 
+			new SubprocessPipeline(
+				new Subprocess("echo", "hello"), 
+				new Subprocess("sleep", "30").setTimeout(200, TimeUnit.MILLISECONDS).setKillGracePeriod(0, TimeUnit.MILLISECONDS), 
+				new Subprocess("cat"));
+		final long start = System.nanoTime();
+		try
+		{
+			hung.call();
+			fail("Expected a SubprocessTimeoutException.");
+		}
+		catch(final SubprocessTimeoutException e)
+		{
+			assertEquals("Unexpected command.", hung.get(1), e.command);
+			assertEquals("Unexpected timeout.", 200, e.timeoutMillis);
+		}
+		assertTrue("Expected the pipeline to stop at the deadline.", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+		
+		final SubprocessPipeline merged = 
+			new SubprocessPipeline(
+				new Subprocess("sh", "-c", "echo out; echo err >&2").setMergeStderr(true), 
+				new Subprocess("sort"));
+		final ByteArrayOutputStream err = new ByteArrayOutputStream();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertArrayEquals("Unexpected exit codes.", new int[] {0, 0}, merged.execute(null, out, err));
+		assertEquals("Unexpected stdout.", "err\nout\n", new String(out.toByteArray(), StreamUtil.UTF8));
+		assertEquals("Unexpected stderr.", 0, err.size());
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012 by Jason Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.googlecode.jaks.system;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.googlecode.jaks.common.io.RotatingFileOutputStream;
+import com.googlecode.jaks.common.io.StreamUtil;
+
+/**
+ * Tests for {@link TimestampedLog}.
+ * @author Jason Smith
+ */
+public class TestTimestampedLog extends Assert
+{
+	/**
+	 * Verify that a line longer than {@link TimestampedLog#MAX_LINE} is split into records of at 
+	 * most that length, without losing a byte, whether it arrives at once or a little at a time.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testMaxLine() throws Exception
+	{
+		final byte[] line = new byte[2 * TimestampedLog.MAX_LINE + 5];
+		Arrays.fill(line, (byte)'x');
+		
+		for(final int step : new int[] {line.length, 1000})
+		{
+			final ByteArrayOutputStream target = new ByteArrayOutputStream();
+			try(final TimestampedLog log = new TimestampedLog(target))
+			{
+				final OutputStream out = log.getStdout();
+				for(int off = 0; off < line.length; off += step)
+				{
+					out.write(line, off, Math.min(step, line.length - off));
+				}
+				out.write('\n');
+				log.getStderr().write("after\n".getBytes(StreamUtil.US_ASCII));
+			}
+			final String[] records = new String(target.toByteArray(), StreamUtil.US_ASCII).split("\n");
+			assertEquals("Unexpected record count.", 5, records.length);
+			assertTrue("Expected the origin first.", records[0].startsWith("# origin "));
+			final int[] lengths = {TimestampedLog.MAX_LINE, TimestampedLog.MAX_LINE, 5};
+			for(int i = 0; i < lengths.length; i++)
+			{
+				assertTrue("Unexpected record " + i + " of " + records[i + 1].length() + " chars with step " + step + ".", 
+					records[i + 1].matches("\\d+\\.\\d{9} O x{" + lengths[i] + "}"));
+			}
+			assertTrue("Unexpected last record.", records[4].matches("\\d+\\.\\d{9} E after"));
+		}
+	}
+	
+	/**
+	 * Verify that every file of a rotating log begins with the origin, including those written
+	 * after the first file has been deleted.
+	 * @throws Exception See {@link Exception}.
+	 */
+	@Test
+	public void testRotation() throws Exception
+	{
+		final File file = File.createTempFile("jaks", ".log");
+		try
+		{
+			final RotatingFileOutputStream rotating = new RotatingFileOutputStream(file, 100, 2);
+			try(final TimestampedLog log = new TimestampedLog(rotating))
+			{
+				for(int i = 0; i < 50; i++)
+				{
+					log.getStdout().write(("line " + i + "\n").getBytes(StreamUtil.US_ASCII));
+				}
+			}
+			String origin = null;
+			for(int generation = 0; generation <= 2; generation++)
+			{
+				final String[] lines = new String(Files.readAllBytes(rotating.getFile(generation).toPath()), StreamUtil.US_ASCII).split("\n");
+				assertTrue("Expected the origin in file " + generation + ".", lines[0].startsWith("# origin "));
+				assertTrue("Expected records in file " + generation + ".", lines.length > 1);
+				if(origin != null)
+				{
+					assertEquals("Expected the same origin in every file.", origin, lines[0]);
+				}
+				origin = lines[0];
+			}
+			final String last = new String(Files.readAllBytes(file.toPath()), StreamUtil.US_ASCII);
+			assertTrue("Expected the last record in the current file.", last.endsWith(" O line 49\n"));
+		}
+		finally
+		{
+			for(int generation = 0; generation <= 2; generation++)
+			{
+				new File(generation==0?file.getPath():file.getPath() + "." + generation).delete();
+			}
+		}
+	}
+}